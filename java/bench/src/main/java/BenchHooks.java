@@ -0,0 +1,159 @@
+import java.io.BufferedReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.List;
+
+/**
+ * Default-package implementation of bench.AppHooks, calling the application
+ * directly. See bench.AppHooks for why it exists.
+ */
+public class BenchHooks implements bench.AppHooks {
+
+   private static final String ROWS_QUERY = "SELECT g, g * 1.5, 'name' || g, " +
+         "TIMESTAMP '2020-01-01' + g * INTERVAL '1 second' " +
+         "FROM generate_series(1, ?) g";
+
+   private Amazon _esql;
+   private StoreGrid _grid;
+
+   // the listings print, so System.out is swapped for a sink while open
+   private PrintStream _stdout;
+
+   public void open(String dbname, String port, String user) throws Exception {
+      this._stdout = System.out;
+      this._esql = new Amazon(dbname, port, user, "");
+      System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+   }
+
+   public void openOffline() throws Exception {
+      // no warm-up or reserved connections, so nothing connects
+      System.setProperty("amazon.pool.minIdle", "0");
+      System.setProperty("amazon.lane.orders.reserved", "0");
+      System.setProperty("amazon.lane.analytics.reserved", "0");
+      open("none", "0", "none");
+   }
+
+   public void close() {
+      if (this._esql != null)
+         this._esql.cleanup();
+      if (this._stdout != null)
+         System.setOut(this._stdout);
+   }
+
+   public double calculateDistance(double lat1, double long1, double lat2, double long2) {
+      return this._esql.calculateDistance(lat1, long1, lat2, long2);
+   }
+
+   public int storesWithinScan(double[] lat, double[] lng, double latitude, double longitude, double radius) {
+      int found = 0;
+      for (int i = 0; i < lat.length; i++) {
+         if (this._esql.calculateDistance(latitude, longitude, lat[i], lng[i]) < radius)
+            found++;
+      }
+      return found;
+   }
+
+   public void buildGrid(double[] lat, double[] lng, double cellSize) {
+      int[] ids = new int[lat.length];
+      for (int i = 0; i < ids.length; i++)
+         ids[i] = i;
+      this._grid = new StoreGrid(ids, lat, lng, cellSize);
+   }
+
+   public int storesWithinGrid(double latitude, double longitude, double radius) {
+      return this._grid.within(latitude, longitude, radius).size();
+   }
+
+   public Object returnResult(int rows) throws Exception {
+      return this._esql.executeQueryAndReturnResult(ROWS_QUERY, rows);
+   }
+
+   public Object returnTable(int rows) throws Exception {
+      return this._esql.executeQueryAndReturnTable(ROWS_QUERY, rows);
+   }
+
+   public long stream(int rows) throws Exception {
+      long[] sum = { 0 };
+      this._esql.executeQueryAndStream(ROWS_QUERY, rs -> {
+         sum[0] += rs.getInt(1) + (long) rs.getDouble(2) + rs.getString(3).length()
+               + rs.getTimestamp(4).getTime();
+      }, rows);
+      return sum[0];
+   }
+
+   public void renderProducts(int storeID) {
+      Amazon.viewProductsThing(this._esql, Integer.toString(storeID));
+   }
+
+   public void renderRecentOrders(Object session) {
+      Amazon.viewRecentOrders(this._esql, (Session) session);
+   }
+
+   public Object logIn(String name, String password) throws Exception {
+      return this._esql.logIn(name, password);
+   }
+
+   public int submitOrder(int customerID, int storeID, String productName) throws Exception {
+      return this._esql.submitOrder(customerID, storeID, productName, 1);
+   }
+
+   public int checkout(int customerID, int storeID, String[] productNames) throws Exception {
+      Cart cart = new Cart();
+      for (String productName : productNames)
+         cart.add(storeID, productName, 1);
+      Cart.Receipt receipt = this._esql.checkout(customerID, cart);
+      return receipt.orderNumbers.length;
+   }
+
+   public int[] menu(String action, Object session) throws Exception {
+      Session user = (Session) session;
+      String input;
+      switch (action) {
+         case "placeOrder":
+            List<StoreGrid.Hit> near = this._esql.findStoresWithin(user.latitude, user.longitude, 30);
+            input = near.isEmpty() ? "" : near.get(0).id + "\nitem3\n1\nn\n";
+            break;
+         case "viewProducts":
+            input = "1\n";
+            break;
+         case "viewPopularProducts":
+         case "viewPopularCustomers":
+            input = user.managedStores().isEmpty() ? "" : user.managedStores().get(0) + "\n";
+            break;
+         default:
+            input = "";
+            break;
+      }
+      Amazon.in = new BufferedReader(new StringReader(input));
+      try (OperationTracer.Span span = this._esql.startSpan(action)) {
+         switch (action) {
+            case "viewStores":
+               Amazon.viewStores(this._esql, user);
+               break;
+            case "viewProducts":
+               Amazon.viewProducts(this._esql, user);
+               break;
+            case "placeOrder":
+               Amazon.placeOrder(this._esql, user);
+               break;
+            case "viewRecentOrders":
+               Amazon.viewRecentOrders(this._esql, user);
+               break;
+            case "viewPopularProducts":
+               Amazon.viewPopularProducts(this._esql, user);
+               break;
+            case "viewPopularCustomers":
+               Amazon.viewPopularCustomers(this._esql, user);
+               break;
+            default:
+               throw new IllegalArgumentException("No menu action " + action);
+         }
+         return new int[] { span.roundTrips(), span.repeats() };
+      }
+   }
+
+   public String operations() {
+      return this._esql.tracer().dump();
+   }
+}
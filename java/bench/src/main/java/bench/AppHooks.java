@@ -0,0 +1,106 @@
+package bench;
+
+/**
+ * The application operations the benchmarks measure. The application lives
+ * in the default package, which code in a named package cannot reference,
+ * so it is reached through this interface, implemented by the
+ * default-package BenchHooks class. A benchmark only ever sees that one
+ * implementation, so the JIT inlines the calls.
+ */
+public interface AppHooks {
+
+   /**
+    * Loads the default-package implementation
+    */
+   static AppHooks load() {
+      try {
+         return (AppHooks) Class.forName("BenchHooks").getDeclaredConstructor().newInstance();
+      } catch (ReflectiveOperationException e) {
+         throw new IllegalStateException("BenchHooks is missing from the class path", e);
+      }
+   }
+
+   /**
+    * Opens the application against a database
+    */
+   void open(String dbname, String port, String user) throws Exception;
+
+   /**
+    * Opens the application without a database, for the benchmarks that do
+    * not query
+    */
+   void openOffline() throws Exception;
+
+   void close();
+
+   double calculateDistance(double lat1, double long1, double lat2, double long2);
+
+   /**
+    * Counts the stores within radius by checking the distance to every
+    * store, the loop viewStores used to run
+    */
+   int storesWithinScan(double[] lat, double[] lng, double latitude, double longitude, double radius);
+
+   void buildGrid(double[] lat, double[] lng, double cellSize);
+
+   /**
+    * Counts the stores within radius with the grid built by buildGrid
+    */
+   int storesWithinGrid(double latitude, double longitude, double radius);
+
+   /**
+    * Materializes `rows` generated rows of (int, double, text, timestamp)
+    * with executeQueryAndReturnResult
+    */
+   Object returnResult(int rows) throws Exception;
+
+   /**
+    * The same rows with executeQueryAndReturnTable
+    */
+   Object returnTable(int rows) throws Exception;
+
+   /**
+    * The same rows through executeQueryAndStream, reading every column
+    */
+   long stream(int rows) throws Exception;
+
+   /**
+    * Prints a store's product list, as viewProductsThing
+    */
+   void renderProducts(int storeID);
+
+   /**
+    * Prints the user's recent orders, as viewRecentOrders
+    */
+   void renderRecentOrders(Object session);
+
+   /**
+    * @return the session, as Amazon.logIn
+    */
+   Object logIn(String name, String password) throws Exception;
+
+   /**
+    * Places a one unit order, as Amazon.submitOrder
+    */
+   int submitOrder(int customerID, int storeID, String productName) throws Exception;
+
+   /**
+    * Checks out one unit of each product, as Amazon.checkout
+    */
+   int checkout(int customerID, int storeID, String[] productNames) throws Exception;
+
+   /**
+    * Runs a menu action as the user would, with scripted keyboard input,
+    * inside a span named after it
+    *
+    * @param action  the menu method, e.g. "placeOrder"
+    * @param session the session from logIn
+    * @return the round trips and the repeated statements of the span
+    */
+   int[] menu(String action, Object session) throws Exception;
+
+   /**
+    * @return the round trips, rows and time per menu action so far
+    */
+   String operations();
+}
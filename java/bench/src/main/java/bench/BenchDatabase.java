@@ -0,0 +1,71 @@
+package bench;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+
+/**
+ * The database the benchmarks run against: an embedded PostgreSQL started
+ * for the trial, or the local server given by -Dbench.port, -Dbench.db and
+ * -Dbench.user. Either way the schema is recreated and loaded with the
+ * fixture data, so use a scratch database for the latter.
+ */
+public final class BenchDatabase implements AutoCloseable {
+
+   public final String dbname;
+   public final String port;
+   public final String user;
+   private final EmbeddedPostgres _embedded;
+
+   private BenchDatabase(String dbname, String port, String user, EmbeddedPostgres embedded) {
+      this.dbname = dbname;
+      this.port = port;
+      this.user = user;
+      this._embedded = embedded;
+   }
+
+   /**
+    * Starts or connects to the database and loads the schema and fixture
+    */
+   public static BenchDatabase start() throws Exception {
+      BenchDatabase db;
+      String port = System.getProperty("bench.port");
+      if (port != null) {
+         db = new BenchDatabase(System.getProperty("bench.db", "amazon_bench"), port,
+               System.getProperty("bench.user", System.getProperty("user.name")), null);
+      } else {
+         EmbeddedPostgres embedded = EmbeddedPostgres.builder().start();
+         db = new BenchDatabase("postgres", Integer.toString(embedded.getPort()), "postgres", embedded);
+      }
+
+      String url = "jdbc:postgresql://localhost:" + db.port + "/" + db.dbname;
+      try (Connection conn = DriverManager.getConnection(url, db.user, "");
+            Statement stmt = conn.createStatement()) {
+         stmt.execute(resource("create_tables.sql"));
+         stmt.execute(resource("bench_fixture.sql"));
+         stmt.execute(resource("create_indexes.sql"));
+      } catch (Exception e) {
+         db.close();
+         throw e;
+      }
+      return db;
+   }// end start
+
+   private static String resource(String name) throws IOException {
+      try (InputStream in = BenchDatabase.class.getResourceAsStream("/" + name)) {
+         if (in == null)
+            throw new IOException(name + " is missing from the class path");
+         return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+      }
+   }
+
+   public void close() throws IOException {
+      if (this._embedded != null)
+         this._embedded.close();
+   }
+}
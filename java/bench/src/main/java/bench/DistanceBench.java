@@ -0,0 +1,47 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Amazon.calculateDistance on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DistanceBench {
+
+   private AppHooks _app;
+   private double _lat1 = 12.5, _long1 = 40.25, _lat2 = 61.75, _long2 = 3.5;
+
+   @Setup(Level.Trial)
+   public void setup() throws Exception {
+      this._app = AppHooks.load();
+      this._app.openOffline();
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      this._app.close();
+   }
+
+   @Benchmark
+   public double calculateDistance() {
+      return this._app.calculateDistance(this._lat1, this._long1, this._lat2, this._long2);
+   }
+}
@@ -0,0 +1,67 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a result of (int, double, text, timestamp) rows into a
+ * List<List<String>> (executeQueryAndReturnResult), into a ResultTable
+ * (executeQueryAndReturnTable), and not at all (executeQueryAndStream). The
+ * rows come from generate_series, so the time is the round trip and the
+ * materialization, not a table scan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MaterializeBench {
+
+   @Param({ "10", "1000", "100000" })
+   public int rows;
+
+   private BenchDatabase _db;
+   private AppHooks _app;
+
+   @Setup(Level.Trial)
+   public void setup() throws Exception {
+      this._db = BenchDatabase.start();
+      this._app = AppHooks.load();
+      this._app.open(this._db.dbname, this._db.port, this._db.user);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws Exception {
+      this._app.close();
+      this._db.close();
+   }
+
+   @Benchmark
+   public Object returnResult() throws Exception {
+      return this._app.returnResult(this.rows);
+   }
+
+   @Benchmark
+   public Object returnTable() throws Exception {
+      return this._app.returnTable(this.rows);
+   }
+
+   @Benchmark
+   public long stream() throws Exception {
+      return this._app.stream(this.rows);
+   }
+}
@@ -0,0 +1,100 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The menu actions end to end, with scripted keyboard input, each in a
+ * span. Besides the time, the round trips and rows per action are printed
+ * at the end of the trial, so a change that makes an action chattier shows
+ * up next to the timings.
+ *
+ * For CI, -Dbench.maxRoundTrips=N fails an action that takes more than N
+ * round trips, and -Dbench.failOnRepeats=true one that runs the same
+ * statement with the same parameters twice; run with -foe true so that
+ * the failure fails the build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MenuRoundTripBench {
+
+   private static final int MAX_ROUND_TRIPS = Integer.getInteger("bench.maxRoundTrips", Integer.MAX_VALUE);
+   private static final boolean FAIL_ON_REPEATS = Boolean.getBoolean("bench.failOnRepeats");
+
+   private BenchDatabase _db;
+   private AppHooks _app;
+   private Object _customer;
+   private Object _manager;
+
+   @Setup(Level.Trial)
+   public void setup() throws Exception {
+      this._db = BenchDatabase.start();
+      this._app = AppHooks.load();
+      this._app.open(this._db.dbname, this._db.port, this._db.user);
+      this._customer = this._app.logIn("user7", "pw");
+      this._manager = this._app.logIn("user20", "pw");
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws Exception {
+      System.err.print(this._app.operations());
+      this._app.close();
+      this._db.close();
+   }
+
+   private int[] run(String action, Object session) throws Exception {
+      int[] cost = this._app.menu(action, session);
+      if (cost[0] > MAX_ROUND_TRIPS)
+         throw new IllegalStateException(action + " took " + cost[0] + " round trips, more than "
+               + MAX_ROUND_TRIPS);
+      if (FAIL_ON_REPEATS && cost[1] > 0)
+         throw new IllegalStateException(action + " repeated a statement " + cost[1] + " times");
+      return cost;
+   }
+
+   @Benchmark
+   public int[] viewStores() throws Exception {
+      return run("viewStores", this._customer);
+   }
+
+   @Benchmark
+   public int[] viewProducts() throws Exception {
+      return run("viewProducts", this._customer);
+   }
+
+   @Benchmark
+   public int[] placeOrder() throws Exception {
+      return run("placeOrder", this._customer);
+   }
+
+   @Benchmark
+   public int[] viewRecentOrders() throws Exception {
+      return run("viewRecentOrders", this._customer);
+   }
+
+   @Benchmark
+   public int[] viewPopularProducts() throws Exception {
+      return run("viewPopularProducts", this._manager);
+   }
+
+   @Benchmark
+   public int[] viewPopularCustomers() throws Exception {
+      return run("viewPopularCustomers", this._manager);
+   }
+}
@@ -0,0 +1,59 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The listing screens with their data cached, so what is measured is
+ * building and printing the rows (into a sink): the product list of the
+ * fixture's 200 stores in turn, and a customer's recent orders.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RenderBench {
+
+   private BenchDatabase _db;
+   private AppHooks _app;
+   private Object _customer;
+   private int _next = 0;
+
+   @Setup(Level.Trial)
+   public void setup() throws Exception {
+      this._db = BenchDatabase.start();
+      this._app = AppHooks.load();
+      this._app.open(this._db.dbname, this._db.port, this._db.user);
+      this._customer = this._app.logIn("user1", "pw");
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws Exception {
+      this._app.close();
+      this._db.close();
+   }
+
+   @Benchmark
+   public void productList() {
+      this._app.renderProducts(1 + this._next++ % 200);
+   }
+
+   @Benchmark
+   public void recentOrders() {
+      this._app.renderRecentOrders(this._customer);
+   }
+}
@@ -0,0 +1,64 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logging in and placing orders, one round trip each, and a three line
+ * checkout in one transaction. Orders go to the fixture's 200 stores in
+ * turn, whose stock does not run out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SessionBench {
+
+   private static final String[] CART = { "item1", "item4", "item7" };
+
+   private BenchDatabase _db;
+   private AppHooks _app;
+   private int _next = 0;
+
+   @Setup(Level.Trial)
+   public void setup() throws Exception {
+      this._db = BenchDatabase.start();
+      this._app = AppHooks.load();
+      this._app.open(this._db.dbname, this._db.port, this._db.user);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws Exception {
+      this._app.close();
+      this._db.close();
+   }
+
+   @Benchmark
+   public Object logIn() throws Exception {
+      return this._app.logIn("user7", "pw");
+   }
+
+   @Benchmark
+   public int submitOrder() throws Exception {
+      return this._app.submitOrder(1, 1 + this._next++ % 200, "item3");
+   }
+
+   @Benchmark
+   public int checkout() throws Exception {
+      return this._app.checkout(1, 1 + this._next++ % 200, CART);
+   }
+}
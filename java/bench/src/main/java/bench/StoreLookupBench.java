@@ -0,0 +1,78 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The viewStores lookup of the stores within 30 miles: checking the
+ * distance to every store, as viewStores used to, against the in-memory
+ * StoreGrid. Stores are spread uniformly over the 100 x 100 map the data
+ * uses, and the query point moves through a fixed sequence of locations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StoreLookupBench {
+
+   @Param({ "1000", "100000", "1000000" })
+   public int stores;
+
+   private AppHooks _app;
+   private double[] _lat;
+   private double[] _lng;
+   private final double[] _queryLat = new double[1024];
+   private final double[] _queryLng = new double[1024];
+   private int _next = 0;
+
+   @Setup(Level.Trial)
+   public void setup() throws Exception {
+      Random random = new Random(42);
+      this._lat = new double[this.stores];
+      this._lng = new double[this.stores];
+      for (int i = 0; i < this.stores; i++) {
+         this._lat[i] = random.nextDouble() * 100;
+         this._lng[i] = random.nextDouble() * 100;
+      }
+      for (int i = 0; i < this._queryLat.length; i++) {
+         this._queryLat[i] = random.nextDouble() * 100;
+         this._queryLng[i] = random.nextDouble() * 100;
+      }
+      this._app = AppHooks.load();
+      this._app.openOffline();
+      this._app.buildGrid(this._lat, this._lng, 30);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      this._app.close();
+   }
+
+   @Benchmark
+   public int scan() {
+      int q = this._next++ & 1023;
+      return this._app.storesWithinScan(this._lat, this._lng, this._queryLat[q], this._queryLng[q], 30);
+   }
+
+   @Benchmark
+   public int grid() {
+      int q = this._next++ & 1023;
+      return this._app.storesWithinGrid(this._queryLat[q], this._queryLng[q], 30);
+   }
+}
@@ -0,0 +1,32 @@
+-- Data for the database benchmarks, loaded after create_tables.sql. Fixed
+-- seed, so every run sees the same data.
+SELECT setseed(0.42);
+
+-- 1000 users named user1 .. user1000 with password pw, one in twenty of
+-- them a manager
+INSERT INTO Users (userID, name, password, latitude, longitude, type)
+SELECT g, 'user' || g, 'pw', random() * 99.9, random() * 99.9,
+       CASE WHEN g % 20 = 0 THEN 'manager' ELSE 'customer' END
+FROM generate_series(1, 1000) g;
+SELECT setval(pg_get_serial_sequence('users', 'userid'), 1001, false);
+
+-- 200 stores, each with products item0 .. item9 in practically endless stock
+INSERT INTO Store (storeID, latitude, longitude, managerID, dateEstablished)
+SELECT g, random() * 99.9, random() * 99.9, 20 * (1 + g % 50), DATE '2000-01-01'
+FROM generate_series(1, 200) g;
+
+INSERT INTO Product (storeID, productName, numberOfUnits, pricePerUnit)
+SELECT s, 'item' || p, 2000000000, 1 + p
+FROM generate_series(1, 200) s, generate_series(0, 9) p;
+
+INSERT INTO Warehouse (WarehouseID, area, latitude, longitude)
+SELECT g, 1000, random() * 99.9, random() * 99.9
+FROM generate_series(1, 10) g;
+
+-- 20000 orders of the customers
+INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime)
+SELECT 1 + (g * 7) % 999, 1 + g % 200, 'item' || (g % 10), 1 + g % 7,
+       TIMESTAMP '2016-01-01' + g * INTERVAL '1 minute'
+FROM generate_series(1, 20000) g;
+
+ANALYZE;
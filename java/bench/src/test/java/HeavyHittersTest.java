@@ -0,0 +1,123 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the Space-Saving summary behind the popular customers report: the
+ * error bounds of its counts and when its top k is guaranteed.
+ */
+public class HeavyHittersTest {
+
+   private static List<Integer> keys(HeavyHitters.Answer answer) {
+      List<Integer> keys = new ArrayList<Integer>();
+      for (HeavyHitters.Counter c : answer.top)
+         keys.add(c.key);
+      return keys;
+   }
+
+   @Test
+   public void unknownStoreIsAnEmptyGuaranteedAnswer() {
+      HeavyHitters.Answer answer = new HeavyHitters(4).top(1, 5);
+      assertTrue(answer.top.isEmpty());
+      assertTrue(answer.guaranteed);
+   }
+
+   @Test
+   public void countsAreExactBelowCapacity() {
+      HeavyHitters hh = new HeavyHitters(8);
+      hh.add(1, 10, 5);
+      hh.add(1, 11, 3);
+      hh.add(1, 12, 7);
+      hh.add(1, 10, 1);
+      // another store does not count
+      hh.add(2, 11, 100);
+      HeavyHitters.Answer answer = hh.top(1, 2);
+      assertEquals(Arrays.asList(12, 10), keys(answer));
+      assertEquals(7, answer.top.get(0).count);
+      assertEquals(6, answer.top.get(1).count);
+      assertEquals(0, answer.maxError);
+      assertEquals(16, answer.total);
+      assertTrue(answer.guaranteed);
+   }
+
+   @Test
+   public void clearForgetsEveryStore() {
+      HeavyHitters hh = new HeavyHitters(8);
+      hh.add(1, 10, 5);
+      hh.clear();
+      assertTrue(hh.top(1, 5).top.isEmpty());
+   }
+
+   @Test
+   public void heavyKeysStayGuaranteedPastCapacity() {
+      HeavyHitters hh = new HeavyHitters(4);
+      // two heavy customers among many that order once
+      for (int i = 0; i < 100; i++) {
+         hh.add(1, 1, 1);
+         hh.add(1, 2, 1);
+         hh.add(1, 100 + i, 1);
+      }
+      HeavyHitters.Answer answer = hh.top(1, 2);
+      assertEquals(Arrays.asList(1, 2), keys(answer));
+      assertTrue(answer.guaranteed);
+   }
+
+   @Test
+   public void closeCountsPastCapacityAreNotGuaranteed() {
+      HeavyHitters hh = new HeavyHitters(2);
+      // three keys with the same count, one of them has to be dropped
+      for (int i = 0; i < 10; i++) {
+         hh.add(1, 1, 1);
+         hh.add(1, 2, 1);
+         hh.add(1, 3, 1);
+      }
+      HeavyHitters.Answer answer = hh.top(1, 1);
+      assertFalse(answer.guaranteed);
+      assertTrue(answer.maxError > 0);
+      assertEquals(1, hh.getMisses());
+   }
+
+   @Test
+   public void countsBoundTheTrueCounts() {
+      int capacity = 16;
+      HeavyHitters hh = new HeavyHitters(capacity);
+      Map<Integer, Long> exact = new HashMap<Integer, Long>();
+      Random random = new Random(42);
+      long total = 0;
+      for (int i = 0; i < 20000; i++) {
+         // skewed: low keys are ordered far more often
+         int key = (int) Math.floor(Math.pow(random.nextDouble(), 3) * 200);
+         long weight = 1 + random.nextInt(3);
+         hh.add(1, key, weight);
+         exact.merge(key, weight, Long::sum);
+         total += weight;
+      }
+      HeavyHitters.Answer answer = hh.top(1, 5);
+      assertEquals(total, answer.total);
+      for (HeavyHitters.Counter c : answer.top) {
+         long trueCount = exact.getOrDefault(c.key, 0L);
+         assertTrue(c.count - c.error <= trueCount && trueCount <= c.count, "key " + c.key);
+         assertTrue(c.error <= total / capacity, "key " + c.key);
+      }
+      if (answer.guaranteed) {
+         // then no key left out has a larger true count than any key in it
+         long smallest = Long.MAX_VALUE;
+         for (HeavyHitters.Counter c : answer.top)
+            smallest = Math.min(smallest, exact.get(c.key));
+         List<Integer> top = keys(answer);
+         for (Map.Entry<Integer, Long> e : exact.entrySet()) {
+            if (!top.contains(e.getKey()))
+               assertTrue(e.getValue() <= smallest, "key " + e.getKey());
+         }
+      }
+   }
+}// end HeavyHittersTest
@@ -0,0 +1,141 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the hand-over of orders placed before, during and after a
+ * bootstrap, the way Amazon.loadSnapshot() reconciles them.
+ */
+public class PendingOrdersTest {
+
+   private static RecentOrders.Order order(int orderNumber) {
+      return new RecentOrders.Order(orderNumber, 1, 1, "item0", 1, new Timestamp(orderNumber));
+   }
+
+   private static List<Integer> numbers(List<RecentOrders.Order> orders) {
+      List<Integer> numbers = new ArrayList<Integer>();
+      for (RecentOrders.Order order : orders)
+         numbers.add(order.orderNumber);
+      return numbers;
+   }
+
+   @Test
+   public void ordersBeforeStartAreLeftToTheBootstrap() {
+      PendingOrders pending = new PendingOrders();
+      List<RecentOrders.Order> applied = new ArrayList<RecentOrders.Order>();
+      pending.placed(order(1), applied::add);
+      assertFalse(pending.loaded());
+      assertTrue(applied.isEmpty());
+      pending.start();
+      assertTrue(pending.finish().isEmpty());
+   }
+
+   @Test
+   public void ordersDuringTheBootstrapAreHandedToTheLoader() {
+      PendingOrders pending = new PendingOrders();
+      List<RecentOrders.Order> applied = new ArrayList<RecentOrders.Order>();
+      pending.start();
+      pending.placed(order(1), applied::add);
+      pending.placed(order(2), applied::add);
+      assertTrue(applied.isEmpty());
+      assertEquals(Arrays.asList(1, 2), numbers(pending.finish()));
+      assertTrue(pending.loaded());
+   }
+
+   @Test
+   public void ordersAfterTheBootstrapAreAppliedRightAway() {
+      PendingOrders pending = new PendingOrders();
+      List<RecentOrders.Order> applied = new ArrayList<RecentOrders.Order>();
+      pending.start();
+      pending.finish();
+      pending.placed(order(3), applied::add);
+      assertEquals(Arrays.asList(3), numbers(applied));
+   }
+
+   @Test
+   public void abortForgetsTheSummaryAndThePendingOrders() {
+      PendingOrders pending = new PendingOrders();
+      List<RecentOrders.Order> applied = new ArrayList<RecentOrders.Order>();
+      pending.start();
+      pending.placed(order(1), applied::add);
+      AtomicBoolean forgot = new AtomicBoolean();
+      pending.abort(() -> forgot.set(true));
+      assertTrue(forgot.get());
+      assertFalse(pending.loaded());
+      // not loading any more, so the next bootstrap reads it
+      pending.placed(order(2), applied::add);
+      pending.start();
+      assertTrue(pending.finish().isEmpty());
+      assertTrue(applied.isEmpty());
+   }
+
+   // waits until n orders were placed
+   private static void awaitPlaced(AtomicInteger placed, int n) {
+      while (placed.get() < n)
+         Thread.onSpinWait();
+   }
+
+   @Test
+   public void everyOrderIsCountedOnceWhileOrdersArePlaced() throws Exception {
+      // the table: orders are committed here, then handed over
+      final Set<Integer> committed = ConcurrentHashMap.newKeySet();
+      // the summary: how many times each order was counted
+      final Map<Integer, Integer> counted = new ConcurrentHashMap<Integer, Integer>();
+      final PendingOrders pending = new PendingOrders();
+      final AtomicInteger next = new AtomicInteger();
+      final int orders = 50000;
+
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int t = 0; t < 3; t++) {
+         Thread thread = new Thread(() -> {
+            int orderNumber;
+            while ((orderNumber = next.incrementAndGet()) <= orders) {
+               RecentOrders.Order order = order(orderNumber);
+               committed.add(order.orderNumber);
+               pending.placed(order, o -> counted.merge(o.orderNumber, 1, Integer::sum));
+            }
+         });
+         thread.start();
+         threads.add(thread);
+      }
+      try {
+         // a bootstrap that fails once, then one that succeeds
+         awaitPlaced(next, 5000);
+         pending.start();
+         awaitPlaced(next, 10000);
+         pending.abort(counted::clear);
+         awaitPlaced(next, 15000);
+
+         pending.start();
+         Set<Integer> snapshot = new HashSet<Integer>(committed);
+         for (int orderNumber : snapshot)
+            counted.merge(orderNumber, 1, Integer::sum);
+         awaitPlaced(next, Math.min(next.get() + 5000, orders));
+         for (RecentOrders.Order order : pending.finish()) {
+            if (!snapshot.contains(order.orderNumber))
+               counted.merge(order.orderNumber, 1, Integer::sum);
+         }
+      } finally {
+         for (Thread thread : threads)
+            thread.join();
+      }
+
+      assertEquals(orders, committed.size());
+      assertEquals(committed, counted.keySet());
+      for (Map.Entry<Integer, Integer> e : counted.entrySet())
+         assertEquals(1, (int) e.getValue(), "order " + e.getKey());
+   }
+}// end PendingOrdersTest
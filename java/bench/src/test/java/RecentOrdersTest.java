@@ -0,0 +1,190 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the recent order buffers: loading, adding, eviction, and orders
+ * placed while a key is being read.
+ */
+public class RecentOrdersTest {
+
+   private static RecentOrders.Order order(int orderNumber, int key, long time) {
+      return new RecentOrders.Order(orderNumber, key, key, "item0 ", 1, new Timestamp(time));
+   }
+
+   private static List<Integer> numbers(List<RecentOrders.Order> orders) {
+      List<Integer> numbers = new ArrayList<Integer>();
+      for (RecentOrders.Order order : orders)
+         numbers.add(order.orderNumber);
+      return numbers;
+   }
+
+   @Test
+   public void unloadedKeyIsAMiss() {
+      RecentOrders cache = new RecentOrders(5, 10);
+      assertNull(cache.get(1));
+   }
+
+   @Test
+   public void addSkipsKeysThatAreNotLoaded() {
+      RecentOrders cache = new RecentOrders(5, 10);
+      cache.add(1, order(1, 1, 1000));
+      assertEquals(0, cache.size());
+      assertNull(cache.get(1));
+   }
+
+   @Test
+   public void loadedKeyKeepsNewestOrdersFirst() {
+      RecentOrders cache = new RecentOrders(3, 10);
+      long generation = cache.begin(1);
+      cache.load(1, Arrays.asList(order(2, 1, 2000), order(1, 1, 1000)), generation);
+      cache.add(1, order(4, 1, 4000));
+      cache.add(1, order(3, 1, 3000));
+      // same time as 3, the higher order number is newer
+      cache.add(1, order(5, 1, 3000));
+      assertEquals(Arrays.asList(4, 5, 3), numbers(cache.get(1)));
+   }
+
+   @Test
+   public void addIgnoresDuplicates() {
+      RecentOrders cache = new RecentOrders(5, 10);
+      long generation = cache.begin(1);
+      cache.load(1, Arrays.asList(order(1, 1, 1000)), generation);
+      cache.add(1, order(1, 1, 1000));
+      assertEquals(Arrays.asList(1), numbers(cache.get(1)));
+   }
+
+   @Test
+   public void ordersAddedDuringALoadAreMerged() {
+      RecentOrders cache = new RecentOrders(5, 10);
+      long generation = cache.begin(1);
+      assertNull(cache.get(1));
+      // placed after the read started, so the read may or may not see it
+      cache.add(1, order(3, 1, 3000));
+      cache.load(1, Arrays.asList(order(2, 1, 2000), order(1, 1, 1000)), generation);
+      assertEquals(Arrays.asList(3, 2, 1), numbers(cache.get(1)));
+   }
+
+   @Test
+   public void loadIsDroppedWhenItsKeyWasEvicted() {
+      RecentOrders cache = new RecentOrders(5, 1);
+      long generation = cache.begin(1);
+      cache.add(1, order(3, 1, 3000));
+      // evicts key 1, and the order added to it
+      cache.begin(2);
+      cache.load(1, Arrays.asList(order(1, 1, 1000)), generation);
+      assertNull(cache.get(1));
+      assertEquals(1, cache.size());
+   }
+
+   @Test
+   public void loadIsDroppedWhenItsKeyWasEvictedAndBegunAgain() {
+      RecentOrders cache = new RecentOrders(5, 1);
+      long stale = cache.begin(1);
+      cache.begin(2);
+      long generation = cache.begin(1);
+      cache.add(1, order(3, 1, 3000));
+      cache.load(1, Arrays.asList(order(1, 1, 1000)), stale);
+      assertNull(cache.get(1));
+      cache.load(1, Arrays.asList(order(1, 1, 1000)), generation);
+      assertEquals(Arrays.asList(3, 1), numbers(cache.get(1)));
+   }
+
+   @Test
+   public void evictingOtherKeysKeepsTheLoad() {
+      RecentOrders cache = new RecentOrders(5, 2);
+      long generation = cache.begin(1);
+      // key 2 and 3 come and go while key 1 is being read
+      cache.load(2, Collections.<RecentOrders.Order>emptyList(), cache.begin(2));
+      cache.get(1);
+      cache.load(3, Collections.<RecentOrders.Order>emptyList(), cache.begin(3));
+      cache.load(1, Arrays.asList(order(1, 1, 1000)), generation);
+      assertEquals(Arrays.asList(1), numbers(cache.get(1)));
+      assertNull(cache.get(2));
+   }
+
+   // the newest orders of a key in a list of placed orders, like the query
+   private static List<RecentOrders.Order> newest(List<RecentOrders.Order> placed, int limit) {
+      List<RecentOrders.Order> orders;
+      synchronized (placed) {
+         orders = new ArrayList<RecentOrders.Order>(placed);
+      }
+      orders.sort((a, b) -> a.newerThan(b) ? -1 : b.newerThan(a) ? 1 : 0);
+      return orders.subList(0, Math.min(limit, orders.size()));
+   }
+
+   @Test
+   public void concurrentLoadsAndAddsLoseNoOrders() throws Exception {
+      final int keys = 40;
+      final int perKey = 60;
+      // fewer buffers than keys, so loads race with evictions too
+      final RecentOrders cache = new RecentOrders(5, keys / 2);
+      final List<List<RecentOrders.Order>> table = new ArrayList<List<RecentOrders.Order>>();
+      for (int key = 0; key < keys; key++)
+         table.add(new ArrayList<RecentOrders.Order>());
+      final CountDownLatch start = new CountDownLatch(1);
+      ExecutorService threads = Executors.newFixedThreadPool(4);
+      try {
+         List<Future<?>> done = new ArrayList<Future<?>>();
+         // two threads place orders: insert into the table, then add
+         for (int t = 0; t < 2; t++) {
+            final int thread = t;
+            done.add(threads.submit(() -> {
+               start.await();
+               for (int n = thread; n < perKey; n += 2) {
+                  for (int key = 0; key < keys; key++) {
+                     RecentOrders.Order order = order(key * perKey + n, key, n);
+                     List<RecentOrders.Order> placed = table.get(key);
+                     synchronized (placed) {
+                        placed.add(order);
+                     }
+                     cache.add(key, order);
+                  }
+               }
+               return null;
+            }));
+         }
+         // two threads read keys from the table and load them
+         for (int t = 0; t < 2; t++) {
+            done.add(threads.submit(() -> {
+               start.await();
+               for (int round = 0; round < 50; round++) {
+                  for (int key = 0; key < keys; key++) {
+                     if (cache.get(key) != null)
+                        continue;
+                     long generation = cache.begin(key);
+                     cache.load(key, newest(table.get(key), 5), generation);
+                  }
+               }
+               return null;
+            }));
+         }
+         start.countDown();
+         for (Future<?> f : done)
+            f.get();
+      } finally {
+         threads.shutdown();
+      }
+      int loaded = 0;
+      for (int key = 0; key < keys; key++) {
+         List<RecentOrders.Order> orders = cache.get(key);
+         if (orders == null)
+            continue;
+         loaded++;
+         assertEquals(numbers(newest(table.get(key), 5)), numbers(orders), "key " + key);
+      }
+      assertTrue(loaded > 0);
+   }
+}// end RecentOrdersTest
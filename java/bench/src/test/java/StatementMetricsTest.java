@@ -0,0 +1,78 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests how statements are folded into shapes, so that the same statement
+ * is counted once whatever its values or batch size.
+ */
+public class StatementMetricsTest {
+
+   // "(?, ?), (?, ?), ..." or "?, ?, ..." with n items
+   private static String list(String item, int n) {
+      StringBuilder list = new StringBuilder();
+      for (int i = 0; i < n; i++)
+         list.append(i == 0 ? "" : ", ").append(item);
+      return list.toString();
+   }
+
+   @Test
+   public void literalsAndWhitespaceAreReplaced() {
+      assertEquals("SELECT * FROM Users WHERE name = ? AND userID > ?",
+            StatementMetrics.normalize("  SELECT *\n  FROM Users\tWHERE name = 'O''Brien' AND userID > -12 "));
+      // digits inside names are left alone
+      assertEquals("SELECT item0 FROM t1 WHERE x = ?", StatementMetrics.normalize("SELECT item0 FROM t1 WHERE x = 1.5"));
+   }
+
+   @Test
+   public void valuesRowsAreFolded() {
+      String two = StatementMetrics.normalize("INSERT INTO Orders VALUES (?, ?), (?, ?)");
+      String many = StatementMetrics.normalize("INSERT INTO Orders VALUES (1, 'a'),(2, 'b'), (3,'c')");
+      assertEquals("INSERT INTO Orders VALUES (?, ?), ...", two);
+      assertEquals(two, many);
+   }
+
+   @Test
+   public void inListsAreFolded() {
+      String two = StatementMetrics.normalize("SELECT * FROM Orders WHERE orderNumber IN (?, ?)");
+      String many = StatementMetrics.normalize("select * from Orders where orderNumber in (1,2, 3, 4)");
+      assertEquals("SELECT * FROM Orders WHERE orderNumber IN (?, ...)", two);
+      assertEquals("select * from Orders where orderNumber in (?, ...)", many);
+   }
+
+   @Test
+   public void longListsDoNotOverflowTheStack() {
+      String values = StatementMetrics.normalize(
+            "INSERT INTO Orders VALUES " + list("(?, ?, ?, ?)", 100000));
+      assertEquals("INSERT INTO Orders VALUES (?, ?, ?, ?), ...", values);
+      String in = StatementMetrics.normalize("SELECT 1 FROM Orders WHERE orderNumber IN (" + list("?", 100000) + ")");
+      assertEquals("SELECT ? FROM Orders WHERE orderNumber IN (?, ...)", in);
+   }
+
+   @Test
+   public void longShapesAreCut() {
+      // subqueries do not fold, so the shape keeps growing
+      String shape = StatementMetrics.normalize("SELECT " + list("(SELECT ?)", 1000));
+      assertTrue(shape.length() <= 1003);
+      assertTrue(shape.endsWith("..."));
+   }
+
+   @Test
+   public void batchSizesShareOneShape() {
+      StatementMetrics metrics = new StatementMetrics(10);
+      for (int n = 2; n <= 50; n++)
+         metrics.record("INSERT INTO Orders VALUES " + list("(?, ?)", n), System.nanoTime(), n, 0, null);
+      assertEquals(1, metrics.getStatementCount());
+   }
+
+   @Test
+   public void shapesPastTheLimitAreCountedTogether() {
+      StatementMetrics metrics = new StatementMetrics(3);
+      for (int n = 0; n < 10; n++)
+         metrics.record("SELECT * FROM Table" + n, System.nanoTime(), 1, 0, null);
+      // three shapes, then "(other)" for the rest
+      assertEquals(4, metrics.getStatementCount());
+      assertTrue(metrics.dump().contains("(other)"));
+   }
+}// end StatementMetricsTest
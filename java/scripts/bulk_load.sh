@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+# load data/*.csv from this machine into freshly created tables
+# (run sql/src/create_tables.sql first) through COPY FROM STDIN. A failed
+# load leaves the tables empty and the indexes in place.
+if ! java -cp $DIR/../classes:$DIR/../lib/postgresql-42.7.3.jar BulkLoader $USER"_project_phase_3_DB" $PGPORT $USER $DIR/../../data $DIR/../../sql/src/create_indexes.sql; then
+   echo "bulk_load.sh: the load failed, nothing was loaded" >&2
+   exit 1
+fi
@@ -3,9 +3,9 @@ DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Amazon.java
+javac -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Amazon $USER"_project_phase_3_DB" $PGPORT $USER
+java -cp $DIR/../classes:$DIR/../lib/postgresql-42.7.3.jar Amazon $USER"_project_phase_3_DB" $PGPORT $USER
 
@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+# write a synthetic dataset in the layout of data/, then load it with
+# bulk_load.sh pointed at the output directory. Scale factor 1 is 1 million
+# orders. Settings are -Damazon.generate.* options, see DataGenerator, e.g.
+#   JAVA_OPTS="-Damazon.generate.seed=7" ./generate_data.sh /tmp/amazon_sf10 10
+java $JAVA_OPTS -cp $DIR/../classes DataGenerator ${1:-$DIR/../../generated} ${2:-1}
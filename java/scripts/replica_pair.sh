@@ -0,0 +1,40 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# usage: replica_pair.sh start|stop [port] [data dir]
+# Runs a primary on port (5433 unless given) and a streaming replica of it
+# on port + 1, both on this machine, to try -Damazon.replicas. The first
+# start creates both servers and the project database; create the tables and
+# load the data on the primary, the replica follows.
+COMMAND=${1:-start}
+PORT=${2:-5433}
+DATA=${3:-/tmp/$USER"_replica_pair"}
+REPLICA_PORT=$((PORT + 1))
+DB=$USER"_project_phase_3_DB"
+
+case $COMMAND in
+start)
+   if [ ! -d $DATA/primary ]; then
+      mkdir -p $DATA || exit 1
+      initdb -D $DATA/primary -U $USER --auth=trust > $DATA/initdb.log || exit 1
+      pg_ctl -D $DATA/primary -o "-p $PORT -k $DATA" -l $DATA/primary.log -w start || exit 1
+      createdb -h $DATA -p $PORT -U $USER $DB || exit 1
+      # -R writes standby.signal and primary_conninfo, so the copy starts as
+      # a replica streaming from the primary
+      pg_basebackup -h $DATA -p $PORT -U $USER -D $DATA/replica -R -X stream || exit 1
+   else
+      pg_ctl -D $DATA/primary -o "-p $PORT -k $DATA" -l $DATA/primary.log -w start || exit 1
+   fi
+   pg_ctl -D $DATA/replica -o "-p $REPLICA_PORT -k $DATA" -l $DATA/replica.log -w start || exit 1
+   echo "primary on port $PORT, replica on port $REPLICA_PORT"
+   echo "load the data with:  PGPORT=$PORT $DIR/../../sql/scripts/create_db.sh"
+   echo "then run with:       java -Damazon.replicas=localhost:$REPLICA_PORT ... Amazon $DB $PORT $USER"
+   ;;
+stop)
+   pg_ctl -D $DATA/replica -w stop
+   pg_ctl -D $DATA/primary -w stop
+   ;;
+*)
+   echo "usage: replica_pair.sh start|stop [port] [data dir]" >&2
+   exit 1
+   ;;
+esac
@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+# serve the store operations over HTTP on localhost:8080 (or the port given
+# as the first argument). Run on Java 21 or later to handle every request on
+# a virtual thread.
+java -cp $DIR/../classes:$DIR/../lib/postgresql-42.7.3.jar AmazonServer $USER"_project_phase_3_DB" $PGPORT $USER $1
@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+# replay the menu operations against the loaded database and report
+# throughput and latency percentiles. Settings are -Damazon.workload.*
+# options, see WorkloadDriver, e.g.
+#   JAVA_OPTS="-Damazon.workload.rate=500 -Damazon.workload.concurrency=64" ./workload.sh
+java $JAVA_OPTS -cp $DIR/../classes:$DIR/../lib/postgresql-42.7.3.jar WorkloadDriver $USER"_project_phase_3_DB" $PGPORT $USER
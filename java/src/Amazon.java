@@ -12,17 +12,25 @@
 
 import java.sql.DriverManager;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 import java.lang.Math;
 // import java.sql.ResultSet;
 import java.sql.Date;
@@ -34,8 +42,69 @@ import java.sql.Date;
  */
 public class Amazon {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by every session.
+   private ConnectionPool _pool = null;
+
+   // in-memory grid over store locations, rebuilt once it gets older than
+   // amazon.storeIndex.refreshMillis. Stores are only added or moved outside
+   // this program, those changes show up within that interval.
+   private volatile StoreGrid _storeGrid = null;
+   // held while the grid is read from Store. Locks rather than monitors
+   // guard the loads, so a virtual thread waiting on one does not pin its
+   // carrier thread.
+   private final ReentrantLock _storeGridLock = new ReentrantLock();
+
+   // running units ordered per (store, product), bootstrapped from Orders on
+   // first use and kept current by every order placed through this process.
+   private final PopularProducts _popularProducts = new PopularProducts(5);
+   private final PendingOrders _pendingProducts = new PendingOrders();
+   private final ReentrantLock _popularProductsLoading = new ReentrantLock();
+   // after a failed bootstrap, when to try again; until then every store
+   // is aggregated on its own
+   private volatile long _popularProductsRetryAt = 0;
+
+   // approximate order counts per (store, customer) in bounded memory,
+   // bootstrapped and maintained the same way as _popularProducts.
+   private final HeavyHitters _popularCustomers = new HeavyHitters(
+         Integer.getInteger("amazon.popularCustomers.capacity", 64));
+   private final PendingOrders _pendingCustomers = new PendingOrders();
+   private final ReentrantLock _popularCustomersLoading = new ReentrantLock();
+   private volatile long _popularCustomersRetryAt = 0;
+
+   // latest orders per store and per customer, read from Orders on a miss
+   // and kept current by every order placed through this process.
+   private final RecentOrders _storeOrders = new RecentOrders(5,
+         Integer.getInteger("amazon.recentOrders.maxStores", 10000));
+   private final RecentOrders _customerOrders = new RecentOrders(5,
+         Integer.getInteger("amazon.recentOrders.maxCustomers", 100000));
+
+   // product lists of the most recently browsed stores, kept current by the
+   // writes made through this process.
+   private final CatalogCache _catalog = new CatalogCache(
+         Integer.getInteger("amazon.catalogCache.maxStores", 1000),
+         Long.getLong("amazon.catalogCache.ttlMillis", 60000L));
+
+   // latency, rows, bytes and errors per statement shape, over JMX and
+   // written every amazon.metrics.dumpSeconds when that is set.
+   private final StatementMetrics _metrics = new StatementMetrics(
+         Integer.getInteger("amazon.metrics.maxStatements", 200));
+
+   // round trips, rows and time per user action, printed per action with
+   // -Damazon.trace.log=true.
+   private final OperationTracer _tracer = new OperationTracer(Boolean.getBoolean("amazon.trace.log"));
+
+   // statements slower than amazon.slowQuery.thresholdMillis, with their
+   // plans; null unless that is set.
+   private SlowQueryLog _slowLog = null;
+
+   // sends the reads of read-only routes to the amazon.replicas servers;
+   // null without replicas, then everything runs on _pool.
+   private ReplicaRouter _router = null;
+
+   // order placement and the manager reports run on connections of their
+   // own, so a report cannot hold up a checkout.
+   private WorkloadLane _orders = null;
+   private WorkloadLane _analytics = null;
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -56,11 +125,74 @@ public class Amazon {
       System.out.print("Connecting to database...");
       try {
          // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+         // string parameters are sent untyped so the server compares them as
+         // char(n) and can use the indexes on the char(n) columns
+         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname + "?stringtype=unspecified";
          System.out.println("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // open the connection pool, the warm-up connections are physical
+         // connections made right away
+         this._pool = new ConnectionPool(url, user, passwd,
+               Integer.getInteger("amazon.pool.minIdle", 2),
+               Integer.getInteger("amazon.pool.maxSize", 10),
+               Long.getLong("amazon.pool.acquireTimeoutMillis", 5000L),
+               Long.getLong("amazon.pool.maxLifetimeMillis", 30L * 60 * 1000),
+               Long.getLong("amazon.pool.validationIntervalMillis", 30L * 1000),
+               Integer.getInteger("amazon.pool.statementCacheSize", 64));
+
+         // the order lane keeps its connections open and to itself, the
+         // analytics lane is small and its statements are cut short
+         this._orders = new WorkloadLane("orders", url, user, passwd,
+               Integer.getInteger("amazon.lane.orders.reserved", 2),
+               Integer.getInteger("amazon.lane.orders.maxConcurrent", 4),
+               Long.getLong("amazon.lane.orders.queueMillis", 5000L),
+               Long.getLong("amazon.lane.orders.statementTimeoutMillis", 5000L),
+               Integer.getInteger("amazon.pool.statementCacheSize", 64));
+         this._analytics = new WorkloadLane("analytics", url, user, passwd,
+               Integer.getInteger("amazon.lane.analytics.reserved", 0),
+               Integer.getInteger("amazon.lane.analytics.maxConcurrent", 2),
+               Long.getLong("amazon.lane.analytics.queueMillis", 1000L),
+               Long.getLong("amazon.lane.analytics.statementTimeoutMillis", 30L * 1000),
+               Integer.getInteger("amazon.pool.statementCacheSize", 64));
+
+         if (Boolean.parseBoolean(System.getProperty("amazon.metrics.jmx", "true")))
+            this._metrics.register(dbname);
+         long dumpSeconds = Long.getLong("amazon.metrics.dumpSeconds", 0L);
+         if (dumpSeconds > 0)
+            this._metrics.startDump(dumpSeconds, System.getProperty("amazon.metrics.dumpFile"));
+
+         long slowMillis = Long.getLong("amazon.slowQuery.thresholdMillis", -1L);
+         if (slowMillis >= 0)
+            this._slowLog = new SlowQueryLog(url, user, passwd, slowMillis,
+                  new File(System.getProperty("amazon.slowQuery.file", "slow_queries.log")),
+                  Long.getLong("amazon.slowQuery.maxBytes", 10L * 1024 * 1024),
+                  Integer.getInteger("amazon.slowQuery.files", 5),
+                  Long.getLong("amazon.slowQuery.explainIntervalMillis", 60L * 1000),
+                  Long.getLong("amazon.slowQuery.explainTimeoutMillis", 30L * 1000));
+
+         // replicas of the same database, as host:port,host:port
+         String replicas = System.getProperty("amazon.replicas", "").trim();
+         if (!replicas.isEmpty()) {
+            List<ConnectionPool> pools = new ArrayList<ConnectionPool>();
+            for (String replica : replicas.split(",")) {
+               String replicaUrl = "jdbc:postgresql://" + replica.trim() + "/" + dbname + "?stringtype=unspecified";
+               System.out.println("Replica URL: " + replicaUrl);
+               // no warm-up, so a replica that is down does not stop the
+               // start, and no wait: a read finding the replica busy goes
+               // to the primary instead
+               pools.add(new ConnectionPool(replicaUrl, user, passwd,
+                     0,
+                     Integer.getInteger("amazon.pool.maxSize", 10),
+                     Long.getLong("amazon.replica.acquireTimeoutMillis", 0L),
+                     Long.getLong("amazon.pool.maxLifetimeMillis", 30L * 60 * 1000),
+                     Long.getLong("amazon.pool.validationIntervalMillis", 30L * 1000),
+                     Integer.getInteger("amazon.pool.statementCacheSize", 64)));
+            }
+            this._router = new ReplicaRouter(this._pool, pools,
+                  Long.getLong("amazon.replica.maxLagMillis", 1000L),
+                  Long.getLong("amazon.replica.checkIntervalMillis", 1000L),
+                  Long.getLong("amazon.replica.readYourWritesMillis", 5000L));
+         }
          System.out.println("Done");
       } catch (Exception e) {
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -76,22 +208,961 @@ public class Amazon {
       return Math.sqrt(t1 + t2);
    }
 
+   /**
+    * Method to find the stores within a radius of a location. By default the
+    * search runs in the database on the GiST index over Store.location;
+    * with -Damazon.storeIndex=memory it uses the in-memory store grid.
+    *
+    * @param latitude  latitude of the location
+    * @param longitude longitude of the location
+    * @param radius    the search radius, in the units of calculateDistance
+    * @return the matching stores, nearest first
+    * @throws java.sql.SQLException when the lookup failed
+    */
+   public List<StoreGrid.Hit> findStoresWithin(double latitude, double longitude, double radius) throws SQLException {
+      if ("memory".equals(System.getProperty("amazon.storeIndex", "db")))
+         return storeGrid().within(latitude, longitude, radius);
+
+      // <-> is the euclidean distance between two points, the same as
+      // calculateDistance, and <@ circle is answered from the GiST index
+      String query = "SELECT storeID, location <-> point(?, ?) AS distance " +
+            "FROM Store " +
+            "WHERE location <@ circle(point(?, ?), ?) " +
+            "ORDER BY location <-> point(?, ?)";
+      return toHits(executeQueryAndReturnTable(query, latitude, longitude, latitude, longitude, radius,
+            latitude, longitude));
+   }// end findStoresWithin
+
+   /**
+    * Method to find the k stores nearest to a location. The GiST index over
+    * Store.location returns them in distance order, so only k rows are read.
+    *
+    * @param latitude  latitude of the location
+    * @param longitude longitude of the location
+    * @param k         the number of stores wanted
+    * @return the nearest stores, nearest first
+    * @throws java.sql.SQLException when the lookup failed
+    */
+   public List<StoreGrid.Hit> findNearestStores(double latitude, double longitude, int k) throws SQLException {
+      String query = "SELECT storeID, location <-> point(?, ?) AS distance " +
+            "FROM Store " +
+            "ORDER BY location <-> point(?, ?) " +
+            "LIMIT ?";
+      return toHits(executeQueryAndReturnTable(query, latitude, longitude, latitude, longitude, k));
+   }// end findNearestStores
+
+   /**
+    * Method to find the k warehouses nearest to a store.
+    *
+    * @param storeID the store
+    * @param k       the number of warehouses wanted
+    * @return pairs of warehouse ID and distance, nearest first
+    * @throws java.sql.SQLException when the lookup failed
+    */
+   public List<StoreGrid.Hit> findNearestWarehouses(int storeID, int k) throws SQLException {
+      String query = "SELECT warehouseID, location <-> (SELECT location FROM Store WHERE storeID = ?) AS distance " +
+            "FROM Warehouse " +
+            "ORDER BY location <-> (SELECT location FROM Store WHERE storeID = ?) " +
+            "LIMIT ?";
+      return toHits(executeQueryAndReturnTable(query, storeID, storeID, k));
+   }// end findNearestWarehouses
+
+   private static List<StoreGrid.Hit> toHits(ResultTable rows) {
+      List<StoreGrid.Hit> hits = new ArrayList<StoreGrid.Hit>(rows.size());
+      for (int i = 0; i < rows.size(); i++)
+         hits.add(new StoreGrid.Hit(rows.getInt(i, 0), rows.getDouble(i, 1)));
+      return hits;
+   }
+
+   /**
+    * Method to get the store grid, loading it from the Store table on first
+    * use and again once it is older than the refresh interval.
+    *
+    * @return the current store grid
+    * @throws java.sql.SQLException when loading the stores failed
+    */
+   public StoreGrid storeGrid() throws SQLException {
+      long refreshMillis = Long.getLong("amazon.storeIndex.refreshMillis", 5L * 60 * 1000);
+      StoreGrid grid = this._storeGrid;
+      if (grid != null && System.currentTimeMillis() - grid.builtAt() < refreshMillis)
+         return grid;
+      this._storeGridLock.lock();
+      try {
+         grid = this._storeGrid;
+         if (grid == null || System.currentTimeMillis() - grid.builtAt() >= refreshMillis) {
+            ResultTable stores;
+            ReplicaRouter.Route primary = primaryRoute();
+            try {
+               stores = executeQueryAndReturnTable("SELECT storeID, latitude, longitude FROM Store");
+            } finally {
+               closeRoute(primary);
+            }
+            int n = stores.size();
+            int[] storeIDs = new int[n];
+            double[] lat = new double[n];
+            double[] lng = new double[n];
+            for (int i = 0; i < n; i++) {
+               storeIDs[i] = stores.getInt(i, 0);
+               lat[i] = stores.getDouble(i, 1);
+               lng[i] = stores.getDouble(i, 2);
+            }
+            grid = new StoreGrid(storeIDs, lat, lng,
+                  Double.parseDouble(System.getProperty("amazon.storeIndex.cellSize", "30")));
+            this._storeGrid = grid;
+         }
+         return grid;
+      } finally {
+         this._storeGridLock.unlock();
+      }
+   }// end storeGrid
+
+   // placeOrder results that are not an order number
+   public static final int ORDER_OUT_OF_STOCK = -1;
+   public static final int ORDER_NO_SUCH_PRODUCT = -2;
+
+   /**
+    * Method to place an order. The stock decrement and the Orders insert are
+    * a single statement, so they commit or fail together, and the decrement
+    * only happens when the store has enough units: concurrent buyers wait on
+    * the product row and re-check the stock once they get it, so it can
+    * never go negative.
+    *
+    * @param customerID   the customer placing the order
+    * @param storeID      the store ordered from
+    * @param productName  the product ordered
+    * @param unitsOrdered the number of units, at least 1
+    * @return the new order number, ORDER_OUT_OF_STOCK when the store does not
+    *         have enough units, or ORDER_NO_SUCH_PRODUCT when the store does
+    *         not sell the product
+    * @throws java.sql.SQLException when the order could not be placed
+    */
+   public int submitOrder(int customerID, int storeID, String productName, int unitsOrdered) throws SQLException {
+      if (unitsOrdered < 1)
+         throw new IllegalArgumentException("unitsOrdered must be at least 1");
+      String query = "WITH stock AS ( " +
+            "UPDATE Product " +
+            "SET numberOfUnits = numberOfUnits - ? " +
+            "WHERE storeID = ? AND productName = ? AND numberOfUnits >= ? " +
+            "RETURNING storeID, productName) " +
+            "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) " +
+            "SELECT ?, storeID, productName, ?, CURRENT_TIMESTAMP FROM stock " +
+            "RETURNING orderNumber, orderTime";
+      ResultTable order;
+      WorkloadLane.Scope lane = this._orders.enter();
+      try {
+         order = executeQueryAndReturnTable(query, unitsOrdered, storeID, productName, unitsOrdered,
+               customerID, unitsOrdered);
+      } finally {
+         lane.close();
+      }
+      if (order.size() > 0) {
+         int orderNumber = order.getInt(0, 0);
+         orderPlaced(orderNumber, customerID, storeID, productName, unitsOrdered, order.getTimestamp(0, 1));
+         return orderNumber;
+      }
+
+      // nothing was ordered, find out why. Only the failure path pays for this.
+      String checkQuery = "SELECT 1 FROM Product WHERE storeID = ? AND productName = ?";
+      return executeQuery(checkQuery, storeID, productName) == 0 ? ORDER_NO_SUCH_PRODUCT : ORDER_OUT_OF_STOCK;
+   }// end submitOrder
+
+   /**
+    * Method to check out a multi-item cart in one transaction. Every line's
+    * stock is decremented with one JDBC batch of conditional updates, then
+    * every order row is written by one multi-row INSERT, so the number of
+    * round trips does not grow with the size of the cart. If any line lacks
+    * stock or does not exist, nothing is ordered.
+    *
+    * @param customerID the customer placing the orders
+    * @param cart       the lines to order
+    * @return the order numbers, or the line that was rejected and why
+    * @throws java.sql.SQLException when the checkout failed
+    */
+   public Cart.Receipt checkout(int customerID, Cart cart) throws SQLException {
+      List<Cart.Line> lines = cart.lines();
+      if (lines.isEmpty())
+         return new Cart.Receipt(new int[0]);
+      if (lines.size() == 1) {
+         Cart.Line line = lines.get(0);
+         int orderNumber = submitOrder(customerID, line.storeID, line.productName, line.units);
+         return orderNumber < 0 ? new Cart.Receipt(line, orderNumber) : new Cart.Receipt(new int[] { orderNumber });
+      }
+
+      // lock the product rows in a fixed order so two carts sharing
+      // products cannot deadlock
+      List<Cart.Line> lockOrder = new ArrayList<Cart.Line>(lines);
+      lockOrder.sort((a, b) -> a.storeID != b.storeID ? Integer.compare(a.storeID, b.storeID)
+            : a.productName.compareTo(b.productName));
+
+      String stockQuery = "UPDATE Product " +
+            "SET numberOfUnits = numberOfUnits - ? " +
+            "WHERE storeID = ? AND productName = ? AND numberOfUnits >= ?";
+
+      StringBuilder orderQuery = new StringBuilder(
+            "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) VALUES ");
+      Object[] orderParams = new Object[lines.size() * 4];
+      Object[] stockParams = new Object[lockOrder.size() * 4];
+      for (int i = 0; i < lockOrder.size(); i++) {
+         Cart.Line line = lockOrder.get(i);
+         stockParams[i * 4] = line.units;
+         stockParams[i * 4 + 1] = line.storeID;
+         stockParams[i * 4 + 2] = line.productName;
+         stockParams[i * 4 + 3] = line.units;
+      }
+      for (int i = 0; i < lines.size(); i++) {
+         Cart.Line line = lines.get(i);
+         orderQuery.append(i == 0 ? "" : ", ").append("(?, ?, ?, ?, CURRENT_TIMESTAMP)");
+         orderParams[i * 4] = customerID;
+         orderParams[i * 4 + 1] = line.storeID;
+         orderParams[i * 4 + 2] = line.productName;
+         orderParams[i * 4 + 3] = line.units;
+      }
+      // the rows come back in no particular order, the store and product
+      // tell which line each one is
+      orderQuery.append(" RETURNING orderNumber, orderTime, storeID, productName");
+
+      Cart.Line rejected = null;
+      int[] orderNumbers = null;
+      Timestamp orderTime = null;
+      WorkloadLane.Scope lane = this._orders.enter();
+      ConnectionPool.PooledConnection pc = null;
+      SQLException failure = null;
+      try {
+         pc = acquire(stockQuery);
+         pc.connection().setAutoCommit(false);
+
+         PreparedStatement stock = pc.statements().prepare(stockQuery);
+         int[] counts = new int[0];
+         long start = System.nanoTime();
+         try {
+            for (int i = 0; i < lockOrder.size(); i++) {
+               StatementCache.bind(stock, Arrays.copyOfRange(stockParams, i * 4, i * 4 + 4));
+               stock.addBatch();
+            }
+            counts = stock.executeBatch();
+         } catch (SQLException e) {
+            executed(stockQuery, stockParams, start, 0, 0, 1, e);
+            throw e;
+         } finally {
+            stock.clearBatch();
+            pc.statements().done(stockQuery, stock);
+         }
+         long updated = 0;
+         for (int count : counts)
+            updated += count;
+         executed(stockQuery, stockParams, start, updated, 0, 1, null);
+         for (int i = 0; i < counts.length && rejected == null; i++) {
+            if (counts[i] == 0)
+               rejected = lockOrder.get(i);
+         }
+
+         if (rejected != null) {
+            pc.connection().rollback();
+         } else {
+            String sql = orderQuery.toString();
+            PreparedStatement orders = pc.statements().prepare(sql);
+            start = System.nanoTime();
+            try {
+               StatementCache.bind(orders, orderParams);
+               ResultSet rs = orders.executeQuery();
+               ResultTable result = new ResultTable(rs);
+               rs.close();
+               executed(sql, orderParams, start, result.size(), result.bytes(), 1, null);
+               orderNumbers = new int[lines.size()];
+               for (int row = 0; row < result.size(); row++) {
+                  int storeID = result.getInt(row, 2);
+                  String productName = result.getString(row, 3).trim();
+                  for (int i = 0; i < lines.size(); i++) {
+                     Cart.Line line = lines.get(i);
+                     if (line.storeID == storeID && line.productName.equals(productName))
+                        orderNumbers[i] = result.getInt(row, 0);
+                  }
+               }
+               // CURRENT_TIMESTAMP is the same for the whole transaction
+               orderTime = result.getTimestamp(0, 1);
+            } catch (SQLException e) {
+               executed(sql, orderParams, start, 0, 0, 1, e);
+               throw e;
+            } finally {
+               pc.statements().done(sql, orders);
+            }
+            pc.connection().commit();
+            if (this._router != null)
+               this._router.executed(pc, sql);
+         }
+      } catch (SQLException e) {
+         failure = e;
+         throw e;
+      } finally {
+         if (pc != null)
+            release(pc, failure);
+         lane.close();
+      }
+
+      if (rejected == null) {
+         for (int i = 0; i < orderNumbers.length; i++) {
+            Cart.Line line = lines.get(i);
+            orderPlaced(orderNumbers[i], customerID, line.storeID, line.productName, line.units, orderTime);
+         }
+         return new Cart.Receipt(orderNumbers);
+      }
+      String checkQuery = "SELECT 1 FROM Product WHERE storeID = ? AND productName = ?";
+      return new Cart.Receipt(rejected, executeQuery(checkQuery, rejected.storeID, rejected.productName) == 0
+            ? ORDER_NO_SUCH_PRODUCT
+            : ORDER_OUT_OF_STOCK);
+   }// end checkout
+
+   /**
+    * Method to bring the in-memory order summaries up to date after an
+    * order was committed.
+    */
+   private void orderPlaced(int orderNumber, int customerID, int storeID, String productName, int unitsOrdered,
+         Timestamp orderTime) {
+      RecentOrders.Order order = new RecentOrders.Order(orderNumber, customerID, storeID, productName,
+            unitsOrdered, orderTime);
+      // before the bootstrap there is nothing to update, it will read the
+      // order from the table
+      this._pendingProducts.placed(order, this::addPopularProduct);
+      this._pendingCustomers.placed(order, this::addPopularCustomer);
+      this._catalog.adjustUnits(storeID, productName, -unitsOrdered);
+      this._storeOrders.add(storeID, order);
+      this._customerOrders.add(customerID, order);
+   }// end orderPlaced
+
+   /**
+    * Method to check a user's credentials. The profile and the managed
+    * stores are read by the same query, through the login and manager
+    * indexes, so logging in is one round trip and the menus need none to
+    * find the user's stores.
+    *
+    * @param name     the user name
+    * @param password the password
+    * @return the session, or null when the credentials do not match a user
+    * @throws java.sql.SQLException when the query failed
+    */
+   public Session logIn(String name, String password) throws SQLException {
+      String query = "SELECT U.userID, U.type, U.latitude, U.longitude, S.storeID " +
+            "FROM Users U " +
+            "LEFT JOIN Store S ON S.managerID = U.userID " +
+            "WHERE U.name = ? AND U.password = ? " +
+            "ORDER BY U.userID, S.storeID";
+      ResultTable thing = executeQueryAndReturnTable(query, name, password);
+      if (thing.size() == 0)
+         return null;
+
+      // should two users share a name and password, the first one wins
+      int userID = thing.getInt(0, 0);
+      List<Integer> managedStores = new ArrayList<Integer>();
+      for (int i = 0; i < thing.size() && thing.getInt(i, 0) == userID; i++) {
+         if (!thing.isNull(i, 4))
+            managedStores.add(thing.getInt(i, 4));
+      }
+      return new Session(userID, name, thing.getString(0, 1), thing.getDouble(0, 2), thing.getDouble(0, 3),
+            managedStores);
+   }// end logIn
+
+   /**
+    * Method to get the products of a store, from the catalog cache when the
+    * store was browsed recently.
+    *
+    * @param storeID the store
+    * @return the products, in table order. The list must not be modified.
+    * @throws java.sql.SQLException when the query failed
+    */
+   public List<CatalogCache.Product> findProducts(int storeID) throws SQLException {
+      List<CatalogCache.Product> products = this._catalog.get(storeID);
+      if (products != null)
+         return products;
+
+      long version = this._catalog.version(storeID);
+      String query = "SELECT productName, numberOfUnits, pricePerUnit FROM Product WHERE storeID = ?";
+      List<CatalogCache.Product> loaded = new ArrayList<CatalogCache.Product>();
+      ReplicaRouter.Route primary = primaryRoute();
+      try {
+         executeQueryAndStream(query, rs -> {
+            loaded.add(new CatalogCache.Product(rs.getString(1), rs.getInt(2), rs.getDouble(3)));
+         }, storeID);
+      } finally {
+         closeRoute(primary);
+      }
+      this._catalog.put(storeID, loaded, version);
+      return Collections.unmodifiableList(loaded);
+   }// end findProducts
+
+   /**
+    * Method to look up one product of a store through its cached catalog
+    *
+    * @param storeID     the store
+    * @param productName the product
+    * @return the product, or null when the store does not sell it
+    * @throws java.sql.SQLException when the catalog had to be read and failed
+    */
+   public CatalogCache.Product findProduct(int storeID, String productName) throws SQLException {
+      CatalogCache.Product product = this._catalog.find(storeID, productName);
+      if (product != null)
+         return product;
+      String name = productName.trim();
+      for (CatalogCache.Product p : findProducts(storeID)) {
+         if (p.productName.equals(name))
+            return p;
+      }
+      return null;
+   }// end findProduct
+
+   /**
+    * Method to set the stock and price of a product
+    *
+    * @return the number of products updated, 0 when there is no such product
+    * @throws java.sql.SQLException when the update failed
+    */
+   public int setProduct(int storeID, String productName, int numberOfUnits, double pricePerUnit) throws SQLException {
+      String query = "UPDATE Product " +
+            "SET numberOfUnits = ?, pricePerUnit = ? " +
+            "WHERE storeID = ? " +
+            "AND productName = ?";
+      int rows = executeUpdate(query, numberOfUnits, pricePerUnit, storeID, productName);
+      this._catalog.set(storeID, productName, numberOfUnits, pricePerUnit);
+      return rows;
+   }// end setProduct
+
+   /**
+    * Method to record a supply request and add the units to the store's
+    * stock. Both happen in one statement, so they commit or fail together.
+    *
+    * @return the number of products restocked, 0 when there is no such
+    *         product, in which case no request is recorded
+    * @throws java.sql.SQLException when the request failed
+    */
+   public int submitSupplyRequest(int managerID, int warehouseID, int storeID, String productName,
+         int unitsRequested) throws SQLException {
+      String query = "WITH stock AS ( " +
+            "UPDATE Product " +
+            "SET numberOfUnits = numberOfUnits + ? " +
+            "WHERE storeID = ? AND productName = ? " +
+            "RETURNING storeID, productName) " +
+            "INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) " +
+            "SELECT ?, ?, storeID, productName, ? FROM stock";
+      int rows = executeUpdate(query, unitsRequested, storeID, productName, managerID, warehouseID,
+            unitsRequested);
+      if (rows > 0)
+         this._catalog.adjustUnits(storeID, productName, unitsRequested);
+      return rows;
+   }// end submitSupplyRequest
+
+   /**
+    * @return the hit rate and eviction count of the catalog cache
+    */
+   public String catalogStats() {
+      return this._catalog.stats();
+   }
+
+   /**
+    * Method to get the 5 latest orders of a store. A store is read from
+    * Orders the first time it is asked for and after it was evicted.
+    *
+    * @param storeID the store
+    * @return the orders, newest first
+    * @throws java.sql.SQLException when the query failed
+    */
+   public List<RecentOrders.Order> findRecentStoreOrders(int storeID) throws SQLException {
+      return recentOrders(this._storeOrders, "storeID", storeID);
+   }// end findRecentStoreOrders
+
+   /**
+    * Method to get the 5 latest orders of a customer. A customer is read
+    * from Orders the first time it is asked for and after it was evicted.
+    *
+    * @param customerID the customer
+    * @return the orders, newest first
+    * @throws java.sql.SQLException when the query failed
+    */
+   public List<RecentOrders.Order> findRecentCustomerOrders(int customerID) throws SQLException {
+      return recentOrders(this._customerOrders, "customerID", customerID);
+   }// end findRecentCustomerOrders
+
+   private List<RecentOrders.Order> recentOrders(RecentOrders cache, String column, int key) throws SQLException {
+      List<RecentOrders.Order> orders = cache.get(key);
+      if (orders != null)
+         return orders;
+
+      long generation = cache.begin(key);
+      String query = "SELECT orderNumber, customerID, storeID, productName, unitsOrdered, orderTime " +
+            "FROM Orders " +
+            "WHERE " + column + " = ? " +
+            "ORDER BY orderTime DESC, orderNumber DESC " +
+            "LIMIT 5";
+      List<RecentOrders.Order> loaded = new ArrayList<RecentOrders.Order>();
+      ReplicaRouter.Route primary = primaryRoute();
+      try {
+         executeQueryAndStream(query, rs -> loaded.add(toOrder(rs)), key);
+      } finally {
+         closeRoute(primary);
+      }
+      cache.load(key, loaded, generation);
+      return loaded;
+   }// end recentOrders
+
+   private static RecentOrders.Order toOrder(ResultSet rs) throws SQLException {
+      return new RecentOrders.Order(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getString(4), rs.getInt(5),
+            rs.getTimestamp(6));
+   }
+
+   /**
+    * @return the hit, miss and eviction counts of the recent order buffers
+    */
+   public String recentOrdersStats() {
+      return "stores: " + this._storeOrders.stats() + " customers: " + this._customerOrders.stats();
+   }
+
+   /**
+    * Method to get the products of a store with the most units ordered. The
+    * answer is precomputed: the totals are read from Orders once and then
+    * maintained by every order placed, so this does not depend on the size
+    * of the order history. Orders placed by other processes are only seen
+    * by their own process. While the totals cannot be read, the store's
+    * orders are aggregated instead.
+    *
+    * @param storeID the store
+    * @return the top 5 products, most units first
+    * @throws java.sql.SQLException when the store's orders could not be read
+    */
+   public List<PopularProducts.Entry> findPopularProducts(int storeID) throws SQLException {
+      if (!this._pendingProducts.loaded() && System.currentTimeMillis() >= this._popularProductsRetryAt) {
+         this._popularProductsLoading.lock();
+         try {
+            if (!this._pendingProducts.loaded() && System.currentTimeMillis() >= this._popularProductsRetryAt) {
+               String query = "SELECT storeID, productName, SUM(unitsOrdered) " +
+                     "FROM Orders " +
+                     "GROUP BY storeID, productName";
+               try {
+                  for (RecentOrders.Order order : loadSnapshot(query, rs -> {
+                     this._popularProducts.add(rs.getInt(1), rs.getString(2), rs.getLong(3));
+                  }, this._pendingProducts))
+                     addPopularProduct(order);
+               } catch (SQLException e) {
+                  // timed out or failed part way, start over later
+                  this._pendingProducts.abort(this._popularProducts::clear);
+                  this._popularProductsRetryAt = System.currentTimeMillis()
+                        + Long.getLong("amazon.popular.bootstrapRetryMillis", 60L * 1000);
+                  System.err.println("Popular products bootstrap failed: " + e.getMessage());
+               }
+            }
+         } finally {
+            this._popularProductsLoading.unlock();
+         }
+      }
+      if (this._pendingProducts.loaded())
+         return this._popularProducts.top(storeID);
+
+      String query = "SELECT productName, SUM(unitsOrdered) AS units " +
+            "FROM Orders " +
+            "WHERE storeID = ? " +
+            "GROUP BY productName " +
+            "ORDER BY units DESC, productName " +
+            "LIMIT 5";
+      List<PopularProducts.Entry> top = new ArrayList<PopularProducts.Entry>();
+      WorkloadLane.Scope lane = this._analytics.enter();
+      try {
+         executeQueryAndStream(query, rs -> {
+            top.add(new PopularProducts.Entry(rs.getString(1).trim(), rs.getLong(2)));
+         }, storeID);
+      } finally {
+         lane.close();
+      }
+      return top;
+   }// end findPopularProducts
+
+   private void addPopularProduct(RecentOrders.Order order) {
+      this._popularProducts.add(order.storeID, order.productName, order.unitsOrdered);
+   }
+
+   /**
+    * Method to bootstrap an in-memory summary from Orders without losing
+    * the orders placed meanwhile. The query is streamed in a REPEATABLE READ
+    * transaction on the primary, and the orders placed through this process
+    * since pending.start() are checked against the same snapshot.
+    *
+    * An order placed before start() is in the snapshot; its orderPlaced()
+    * follows its commit immediately, while the snapshot is taken after
+    * start() and the summary marked loaded only once the query is done.
+    *
+    * The bootstrap reads the whole order history once, so it runs on the
+    * shared pool rather than in the analytics lane, whose statement_timeout
+    * is meant for one report. Its own limit is
+    * amazon.popular.bootstrapTimeoutMillis, none by default.
+    *
+    * @param query   the bootstrap query over Orders
+    * @param handler the callback invoked once per row
+    * @param pending the orders of the summary, started here and finished
+    *                once the query is done
+    * @return the orders placed meanwhile that the snapshot did not see, to
+    *         be added to the summary
+    * @throws java.sql.SQLException when the bootstrap failed; abort pending
+    */
+   private List<RecentOrders.Order> loadSnapshot(String query, RowHandler handler, PendingOrders pending)
+         throws SQLException {
+      pending.start();
+      // the snapshot and the orders placed are compared on the primary
+      ReplicaRouter.Route primary = primaryRoute();
+      ConnectionPool.PooledConnection pc = null;
+      SQLException failure = null;
+      long start = System.nanoTime();
+      int rowCount = 0;
+      try {
+         pc = acquire(query);
+         pc.connection().setAutoCommit(false);
+         pc.connection().setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+         long timeoutMillis = Long.getLong("amazon.popular.bootstrapTimeoutMillis", 0L);
+         if (timeoutMillis > 0) {
+            // until the end of the transaction
+            try (Statement set = pc.connection().createStatement()) {
+               set.execute("SET LOCAL statement_timeout = " + timeoutMillis);
+            }
+         }
+         PreparedStatement stmt = pc.statements().prepare(query);
+         try {
+            stmt.setFetchSize(Integer.getInteger("amazon.fetchSize", 500));
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+               handler.handle(rs);
+               rowCount++;
+            }
+            rs.close();
+         } finally {
+            stmt.setFetchSize(0);
+            pc.statements().done(query, stmt);
+         }
+         executed(query, null, start, rowCount, 0, 1, null);
+
+         List<RecentOrders.Order> placed = pending.finish();
+         List<RecentOrders.Order> missed = new ArrayList<RecentOrders.Order>();
+         if (!placed.isEmpty()) {
+            // one statement shape however many orders were placed
+            String sql = "SELECT orderNumber FROM Orders WHERE orderNumber = ANY (?)";
+            Integer[] numbers = new Integer[placed.size()];
+            for (int i = 0; i < numbers.length; i++)
+               numbers[i] = placed.get(i).orderNumber;
+            Set<Integer> seen = new HashSet<Integer>();
+            start = System.nanoTime();
+            PreparedStatement check = pc.statements().prepare(sql);
+            try {
+               check.setArray(1, pc.connection().createArrayOf("integer", numbers));
+               ResultSet rs = check.executeQuery();
+               while (rs.next())
+                  seen.add(rs.getInt(1));
+               rs.close();
+            } finally {
+               pc.statements().done(sql, check);
+            }
+            executed(sql, null, start, seen.size(), 0, 1, null);
+            for (RecentOrders.Order order : placed) {
+               if (!seen.contains(order.orderNumber))
+                  missed.add(order);
+            }
+         }
+         pc.connection().commit();
+         return missed;
+      } catch (SQLException e) {
+         failure = e;
+         if (pc != null)
+            executed(query, null, start, rowCount, 0, 1, e);
+         throw e;
+      } finally {
+         if (pc != null) {
+            try {
+               // the isolation cannot change inside the failed transaction
+               if (failure != null)
+                  pc.connection().rollback();
+               pc.connection().setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            } catch (SQLException e) {
+               pc.markBroken();
+            }
+            release(pc, failure);
+         }
+         closeRoute(primary);
+      }
+   }// end loadSnapshot
+
+   /**
+    * Method to get the customers of a store with the most orders. The
+    * answer comes from the heavy-hitter summary when it is guaranteed to
+    * hold the true top customers, and only their names are read from Users.
+    * Otherwise, while the summary cannot be read, or with
+    * -Damazon.popularCustomers.exact=true, the counts are recomputed from
+    * Orders.
+    *
+    * @param storeID the store
+    * @return customer_name, order_count and max_error (how much order_count
+    *         may overcount, 0 when exact) of the top 5, most orders first
+    * @throws java.sql.SQLException when a query failed
+    */
+   public ResultTable findPopularCustomers(int storeID) throws SQLException {
+      if (!Boolean.getBoolean("amazon.popularCustomers.exact")) {
+         if (!this._pendingCustomers.loaded() && System.currentTimeMillis() >= this._popularCustomersRetryAt) {
+            this._popularCustomersLoading.lock();
+            try {
+               if (!this._pendingCustomers.loaded()
+                     && System.currentTimeMillis() >= this._popularCustomersRetryAt) {
+                  String query = "SELECT storeID, customerID, COUNT(*) " +
+                        "FROM Orders " +
+                        "GROUP BY storeID, customerID";
+                  try {
+                     for (RecentOrders.Order order : loadSnapshot(query, rs -> {
+                        this._popularCustomers.add(rs.getInt(1), rs.getInt(2), rs.getLong(3));
+                     }, this._pendingCustomers))
+                        addPopularCustomer(order);
+                  } catch (SQLException e) {
+                     // timed out or failed part way, start over later
+                     this._pendingCustomers.abort(this._popularCustomers::clear);
+                     this._popularCustomersRetryAt = System.currentTimeMillis()
+                           + Long.getLong("amazon.popular.bootstrapRetryMillis", 60L * 1000);
+                     System.err.println("Popular customers bootstrap failed: " + e.getMessage());
+                  }
+               }
+            } finally {
+               this._popularCustomersLoading.unlock();
+            }
+         }
+
+         // null while the summary cannot be read
+         HeavyHitters.Answer answer = this._pendingCustomers.loaded() ? this._popularCustomers.top(storeID, 5) : null;
+         if (answer != null && answer.guaranteed && !answer.top.isEmpty()) {
+            // the counts travel with the IDs so the order is kept
+            StringBuilder values = new StringBuilder();
+            Object[] params = new Object[answer.top.size() * 4];
+            for (int i = 0; i < answer.top.size(); i++) {
+               HeavyHitters.Counter c = answer.top.get(i);
+               values.append(i == 0 ? "" : ", ").append("(?, ?, ?, ?)");
+               params[i * 4] = c.key;
+               params[i * 4 + 1] = c.count;
+               params[i * 4 + 2] = c.error;
+               params[i * 4 + 3] = i;
+            }
+            String query = "SELECT U.name AS customer_name, V.cnt AS order_count, V.err AS max_error " +
+                  "FROM (VALUES " + values + ") AS V(id, cnt, err, rank) " +
+                  "JOIN Users U ON U.userID = V.id " +
+                  "ORDER BY V.rank";
+            return executeQueryAndReturnTable(query, params);
+         }
+      }
+
+      // the exact counts group the store's whole order history
+
+      String query = "SELECT U.name AS customer_name, COUNT(O.customerID) AS order_count, 0 AS max_error " +
+            "FROM Orders O " +
+            "JOIN Users U ON O.customerID = U.userID " +
+            "WHERE O.storeID = ? " +
+            "GROUP BY O.customerID, U.name " +
+            "ORDER BY order_count DESC " +
+            "LIMIT 5";
+      WorkloadLane.Scope lane = this._analytics.enter();
+      try {
+         return executeQueryAndReturnTable(query, storeID);
+      } finally {
+         lane.close();
+      }
+   }// end findPopularCustomers
+
+   private void addPopularCustomer(RecentOrders.Order order) {
+      this._popularCustomers.add(order.storeID, order.customerID, 1);
+   }
+
+   /**
+    * @return the hit and miss counts of the popular customer summary
+    */
+   public String popularCustomersStats() {
+      return this._popularCustomers.stats();
+   }
+
+   /**
+    * Method to borrow a connection from the pool. Every borrowed connection
+    * has to be handed back through release().
+    *
+    * @return a pooled connection
+    * @throws java.sql.SQLException when no connection became available in time
+    */
+   public ConnectionPool.PooledConnection acquire() throws SQLException {
+      return this._pool.acquire();
+   }// end acquire
+
+   // borrows a connection for one statement. The router goes first: a read
+   // of a read-only route runs on a replica when one is fresh enough for
+   // the user, so the reports (menu 7 and 8, GET /popular/*) leave the
+   // primary to the orders. Those reads are outside their lane, the
+   // replica's pool bounds them. Everything else runs on the primary, on
+   // the lane the thread is in, else on the shared pool. The caches pin
+   // their loads to the primary with primaryRoute().
+   private ConnectionPool.PooledConnection acquire(String sql) throws SQLException {
+      if (this._router != null) {
+         ConnectionPool.PooledConnection pc = this._router.acquireReplica(sql);
+         if (pc != null)
+            return pc;
+      }
+      if (this._analytics.entered())
+         return this._analytics.pool().acquire();
+      if (this._orders.entered())
+         return this._orders.pool().acquire();
+      return this._pool.acquire();
+   }
+
+   /**
+    * Method to hand a borrowed connection back to the pool.
+    *
+    * @param pc     the connection obtained from acquire()
+    * @param failure the exception raised while using it, or null
+    */
+   public void release(ConnectionPool.PooledConnection pc, SQLException failure) {
+      // SQLSTATE class 08 is a connection exception, the connection is not
+      // worth reusing after one of those
+      if (failure != null && failure.getSQLState() != null && failure.getSQLState().startsWith("08"))
+         pc.markBroken();
+      if (failure != null && pc.pool() == this._analytics.pool())
+         this._analytics.failed(failure);
+      else if (failure != null && pc.pool() == this._orders.pool())
+         this._orders.failed(failure);
+      pc.pool().release(pc);
+   }// end release
+
+   // hands back the connection a statement ran on, noting a successful write
+   // for the user's later reads
+   private void release(ConnectionPool.PooledConnection pc, String sql, SQLException failure) {
+      if (failure == null && this._router != null)
+         this._router.executed(pc, sql);
+      release(pc, failure);
+   }
+
+   /**
+    * @return the pool counters, used by the status output
+    */
+   public String poolStats() {
+      return this._pool.stats();
+   }
+
+   /**
+    * @return the per-statement latency and error metrics
+    */
+   public StatementMetrics statementMetrics() {
+      return this._metrics;
+   }
+
+   /**
+    * @return the slow query log counters, or null when it is off
+    */
+   public String slowQueryStats() {
+      return this._slowLog == null ? null : this._slowLog.stats();
+   }
+
+   /**
+    * Opens a route on this thread, until it is closed: the reads that follow
+    * may go to a replica when readOnly, and the writes are remembered so the
+    * user reads them back.
+    *
+    * @param userID   the user acting
+    * @param readOnly whether the action only reads
+    * @return the route, or null without replicas
+    */
+   public ReplicaRouter.Route route(int userID, boolean readOnly) {
+      return this._router == null ? null : this._router.route(userID, readOnly);
+   }
+
+   // keeps the reads that follow on the primary: the caches are loaded from
+   // there, and kept current by the writes from there on
+   private ReplicaRouter.Route primaryRoute() {
+      return route(0, false);
+   }
+
+   // closes a route from route(), which is null without replicas
+   private static void closeRoute(ReplicaRouter.Route route) {
+      if (route != null)
+         route.close();
+   }
+
+   /**
+    * Cancels the manager reports running, in every session. Their callers
+    * get an SQLException with SQLSTATE 57014.
+    *
+    * @return the statements cancelled
+    */
+   public int cancelAnalytics() {
+      return this._analytics.cancel();
+   }
+
+   /**
+    * @return the counters of the order and analytics lanes
+    */
+   public String laneStats() {
+      return this._orders.stats() + " " + this._analytics.stats();
+   }
+
+   /**
+    * @return the reads sent to each replica and kept on the primary, or null
+    *         without replicas
+    */
+   public String replicaStats() {
+      return this._router == null ? null : this._router.stats();
+   }
+
+   /**
+    * Opens a span that the statements run on this thread are charged to,
+    * until it is closed.
+    *
+    * @param operation the user action, e.g. "placeOrder"
+    * @return the span
+    */
+   public OperationTracer.Span startSpan(String operation) {
+      return this._tracer.start(operation);
+   }
+
+   /**
+    * @return the round trips, rows and time per user action
+    */
+   public OperationTracer tracer() {
+      return this._tracer;
+   }
+
+   // charges one statement execution to the statement metrics and to the
+   // spans open on this thread, and logs it when it was slow
+   private void executed(String sql, Object[] params, long start, long rows, long bytes, int roundTrips,
+         SQLException failure) {
+      this._metrics.record(sql, start, rows, bytes, failure);
+      this._tracer.statement(sql, params, rows, roundTrips);
+      if (this._slowLog != null)
+         this._slowLog.executed(sql, params, System.nanoTime() - start);
+   }
+
    /**
     * Method to execute an update SQL statement. Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * @param sql    the input SQL string, with '?' placeholders for values
+    * @param params the values bound to the placeholders
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate(String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
-
-      // issues the update instruction
-      stmt.executeUpdate(sql);
+   public int executeUpdate(String sql, Object... params) throws SQLException {
+      ConnectionPool.PooledConnection pc = acquire(sql);
+      SQLException failure = null;
+      long start = System.nanoTime();
+      int rowCount = 0;
+      try {
+         // fetches the prepared statement for this query shape
+         PreparedStatement stmt = pc.statements().prepare(sql);
+         try {
+            StatementCache.bind(stmt, params);
 
-      // close the instruction
-      stmt.close();
+            // issues the update instruction
+            rowCount = stmt.executeUpdate();
+            return rowCount;
+         } finally {
+            pc.statements().done(sql, stmt);
+         }
+      } catch (SQLException e) {
+         failure = e;
+         throw e;
+      } finally {
+         executed(sql, params, start, rowCount, 0, 1, failure);
+         release(pc, sql, failure);
+      }
    }// end executeUpdate
 
    /**
@@ -99,42 +1170,63 @@ public class Amazon {
     * method issues the query to the DBMS and outputs the results to
     * standard out.
     *
-    * @param query the input query string
+    * @param query  the input query string, with '?' placeholders for values
+    * @param params the values bound to the placeholders
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
-
-      /*
-       ** obtains the metadata object for the returned result set. The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData();
-      int numCol = rsmd.getColumnCount();
+   public int executeQueryAndPrintResult(String query, Object... params) throws SQLException {
+      ConnectionPool.PooledConnection pc = acquire(query);
+      SQLException failure = null;
+      long start = System.nanoTime();
       int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()) {
-         if (outputHeader) {
-            for (int i = 1; i <= numCol; i++) {
-               System.out.print(rsmd.getColumnName(i) + "\t");
-            }
-            System.out.println();
-            outputHeader = false;
+      long bytes = 0;
+      try {
+         // fetches the prepared statement for this query shape
+         PreparedStatement stmt = pc.statements().prepare(query);
+         try {
+            StatementCache.bind(stmt, params);
+
+            // issues the query instruction
+            ResultSet rs = stmt.executeQuery();
+
+            /*
+             ** obtains the metadata object for the returned result set. The metadata
+             ** contains row and column info.
+             */
+            ResultSetMetaData rsmd = rs.getMetaData();
+            int numCol = rsmd.getColumnCount();
+
+            // iterates through the result set and output them to standard out.
+            boolean outputHeader = true;
+            while (rs.next()) {
+               if (outputHeader) {
+                  for (int i = 1; i <= numCol; i++) {
+                     System.out.print(rsmd.getColumnName(i) + "\t");
+                  }
+                  System.out.println();
+                  outputHeader = false;
+               }
+               for (int i = 1; i <= numCol; ++i) {
+                  String value = rs.getString(i);
+                  bytes += value == null ? 0 : value.length();
+                  System.out.print(value + "\t");
+               }
+               System.out.println();
+               ++rowCount;
+            } // end while
+            rs.close();
+            return rowCount;
+         } finally {
+            pc.statements().done(query, stmt);
          }
-         for (int i = 1; i <= numCol; ++i)
-            System.out.print(rs.getString(i) + "\t");
-         System.out.println();
-         ++rowCount;
-      } // end while
-      stmt.close();
-      return rowCount;
+      } catch (SQLException e) {
+         failure = e;
+         throw e;
+      } finally {
+         executed(query, params, start, rowCount, bytes, 1, failure);
+         release(pc, query, failure);
+      }
    }// end executeQuery
 
    /**
@@ -142,61 +1234,218 @@ public class Amazon {
     * method issues the query to the DBMS and returns the results as
     * a list of records. Each record in turn is a list of attribute values
     *
-    * @param query the input query string
+    * @param query  the input query string, with '?' placeholders for values
+    * @param params the values bound to the placeholders
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
+   public List<List<String>> executeQueryAndReturnResult(String query, Object... params) throws SQLException {
+      ConnectionPool.PooledConnection pc = acquire(query);
+      SQLException failure = null;
+      long start = System.nanoTime();
+      int rowCount = 0;
+      long bytes = 0;
+      try {
+         // fetches the prepared statement for this query shape
+         PreparedStatement stmt = pc.statements().prepare(query);
+         try {
+            StatementCache.bind(stmt, params);
+
+            // issues the query instruction
+            ResultSet rs = stmt.executeQuery();
+
+            /*
+             ** obtains the metadata object for the returned result set. The metadata
+             ** contains row and column info.
+             */
+            ResultSetMetaData rsmd = rs.getMetaData();
+            int numCol = rsmd.getColumnCount();
+
+            // iterates through the result set and saves the data returned by the query.
+            List<List<String>> result = new ArrayList<List<String>>();
+            while (rs.next()) {
+               List<String> record = new ArrayList<String>();
+               for (int i = 1; i <= numCol; ++i) {
+                  String value = rs.getString(i);
+                  bytes += value == null ? 0 : value.length();
+                  record.add(value);
+               }
+               result.add(record);
+            } // end while
+            rs.close();
+            rowCount = result.size();
+            return result;
+         } finally {
+            pc.statements().done(query, stmt);
+         }
+      } catch (SQLException e) {
+         failure = e;
+         throw e;
+      } finally {
+         executed(query, params, start, rowCount, bytes, 1, failure);
+         release(pc, query, failure);
+      }
+   }// end executeQueryAndReturnResult
 
-      /*
-       ** obtains the metadata object for the returned result set. The metadata
-       ** contains row and column info.
+   /**
+    * Callback handed each row of a streamed query.
+    */
+   public interface RowHandler {
+      /**
+       * @param rs the result set, positioned on the current row
+       * @throws java.sql.SQLException when reading the row failed
        */
-      ResultSetMetaData rsmd = rs.getMetaData();
-      int numCol = rsmd.getColumnCount();
+      void handle(ResultSet rs) throws SQLException;
+   }// end RowHandler
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+    * each row to a callback as it arrives. The rows are read through a
+    * server-side cursor, fetchSize rows per round trip, so only one batch is
+    * ever held in memory no matter how large the result is.
+    *
+    * @param query     the input query string, with '?' placeholders for values
+    * @param fetchSize the number of rows fetched per round trip
+    * @param handler   the callback invoked once per row
+    * @param params    the values bound to the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndStream(String query, int fetchSize, RowHandler handler, Object... params)
+         throws SQLException {
+      ConnectionPool.PooledConnection pc = acquire(query);
+      SQLException failure = null;
+      long start = System.nanoTime();
       int rowCount = 0;
+      try {
+         // the driver only uses a cursor inside a transaction
+         pc.connection().setAutoCommit(false);
 
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result = new ArrayList<List<String>>();
-      while (rs.next()) {
-         List<String> record = new ArrayList<String>();
-         for (int i = 1; i <= numCol; ++i)
-            record.add(rs.getString(i));
-         result.add(record);
-      } // end while
-      stmt.close();
-      return result;
-   }// end executeQueryAndReturnResult
+         // fetches the prepared statement for this query shape
+         PreparedStatement stmt = pc.statements().prepare(query);
+         try {
+            StatementCache.bind(stmt, params);
+            stmt.setFetchSize(fetchSize);
+
+            // issues the query instruction
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+               handler.handle(rs);
+               rowCount++;
+            } // end while
+            rs.close();
+            pc.connection().commit();
+            return rowCount;
+         } finally {
+            // the statement stays cached, later users expect the default
+            stmt.setFetchSize(0);
+            pc.statements().done(query, stmt);
+         }
+      } catch (SQLException e) {
+         failure = e;
+         throw e;
+      } finally {
+         // the handler reads the values, their size is not known here; each
+         // batch of fetchSize rows is a round trip
+         executed(query, params, start, rowCount, 0, 1 + rowCount / Math.max(1, fetchSize), failure);
+         release(pc, query, failure);
+      }
+   }// end executeQueryAndStream
 
    /**
-    * Method to execute an input query SQL instruction (i.e. SELECT). This
-    * method issues the query to the DBMS and returns the number of results
+    * Method to stream a query with the default fetch size, set with
+    * -Damazon.fetchSize (500 rows unless set).
     *
-    * @param query the input query string
+    * @param query   the input query string, with '?' placeholders for values
+    * @param handler the callback invoked once per row
+    * @param params  the values bound to the placeholders
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
+   public int executeQueryAndStream(String query, RowHandler handler, Object... params) throws SQLException {
+      return executeQueryAndStream(query, Integer.getInteger("amazon.fetchSize", 500), handler, params);
+   }// end executeQueryAndStream
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT). This
+    * method issues the query to the DBMS and returns the results as a typed
+    * table: numbers and timestamps are read straight into primitive column
+    * arrays instead of being turned into Strings.
+    *
+    * @param query  the input query string, with '?' placeholders for values
+    * @param params the values bound to the placeholders
+    * @return the query result
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ResultTable executeQueryAndReturnTable(String query, Object... params) throws SQLException {
+      ConnectionPool.PooledConnection pc = acquire(query);
+      SQLException failure = null;
+      long start = System.nanoTime();
+      ResultTable result = null;
+      try {
+         // fetches the prepared statement for this query shape
+         PreparedStatement stmt = pc.statements().prepare(query);
+         try {
+            StatementCache.bind(stmt, params);
+
+            // issues the query instruction
+            ResultSet rs = stmt.executeQuery();
+            result = new ResultTable(rs);
+            rs.close();
+            return result;
+         } finally {
+            pc.statements().done(query, stmt);
+         }
+      } catch (SQLException e) {
+         failure = e;
+         throw e;
+      } finally {
+         executed(query, params, start, result == null ? 0 : result.size(),
+               result == null ? 0 : result.bytes(), 1, failure);
+         release(pc, query, failure);
+      }
+   }// end executeQueryAndReturnTable
 
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT). This
+    * method issues the query to the DBMS and returns the number of results
+    *
+    * @param query  the input query string, with '?' placeholders for values
+    * @param params the values bound to the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery(String query, Object... params) throws SQLException {
+      ConnectionPool.PooledConnection pc = acquire(query);
+      SQLException failure = null;
+      long start = System.nanoTime();
       int rowCount = 0;
-
-      // iterates through the result set and count nuber of results.
-      while (rs.next()) {
-         rowCount++;
-      } // end while
-      stmt.close();
-      return rowCount;
+      try {
+         // fetches the prepared statement for this query shape
+         PreparedStatement stmt = pc.statements().prepare(query);
+         try {
+            StatementCache.bind(stmt, params);
+
+            // issues the query instruction
+            ResultSet rs = stmt.executeQuery();
+
+            // iterates through the result set and count nuber of results.
+            while (rs.next()) {
+               rowCount++;
+            } // end while
+            rs.close();
+            return rowCount;
+         } finally {
+            pc.statements().done(query, stmt);
+         }
+      } catch (SQLException e) {
+         failure = e;
+         throw e;
+      } finally {
+         executed(query, params, start, rowCount, 0, 1, failure);
+         release(pc, query, failure);
+      }
    }
 
    /**
@@ -204,34 +1453,40 @@ public class Amazon {
     * method issues the query to the DBMS and returns the current
     * value of sequence used for autogenerated keys
     *
+    * Note that currval() is scoped to a database session, so it only sees
+    * values generated on the same pooled connection.
+    *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-      Statement stmt = this._connection.createStatement();
-
-      ResultSet rs = stmt.executeQuery(String.format("Select currval('%s')", sequence));
-      if (rs.next())
-         return rs.getInt(1);
+      ResultTable result = executeQueryAndReturnTable("SELECT currval(?)", sequence);
+      if (result.size() > 0)
+         return result.getInt(0, 0);
       return -1;
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to close the connection pool and every idle connection in it,
+    * to stop publishing the statement metrics and to close the slow query
+    * log.
     */
    public void cleanup() {
-      try {
-         if (this._connection != null) {
-            this._connection.close();
-         } // end if
-      } catch (SQLException e) {
-         // ignored.
-      } // end try
+      this._metrics.close();
+      if (this._slowLog != null)
+         this._slowLog.close();
+      if (this._router != null)
+         this._router.close();
+      if (this._orders != null)
+         this._orders.close();
+      if (this._analytics != null)
+         this._analytics.close();
+      if (this._pool != null) {
+         this._pool.close();
+      } // end if
    }// end cleanup
 
-   public static String userType = "";
-
    /**
     * The main execution method
     *
@@ -273,23 +1528,30 @@ public class Amazon {
             System.out.println("9. < EXIT");
             System.out.println(
                   "=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=\n");
-            String authorisedUser = null;
+            Session session = null;
             // boolean logIn = true;
-            switch (readChoice(true)) {
-               case 1:
-                  CreateUser(esql);
-                  break;
-               case 2:
-                  authorisedUser = LogIn(esql);
-                  break;
-               case 9:
-                  keepon = false;
-                  break;
-               default:
-                  System.out.println("Unrecognized choice!");
-                  break;
-            }// end switch
-            if (authorisedUser != null) {
+            int choice = readChoice(null);
+            // each action is a span: the statements it runs are charged to it
+            OperationTracer.Span span = esql.startSpan(choice == 1 ? "CreateUser" : "LogIn");
+            try {
+               switch (choice) {
+                  case 1:
+                     CreateUser(esql);
+                     break;
+                  case 2:
+                     session = LogIn(esql);
+                     break;
+                  case 9:
+                     keepon = false;
+                     break;
+                  default:
+                     System.out.println("Unrecognized choice!");
+                     break;
+               }// end switch
+            } finally {
+               span.close();
+            }
+            if (session != null) {
                boolean usermenu = true;
                while (usermenu) {
                   System.out.println(
@@ -303,7 +1565,7 @@ public class Amazon {
                   System.out.println("4. View 5 recent orders");
 
                   // the following functionalities basically used by managers
-                  if (userType.equals("manager   ") || userType.equals("admin     ")) {
+                  if (session.isManager() || session.isAdmin()) {
                      System.out.println("5. Update Product");
                      System.out.println("6. View 5 recent Product Updates Info");
                      System.out.println("7. View 5 Popular Items");
@@ -311,7 +1573,7 @@ public class Amazon {
                      System.out.println("9. Place Product Supply Request to Warehouse");
                   }
 
-                  if (userType.equals("admin     ")) {
+                  if (session.isAdmin()) {
                      System.out.println("10. View user info: ");
                      System.out.println("11. Update user info: ");
                   }
@@ -320,47 +1582,55 @@ public class Amazon {
                   System.out.println("20. Log out");
                   System.out.println(
                         "=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=\n");
-                  switch (readChoice(false)) {
-                     case 1:
-                        viewStores(esql);
-                        break;
-                     case 2:
-                        viewProducts(esql);
-                        break;
-                     case 3:
-                        placeOrder(esql);
-                        break;
-                     case 4:
-                        viewRecentOrders(esql);
-                        break;
-                     case 5:
-                        updateProduct(esql);
-                        break;
-                     case 6:
-                        viewRecentUpdates(esql);
-                        break;
-                     case 7:
-                        viewPopularProducts(esql);
-                        break;
-                     case 8:
-                        viewPopularCustomers(esql);
-                        break;
-                     case 9:
-                        placeProductSupplyRequests(esql);
-                        break;
-                     case 10:
-                        viewUser(esql);
-                        break;
-                     case 11:
-                        updateUser(esql);
-                        break;
-
-                     case 20:
-                        usermenu = false;
-                        break;
-                     default:
-                        System.out.println("Unrecognized choice!");
-                        break;
+                  int userChoice = readChoice(session);
+                  OperationTracer.Span menuSpan = esql.startSpan(USER_MENU.getOrDefault(userChoice, "menu"));
+                  ReplicaRouter.Route route = esql.route(session.userID, READ_ONLY_MENU.contains(userChoice));
+                  try {
+                     switch (userChoice) {
+                        case 1:
+                           viewStores(esql, session);
+                           break;
+                        case 2:
+                           viewProducts(esql, session);
+                           break;
+                        case 3:
+                           placeOrder(esql, session);
+                           break;
+                        case 4:
+                           viewRecentOrders(esql, session);
+                           break;
+                        case 5:
+                           updateProduct(esql, session);
+                           break;
+                        case 6:
+                           viewRecentUpdates(esql, session);
+                           break;
+                        case 7:
+                           viewPopularProducts(esql, session);
+                           break;
+                        case 8:
+                           viewPopularCustomers(esql, session);
+                           break;
+                        case 9:
+                           placeProductSupplyRequests(esql, session);
+                           break;
+                        case 10:
+                           viewUser(esql, session);
+                           break;
+                        case 11:
+                           updateUser(esql, session);
+                           break;
+
+                        case 20:
+                           usermenu = false;
+                           break;
+                        default:
+                           System.out.println("Unrecognized choice!");
+                           break;
+                     }
+                  } finally {
+                     closeRoute(route);
+                     menuSpan.close();
                   }
                }
             }
@@ -371,6 +1641,8 @@ public class Amazon {
          // make sure to cleanup the created table and close the connection.
          try {
             if (esql != null) {
+               if (Boolean.getBoolean("amazon.trace.log"))
+                  System.err.print(esql.tracer().dump());
                System.out.print("Disconnecting from database...");
                esql.cleanup();
                System.out.println("Done\n\nBye !");
@@ -381,6 +1653,18 @@ public class Amazon {
       } // end try
    }// end main
 
+   // the span name of each user menu choice
+   private static final Map<Integer, String> USER_MENU = Map.ofEntries(
+         Map.entry(1, "viewStores"), Map.entry(2, "viewProducts"), Map.entry(3, "placeOrder"),
+         Map.entry(4, "viewRecentOrders"), Map.entry(5, "updateProduct"), Map.entry(6, "viewRecentUpdates"),
+         Map.entry(7, "viewPopularProducts"), Map.entry(8, "viewPopularCustomers"),
+         Map.entry(9, "placeProductSupplyRequests"), Map.entry(10, "viewUser"), Map.entry(11, "updateUser"),
+         Map.entry(20, "logOut"));
+
+   // the user menu choices that only read, whose reads may go to a replica;
+   // the reports, 7 and 8, go there ahead of the analytics lane
+   private static final Set<Integer> READ_ONLY_MENU = Set.of(1, 2, 4, 6, 7, 8, 10);
+
    public static void Greeting() {
       System.out.println(
             "\n\n*******************************************************\n" +
@@ -389,24 +1673,26 @@ public class Amazon {
    }// end Greeting
 
    /*
-    * Reads the users choice given from the keyboard
+    * Reads the users choice given from the keyboard. Choices outside the
+    * user's menu are turned into an unrecognized one.
     * 
+    * @param session the logged in user, or null on the login menu
     * @int
     **/
-   public static int readChoice(boolean logIn) {
+   public static int readChoice(Session session) {
       int input;
       // returns only if a correct value is given.
       do {
          System.out.print("\nPlease make your choice: ");
          try { // read the integer, parse it and break.
             input = Integer.parseInt(in.readLine());
-            if (!logIn) {
-               if (userType.equals("customer  ")) {
+            if (session != null) {
+               if (session.isCustomer()) {
                   if (input > 4 && input != 20) {
                      input = 69;
                   }
                }
-               if (userType.equals("manager   ")) {
+               if (session.isManager()) {
                   if (input > 9 && input != 20) {
                      input = 69;
                   }
@@ -437,49 +1723,28 @@ public class Amazon {
 
          String type = "customer";
 
-         String query = String.format(
-               "INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name,
-               password, latitude, longitude, type);
+         String query = "INSERT INTO USERS (name, password, latitude, longitude, type) VALUES (?, ?, ?, ?, ?)";
 
-         esql.executeUpdate(query);
+         esql.executeUpdate(query, name, password, Double.parseDouble(latitude), Double.parseDouble(longitude), type);
          System.out.println("User successfully created!");
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
    }// end CreateUser
 
-   public static int userID = 0;
-
    /*
     * Check log in credentials for an existing user
     * 
-    * @return User login or null is the user does not exist
+    * @return the user's session or null is the user does not exist
     **/
-   public static String LogIn(Amazon esql) {
+   public static Session LogIn(Amazon esql) {
       try {
          System.out.print("\n\tEnter name: ");
          String name = in.readLine();
          System.out.print("\tEnter password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-         int userNum = esql.executeQuery(query);
-
-         // Getting userID
-         String userIDQuery = String.format("SELECT userID FROM USERS WHERE name = '%s' AND password = '%s'", name,
-               password);
-         List<List<String>> thing = esql.executeQueryAndReturnResult(userIDQuery);
-         userID = Integer.parseInt(thing.get(0).get(0));
-
-         // Getting userType
-         String userTypeQuery = String.format("SELECT type FROM USERS WHERE name = '%s' AND password = '%s'", name,
-               password);
-         List<List<String>> thing2 = esql.executeQueryAndReturnResult(userTypeQuery);
-         userType = thing2.get(0).get(0);
-
-         if (userNum > 0)
-            return name;
-         return null;
+         return esql.logIn(name, password);
       } catch (Exception e) {
          System.err.println(e.getMessage());
          return null;
@@ -488,26 +1753,19 @@ public class Amazon {
 
    // Rest of the functions definition go in here
 
-   public static List<Integer> allowedStore = new ArrayList<Integer>();
-
-   public static void viewStores(Amazon esql) {
-      double latitude = 0;
-      double longitude = 0;
-      try {
-         String storeIDQuery = "SELECT latitude, longitude " +
-               "FROM Users " +
-               "WHERE userID = " + userID + ";";
-         List<List<String>> thing = esql.executeQueryAndReturnResult(storeIDQuery);
-         latitude = Double.parseDouble(thing.get(0).get(0));
-         longitude = Double.parseDouble(thing.get(0).get(1));
-      } catch (Exception e) {
-         System.err.println(e.getMessage());
-      }
+   /*
+    * Lists the stores within 30 miles of the user
+    *
+    * @return the IDs of the stores listed
+    **/
+   public static List<Integer> viewStores(Amazon esql, Session session) {
+      double latitude = session.latitude;
+      double longitude = session.longitude;
+      List<Integer> nearbyStores = new ArrayList<Integer>();
 
       try {
-         // Fetch all stores from the database
-         String query = "SELECT storeID, latitude, longitude FROM Store;";
-         List<List<String>> stores = esql.executeQueryAndReturnResult(query);
+         // Look up the nearby stores
+         List<StoreGrid.Hit> stores = esql.findStoresWithin(latitude, longitude, 30);
          boolean foundStores = false;
 
          System.out.println(
@@ -516,18 +1774,11 @@ public class Amazon {
          System.out
                .println("=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=");
 
-         for (List<String> store : stores) {
-            double storeLat = Double.parseDouble(store.get(1));
-            double storeLong = Double.parseDouble(store.get(2));
-
-            // Calculate distance using the provided method
-            double distance = esql.calculateDistance(latitude, longitude, storeLat, storeLong);
-            if (distance <= 30) {
-               System.out.println(
-                     "Store ID: " + store.get(0) + "\t\tDistance: " + String.format("%.2f", distance) + " miles");
-               allowedStore.add(Integer.parseInt(store.get(0)));
-               foundStores = true;
-            }
+         for (StoreGrid.Hit store : stores) {
+            System.out.println(
+                  "Store ID: " + store.id + "\t\tDistance: " + String.format("%.2f", store.distance) + " miles");
+            nearbyStores.add(store.id);
+            foundStores = true;
          }
          if (!foundStores) {
             System.out.println("No stores found within 30 miles of your location.");
@@ -539,13 +1790,14 @@ public class Amazon {
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
+      return nearbyStores;
    }
 
-   public static void viewProducts(Amazon esql) {
+   public static void viewProducts(Amazon esql, Session session) {
       int numOfStores = 0;
       try {
-         String storeLengthQuery = "SELECT * FROM Store;";
-         numOfStores = esql.executeQuery(storeLengthQuery);
+         String storeLengthQuery = "SELECT count(*) FROM Store";
+         numOfStores = esql.executeQueryAndReturnTable(storeLengthQuery).getInt(0, 0);
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
@@ -564,62 +1816,45 @@ public class Amazon {
             }
          }
 
-         String query = "SELECT productName, numberOfUnits, pricePerUnit FROM Product WHERE storeID = " + storeID + ";";
-
-         System.out.println(
-               "\n=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=");
-         System.out.println("\t\t\t    List of products in store #" + storeID + ": ");
-         System.out
-               .println("=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=");
-         List<List<String>> thing = esql.executeQueryAndReturnResult(query);
-         int rowCount = thing.size();
-
-         for (int i = 0; i < thing.size(); i++) {
-            System.out.println("Product name: " + thing.get(i).get(0) +
-                  "\t# of Units: " + thing.get(i).get(1) +
-                  "\tPrice per unit: " + thing.get(i).get(2));
-         }
-
-         System.out.println("\nTotal product(s): " + rowCount);
-         System.out.println(
-               "=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=\n");
-
+         viewProductsThing(esql, storeID);
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
    }
 
-   public static void placeOrder(Amazon esql) {
-      viewStores(esql);
+   public static void placeOrder(Amazon esql, Session session) {
+      List<Integer> nearbyStores = viewStores(esql, session);
 
-      // Get storeID
-      int storeID = 0;
-      boolean storeIDGood = false;
-      if (allowedStore.size() == 0) {
+      if (nearbyStores.size() == 0) {
          System.out.println("You have no stores near you.");
          return;
       }
 
-      while (!storeIDGood) {
-         System.out.println("\nEnter one of the following storeID:");
-         try {
-            storeID = Integer.parseInt(in.readLine());
-            if (allowedStore.contains(storeID)) {
-               storeIDGood = true;
-            } else {
-               System.out.println("\nInvalid store option.");
+      // Collect the cart, one (store, product, units) line at a time
+      Cart cart = new Cart();
+      boolean addMore = true;
+      while (addMore) {
+         // Get storeID
+         int storeID = 0;
+         boolean storeIDGood = false;
+         while (!storeIDGood) {
+            System.out.println("\nEnter one of the following storeID:");
+            try {
+               storeID = Integer.parseInt(in.readLine());
+               if (nearbyStores.contains(storeID)) {
+                  storeIDGood = true;
+               } else {
+                  System.out.println("\nInvalid store option.");
+               }
+            } catch (Exception e) {
+               System.out.println("\nInvalid input" + e.getMessage());
             }
-         } catch (Exception e) {
-            System.out.println("\nInvalid input" + e.getMessage());
          }
-      }
 
-      viewProductsThing(esql, Integer.toString(storeID));
-      boolean productNameGood = false;
-      String productName = "";
+         viewProductsThing(esql, Integer.toString(storeID));
 
-      // Get productName
-      while (!productNameGood) {
+         // Get productName
+         String productName = "";
          System.out.println("Enter the product name:");
          try {
             productName = in.readLine();
@@ -627,54 +1862,52 @@ public class Amazon {
             System.out.println("Invalid input" + e.getMessage());
          }
 
-         int count = 0;
-         // Check if the product exists
-         String checkQuery = "SELECT * FROM Product WHERE ProductName = '" + productName + "'";
-         try {
-            count = esql.executeQuery(checkQuery);
-         } catch (SQLException e) {
-            System.out.println("SQL Exception: " + e.getMessage());
+         // Get unitsOrdered
+         int unitsOrdered = 0;
+         boolean unitsOrderedGood = false;
+         while (!unitsOrderedGood) {
+            System.out.println("Enter the number of units:");
+            try {
+               unitsOrdered = Integer.parseInt(in.readLine());
+               if (unitsOrdered <= 0) {
+                  System.out.println("\nNumber has to be larger than 0");
+               } else {
+                  unitsOrderedGood = true;
+               }
+            } catch (Exception e) {
+               System.out.println("Invalid input" + e.getMessage());
+            }
          }
+         cart.add(storeID, productName, unitsOrdered);
 
-         if (count == 0) {
-            System.out.println("Product does not exist.");
-         } else {
-            productNameGood = true;
+         System.out.println("Add another product to this order? (y/n)");
+         try {
+            addMore = in.readLine().trim().equalsIgnoreCase("y");
+         } catch (Exception e) {
+            addMore = false;
          }
       }
 
-      // Get unitsOrdered
-      int unitsOrdered = 0;
-      System.out.println("Enter the new number of units:");
-      try {
-         unitsOrdered = Integer.parseInt(in.readLine());
-      } catch (Exception e) {
-         System.out.println("Invalid input" + e.getMessage());
-      }
-
-      String query = "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime)" +
-            "VALUES (" + userID + "," + storeID + ", '" + productName + "', " + unitsOrdered + ", CURRENT_TIMESTAMP);";
-
-      String queryUpdateStore = "UPDATE Product " +
-            "SET numberOfUnits = numberOfUnits - " + unitsOrdered + " " +
-            "WHERE storeID = " + storeID + " " +
-            "AND productName = '" + productName + "';";
-
-      try {
-         int row = esql.executeQuery(query);
-      } catch (SQLException e) {
-         System.err.println("SQL Exception: " + e.getMessage());
-      }
-
+      // Check out every line at once
       try {
-         esql.executeUpdate(queryUpdateStore);
+         Cart.Receipt receipt = esql.checkout(session.userID, cart);
+         if (receipt.isPlaced()) {
+            for (int orderNumber : receipt.orderNumbers)
+               System.out.println("Order #" + orderNumber + " placed.");
+         } else if (receipt.reason == ORDER_NO_SUCH_PRODUCT) {
+            System.out.println("Product " + receipt.rejected.productName + " does not exist in store "
+                  + receipt.rejected.storeID + ". Nothing was ordered.");
+         } else {
+            System.out.println("Not enough units of " + receipt.rejected.productName + " left in store "
+                  + receipt.rejected.storeID + ". Nothing was ordered.");
+         }
       } catch (SQLException e) {
          System.err.println("SQL Exception: " + e.getMessage());
       }
    }
 
-   public static void viewRecentOrders(Amazon esql) {
-      if (userType.equals("manager   ")) {
+   public static void viewRecentOrders(Amazon esql, Session session) {
+      if (session.isManager()) {
          try {
             // Get storeID
             int storeID = 0;
@@ -687,21 +1920,16 @@ public class Amazon {
             System.out
                   .println(
                         "=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=");
-            try {
-               String storeIDQuery = "SELECT storeID FROM Store WHERE managerID = " + userID + ";";
-               List<List<String>> thing = esql.executeQueryAndReturnResult(storeIDQuery);
-               if (thing.size() == 1) {
-                  storeID = Integer.parseInt(thing.get(0).get(0));
-                  System.out.println(storeID);
-               } else {
-                  getStoreID = true;
-                  for (int i = 0; i < thing.size(); i++) {
-                     System.out.println(thing.get(i).get(0));
-                     storeList.add(Integer.parseInt(thing.get(i).get(0)));
-                  }
+            List<Integer> managed = session.managedStores();
+            if (managed.size() == 1) {
+               storeID = managed.get(0);
+               System.out.println(storeID);
+            } else {
+               getStoreID = true;
+               for (int managedStoreID : managed) {
+                  System.out.println(managedStoreID);
+                  storeList.add(managedStoreID);
                }
-            } catch (Exception e) {
-               System.err.println(e.getMessage());
             }
             System.out
                   .println(
@@ -730,25 +1958,15 @@ public class Amazon {
             System.out
                   .println(
                         "=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=");
-            String query = "SELECT * " +
-                  "FROM Orders " +
-                  "WHERE storeID = " + storeID + " " +
-                  "ORDER BY orderTime DESC " +
-                  "LIMIT 5;";
-            List<List<String>> thing = esql.executeQueryAndReturnResult(query);
+            List<RecentOrders.Order> thing = esql.findRecentStoreOrders(storeID);
             for (int i = 0; i < thing.size(); i++) {
-               String orderNum = thing.get(i).get(0);
-               String customerID = thing.get(i).get(1);
-               // String storeID = thing.get(i).get(2);
-               String productName = thing.get(i).get(3);
-               String unitsOrdered = thing.get(i).get(4);
-               String orderTime = thing.get(i).get(5);
-               System.out.println((i + 1) + ". Product name: " + productName +
-                     "\t CustomerID: " + customerID +
-                     "\t Units ordered: " + unitsOrdered +
-                     // "\t Store: " + storeID +
-                     "\t Order #: " + orderNum +
-                     "\t Time: " + orderTime);
+               RecentOrders.Order order = thing.get(i);
+               System.out.println((i + 1) + ". Product name: " + order.productName +
+                     "\t CustomerID: " + order.customerID +
+                     "\t Units ordered: " + order.unitsOrdered +
+                     // "\t Store: " + order.storeID +
+                     "\t Order #: " + order.orderNumber +
+                     "\t Time: " + order.orderTime);
             }
             System.out.println(
                   "=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=\n");
@@ -765,21 +1983,15 @@ public class Amazon {
                   .println(
                         "=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=");
             // System.out.println("5 Most recent orders: ");
-            String query = "SELECT * FROM Orders WHERE customerID = " + userID + "ORDER BY orderTime DESC LIMIT 5;";
-            List<List<String>> thing = esql.executeQueryAndReturnResult(query);
+            List<RecentOrders.Order> thing = esql.findRecentCustomerOrders(session.userID);
             for (int i = 0; i < thing.size(); i++) {
-               String orderNum = thing.get(i).get(0);
-               String customerID = thing.get(i).get(1);
-               String storeID = thing.get(i).get(2);
-               String productName = thing.get(i).get(3);
-               String unitsOrdered = thing.get(i).get(4);
-               String orderTime = thing.get(i).get(5);
-               System.out.println((i + 1) + ". Product name: " + productName +
-               // "\t CustomerID: " + customerID +
-                     "\t Units ordered: " + unitsOrdered +
-                     "\t Store: " + storeID +
-                     "\t Order #: " + orderNum +
-                     "\t Time: " + orderTime);
+               RecentOrders.Order order = thing.get(i);
+               System.out.println((i + 1) + ". Product name: " + order.productName +
+               // "\t CustomerID: " + order.customerID +
+                     "\t Units ordered: " + order.unitsOrdered +
+                     "\t Store: " + order.storeID +
+                     "\t Order #: " + order.orderNumber +
+                     "\t Time: " + order.orderTime);
             }
             System.out.println(
                   "=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=\n");
@@ -790,7 +2002,7 @@ public class Amazon {
       }
    }
 
-   public static void updateProduct(Amazon esql) {
+   public static void updateProduct(Amazon esql, Session session) {
       int storeID = 0;
       boolean getStoreID = false;
       List<Integer> storeList = new ArrayList<Integer>();
@@ -800,21 +2012,16 @@ public class Amazon {
       System.out.println("\t\t\t\t List of stores managing: ");
       System.out
             .println("=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=");
-      try {
-         String storeIDQuery = "SELECT storeID FROM Store WHERE managerID = " + userID + ";";
-         List<List<String>> thing = esql.executeQueryAndReturnResult(storeIDQuery);
-         if (thing.size() == 1) {
-            storeID = Integer.parseInt(thing.get(0).get(0));
-            System.out.println(storeID);
-         } else {
-            getStoreID = true;
-            for (int i = 0; i < thing.size(); i++) {
-               System.out.println(thing.get(i).get(0));
-               storeList.add(Integer.parseInt(thing.get(i).get(0)));
-            }
+      List<Integer> managed = session.managedStores();
+      if (managed.size() == 1) {
+         storeID = managed.get(0);
+         System.out.println(storeID);
+      } else {
+         getStoreID = true;
+         for (int managedStoreID : managed) {
+            System.out.println(managedStoreID);
+            storeList.add(managedStoreID);
          }
-      } catch (Exception e) {
-         System.err.println(e.getMessage());
       }
       System.out
             .println("=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=\n");
@@ -847,16 +2054,15 @@ public class Amazon {
             System.out.println("Invalid input" + e.getMessage());
          }
 
-         int count = 0;
+         CatalogCache.Product product = null;
          // Check if the product exists
-         String checkQuery = "SELECT * FROM Product WHERE ProductName = '" + productName + "'";
          try {
-            count = esql.executeQuery(checkQuery);
+            product = esql.findProduct(storeID, productName);
          } catch (SQLException e) {
             System.out.println("SQL Exception: " + e.getMessage());
          }
 
-         if (count == 0) {
+         if (product == null) {
             System.out.println("Product does not exist.");
          } else {
             productNameGood = true;
@@ -881,14 +2087,8 @@ public class Amazon {
          System.out.println("Invalid input" + e.getMessage());
       }
 
-      String updateQuery = "UPDATE Product " +
-            "SET numberOfUnits = " + numberOfUnits +
-            ", pricePerUnit = " + pricePerUnit +
-            "WHERE storeID = " + storeID +
-            "AND productName = '" + productName + "';";
-
       try {
-         esql.executeUpdate(updateQuery);
+         esql.setProduct(storeID, productName, numberOfUnits, pricePerUnit);
 
          System.out.println("Product updated successfully.");
 
@@ -897,7 +2097,7 @@ public class Amazon {
       }
    }
 
-   public static void viewRecentUpdates(Amazon esql) {
+   public static void viewRecentUpdates(Amazon esql, Session session) {
       // Get storeID
       int storeID = 0;
       boolean getStoreID = false;
@@ -909,21 +2109,16 @@ public class Amazon {
       System.out
             .println(
                   "=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=");
-      try {
-         String storeIDQuery = "SELECT storeID FROM Store WHERE managerID = " + userID + ";";
-         List<List<String>> thing = esql.executeQueryAndReturnResult(storeIDQuery);
-         if (thing.size() == 1) {
-            storeID = Integer.parseInt(thing.get(0).get(0));
-            System.out.println(storeID);
-         } else {
-            getStoreID = true;
-            for (int i = 0; i < thing.size(); i++) {
-               System.out.println(thing.get(i).get(0));
-               storeList.add(Integer.parseInt(thing.get(i).get(0)));
-            }
+      List<Integer> managed = session.managedStores();
+      if (managed.size() == 1) {
+         storeID = managed.get(0);
+         System.out.println(storeID);
+      } else {
+         getStoreID = true;
+         for (int managedStoreID : managed) {
+            System.out.println(managedStoreID);
+            storeList.add(managedStoreID);
          }
-      } catch (Exception e) {
-         System.err.println(e.getMessage());
       }
       System.out
             .println(
@@ -954,17 +2149,17 @@ public class Amazon {
       try {
          // System.out.println("5 MOST RECENT PRODUCT UPDATES: ");
          String query = "SELECT * " +
-               "FROM Orders " +
-               "WHERE storeID = " + storeID + " " +
-               "ORDER BY orderTime DESC " +
-               "LIMIT 5;";
-         List<List<String>> thing = esql.executeQueryAndReturnResult(query);
+               "FROM ProductUpdates " +
+               "WHERE storeID = ? " +
+               "ORDER BY updatedOn DESC " +
+               "LIMIT 5";
+         ResultTable thing = esql.executeQueryAndReturnTable(query, storeID);
          for (int i = 0; i < thing.size(); i++) {
-            String updateNumber = thing.get(i).get(0);
-            String managerID = thing.get(i).get(1);
-            // String storeID = thing.get(i).get(2);
-            String productName = thing.get(i).get(3);
-            String updatedOn = thing.get(i).get(4);
+            String updateNumber = thing.getString(i, 0);
+            String managerID = thing.getString(i, 1);
+            // String storeID = thing.getString(i, 2);
+            String productName = thing.getString(i, 3);
+            String updatedOn = thing.getString(i, 4);
             System.out.println((i + 1) + ". Product name: " + productName +
             // "\t Store: " + storeID +
                   "\t Update #: " + updateNumber +
@@ -979,7 +2174,7 @@ public class Amazon {
       }
    }
 
-   public static void viewPopularProducts(Amazon esql) {
+   public static void viewPopularProducts(Amazon esql, Session session) {
       // Get storeID
       int storeID = 0;
       boolean getStoreID = false;
@@ -991,21 +2186,16 @@ public class Amazon {
       System.out
             .println(
                   "=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=");
-      try {
-         String storeIDQuery = "SELECT storeID FROM Store WHERE managerID = " + userID + ";";
-         List<List<String>> thing = esql.executeQueryAndReturnResult(storeIDQuery);
-         if (thing.size() == 1) {
-            storeID = Integer.parseInt(thing.get(0).get(0));
-            System.out.println(storeID);
-         } else {
-            getStoreID = true;
-            for (int i = 0; i < thing.size(); i++) {
-               System.out.println(thing.get(i).get(0));
-               storeList.add(Integer.parseInt(thing.get(i).get(0)));
-            }
+      List<Integer> managed = session.managedStores();
+      if (managed.size() == 1) {
+         storeID = managed.get(0);
+         System.out.println(storeID);
+      } else {
+         getStoreID = true;
+         for (int managedStoreID : managed) {
+            System.out.println(managedStoreID);
+            storeList.add(managedStoreID);
          }
-      } catch (Exception e) {
-         System.err.println(e.getMessage());
       }
       System.out
             .println(
@@ -1033,16 +2223,10 @@ public class Amazon {
          System.out.println("\t\t\t\t5 MOST POPULAR PRODUCTS: ");
          System.out
                .println("=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=");
-         String query = "SELECT productName, SUM(unitsOrdered) AS totalUnitsOrdered " +
-               "FROM Orders " +
-               "WHERE storeID = " + storeID + " " +
-               "GROUP BY productName " +
-               "ORDER BY totalUnitsOrdered DESC " +
-               "LIMIT 5;";
-         List<List<String>> thing = esql.executeQueryAndReturnResult(query);
+         List<PopularProducts.Entry> thing = esql.findPopularProducts(storeID);
          for (int i = 0; i < thing.size(); i++) {
-            System.out.println((i + 1) + ". Product: " + thing.get(i).get(0) +
-                  "\t\t Numbers sold: " + thing.get(i).get(1));
+            System.out.println((i + 1) + ". Product: " + thing.get(i).productName +
+                  "\t\t Numbers sold: " + thing.get(i).units);
          }
          System.out.println(
                "=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=\n");
@@ -1052,7 +2236,7 @@ public class Amazon {
       }
    }
 
-   public static void viewPopularCustomers(Amazon esql) {
+   public static void viewPopularCustomers(Amazon esql, Session session) {
       // Get storeID
       int storeID = 0;
       boolean getStoreID = false;
@@ -1064,21 +2248,16 @@ public class Amazon {
       System.out
             .println(
                   "=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=");
-      try {
-         String storeIDQuery = "SELECT storeID FROM Store WHERE managerID = " + userID + ";";
-         List<List<String>> thing = esql.executeQueryAndReturnResult(storeIDQuery);
-         if (thing.size() == 1) {
-            storeID = Integer.parseInt(thing.get(0).get(0));
-            System.out.println(storeID);
-         } else {
-            getStoreID = true;
-            for (int i = 0; i < thing.size(); i++) {
-               System.out.println(thing.get(i).get(0));
-               storeList.add(Integer.parseInt(thing.get(i).get(0)));
-            }
+      List<Integer> managed = session.managedStores();
+      if (managed.size() == 1) {
+         storeID = managed.get(0);
+         System.out.println(storeID);
+      } else {
+         getStoreID = true;
+         for (int managedStoreID : managed) {
+            System.out.println(managedStoreID);
+            storeList.add(managedStoreID);
          }
-      } catch (Exception e) {
-         System.err.println(e.getMessage());
       }
       System.out
             .println(
@@ -1106,20 +2285,16 @@ public class Amazon {
          System.out.println("\t\t\t\t5 MOST POPULAR CUSTOMERS ");
          System.out
                .println("=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=");
-         String query = "SELECT U.name AS customer_name, COUNT(O.customerID) AS order_count " +
-               "FROM Orders O " +
-               "JOIN Users U ON O.customerID = U.userID " +
-               "WHERE O.storeID = " + storeID + " " +
-               "GROUP BY O.customerID, U.name " +
-               "ORDER BY order_count DESC " +
-               "LIMIT 5;";
-
-         List<List<String>> thing = esql.executeQueryAndReturnResult(query);
+         ResultTable thing = esql.findPopularCustomers(storeID);
+         long maxError = 0;
          for (int i = 0; i < thing.size(); i++) {
-            String name = thing.get(i).get(0).replace(".", " ").replace("_", " ");
+            String name = thing.getString(i, 0).replace(".", " ").replace("_", " ");
             System.out.println((i + 1) + ". Name: " + name +
-                  "\t Number of orders: " + thing.get(i).get(1));
+                  "\t Number of orders: " + thing.getString(i, 1));
+            maxError = Math.max(maxError, thing.getLong(i, 2));
          }
+         if (maxError > 0)
+            System.out.println("(order counts may be up to " + maxError + " too high)");
          System.out.println(
                "=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=\n");
 
@@ -1128,7 +2303,7 @@ public class Amazon {
       }
    }
 
-   public static void placeProductSupplyRequests(Amazon esql) {
+   public static void placeProductSupplyRequests(Amazon esql, Session session) {
       // Get storeID
       int storeID = 0;
       boolean getStoreID = false;
@@ -1139,21 +2314,16 @@ public class Amazon {
       System.out.println("\t\t\t\t List of stores managing: ");
       System.out
             .println("=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=");
-      try {
-         String storeIDQuery = "SELECT storeID FROM Store WHERE managerID = " + userID + ";";
-         List<List<String>> thing = esql.executeQueryAndReturnResult(storeIDQuery);
-         if (thing.size() == 1) {
-            storeID = Integer.parseInt(thing.get(0).get(0));
-            System.out.println(storeID);
-         } else {
-            getStoreID = true;
-            for (int i = 0; i < thing.size(); i++) {
-               System.out.println(thing.get(i).get(0));
-               storeList.add(Integer.parseInt(thing.get(i).get(0)));
-            }
+      List<Integer> managed = session.managedStores();
+      if (managed.size() == 1) {
+         storeID = managed.get(0);
+         System.out.println(storeID);
+      } else {
+         getStoreID = true;
+         for (int managedStoreID : managed) {
+            System.out.println(managedStoreID);
+            storeList.add(managedStoreID);
          }
-      } catch (Exception e) {
-         System.err.println(e.getMessage());
       }
       System.out
             .println("=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=\n");
@@ -1187,29 +2357,33 @@ public class Amazon {
             System.out.println("Invalid input" + e.getMessage());
          }
 
-         int count = 0;
+         CatalogCache.Product product = null;
          // Check if the product exists
-         String checkQuery = "SELECT COUNT(*) AS count_exists " +
-               "FROM Store " +
-               "WHERE storeID = " + storeID + " " +
-               "AND EXISTS ( " +
-               "SELECT 1 " +
-               "FROM Product " +
-               "WHERE Store.storeID = Product.storeID " +
-               "AND Product.productName = '" + productName + "' );";
          try {
-            count = esql.executeQuery(checkQuery);
+            product = esql.findProduct(storeID, productName);
          } catch (SQLException e) {
             System.out.println("SQL Exception: " + e.getMessage());
          }
 
-         if (count == 0) {
+         if (product == null) {
             System.out.println("Product does not exist.");
          } else {
             productNameGood = true;
          }
       }
 
+      // Suggest the warehouses closest to the store
+      try {
+         List<StoreGrid.Hit> warehouses = esql.findNearestWarehouses(storeID, 3);
+         System.out.println("\nNearest warehouses:");
+         for (StoreGrid.Hit warehouse : warehouses) {
+            System.out.println("Warehouse ID: " + warehouse.id + "\t\tDistance: "
+                  + String.format("%.2f", warehouse.distance) + " miles");
+         }
+      } catch (SQLException e) {
+         System.err.println("SQL Exception: " + e.getMessage());
+      }
+
       // Get warehouseID
       int warehouseID = 0;
       boolean warehouseIDgood = false;
@@ -1223,12 +2397,12 @@ public class Amazon {
 
          int count = 0;
          // Check if warehouse exists
-         String checkQuery = "SELECT COUNT(*) AS warehouse_count " +
+         String checkQuery = "SELECT 1 " +
                "FROM Warehouse " +
-               "WHERE WarehouseID = " + warehouseID + ";";
+               "WHERE WarehouseID = ?";
 
          try {
-            count = esql.executeQuery(checkQuery);
+            count = esql.executeQuery(checkQuery, warehouseID);
          } catch (SQLException e) {
             System.out.println("\nSQL Exception: " + e.getMessage());
          }
@@ -1257,29 +2431,15 @@ public class Amazon {
          }
       }
 
-      String query = "INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) VALUES "
-            + "(" + userID + ", " + warehouseID + ", " + storeID + ", '" + productName + "', " + unitsRequested + ");";
-
-      String queryUpdateStore = "UPDATE Product " +
-            "SET numberOfUnits = numberOfUnits + " + unitsRequested + " " +
-            "WHERE storeID = " + storeID + " " +
-            "AND productName = '" + productName + "';";
-
-      try {
-         int row = esql.executeQuery(query);
-      } catch (SQLException e) {
-         System.err.println("SQL Exception: " + e.getMessage());
-      }
-
       try {
-         esql.executeUpdate(queryUpdateStore);
+         esql.submitSupplyRequest(session.userID, warehouseID, storeID, productName, unitsRequested);
       } catch (SQLException e) {
          System.err.println("SQL Exception: " + e.getMessage());
       }
    }
 
-   public static void viewUser(Amazon esql) {
-      String query = "SELECT * FROM Users;";
+   public static void viewUser(Amazon esql, Session session) {
+      String query = "SELECT * FROM Users";
 
       try {
          System.out.println(
@@ -1287,26 +2447,23 @@ public class Amazon {
          System.out.println("\t\t\t    List all users: ");
          System.out
                .println("=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=");
-         List<List<String>> thing = esql.executeQueryAndReturnResult(query);
-         int rowCount = thing.size();
-
-         for (int i = 0; i < thing.size(); i++) {
-            String userID = thing.get(i).get(0);
-            String name = thing.get(i).get(1);
+         int rowCount = esql.executeQueryAndStream(query, rs -> {
+            String userID = rs.getString(1);
+            String name = rs.getString(2);
             name = name.replaceAll("\\s+", "");
             for (int j = name.length(); j < 25; j++)
                name += " ";
-            String password = thing.get(i).get(2);
-            String latitude = thing.get(i).get(3);
-            String longitude = thing.get(i).get(4);
-            String type = thing.get(i).get(5);
+            String password = rs.getString(3);
+            String latitude = rs.getString(4);
+            String longitude = rs.getString(5);
+            String type = rs.getString(6);
             System.out.println("UserID: " + userID +
                   "\tName: " + name +
                   "Password: " + password +
                   "\tLatitude: " + latitude +
                   "\tLongitude: " + longitude +
                   "\tType: " + type);
-         }
+         });
 
          System.out.println("\nTotal product(s): " + rowCount);
          System.out.println(
@@ -1317,7 +2474,7 @@ public class Amazon {
       }
    }
 
-   public static void updateUser(Amazon esql) {
+   public static void updateUser(Amazon esql, Session session) {
       // Get name
       String name = "";
       System.out.println("Enter the new name:");
@@ -1373,15 +2530,15 @@ public class Amazon {
       }
 
       String updateQuery = "UPDATE Users " +
-            "SET name = '" + name + "', " +
-            "password = '" + password + "', " +
-            "latitude = " + latitude + ", " +
-            "longitude = " + longitude + ", " +
-            "type = '" + type + "' " +
-            "WHERE userID = " + userID + ";";
+            "SET name = ?, " +
+            "password = ?, " +
+            "latitude = ?, " +
+            "longitude = ?, " +
+            "type = ? " +
+            "WHERE userID = ?";
 
       try {
-         esql.executeUpdate(updateQuery);
+         esql.executeUpdate(updateQuery, name, password, latitude, longitude, type, Integer.parseInt(userID));
 
          System.out.println("User updated successfully.");
 
@@ -1393,23 +2550,20 @@ public class Amazon {
    public static void viewProductsThing(Amazon esql, String storeID) {
       try {
 
-         String query = "SELECT productName, numberOfUnits, pricePerUnit FROM Product WHERE storeID = " + storeID + ";";
+         List<CatalogCache.Product> products = esql.findProducts(Integer.parseInt(storeID));
 
          System.out.println(
                "\n=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=");
          System.out.println("\t\t\t    List of products in store #" + storeID + ": ");
          System.out
                .println("=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=");
-         List<List<String>> thing = esql.executeQueryAndReturnResult(query);
-         int rowCount = thing.size();
-
-         for (int i = 0; i < thing.size(); i++) {
-            System.out.println("Product name: " + thing.get(i).get(0) +
-                  "\t# of Units: " + thing.get(i).get(1) +
-                  "\tPrice per unit: " + thing.get(i).get(2));
+         for (CatalogCache.Product product : products) {
+            System.out.println("Product name: " + product.productName +
+                  "\t# of Units: " + product.numberOfUnits +
+                  "\tPrice per unit: " + product.pricePerUnit);
          }
 
-         System.out.println("\nTotal product(s): " + rowCount);
+         System.out.println("\nTotal product(s): " + products.size());
          System.out.println(
                "=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=*=\n");
 
@@ -0,0 +1,534 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class serves the store operations over HTTP, so that one process and
+ * one connection pool serve many clients instead of one user at the
+ * keyboard. Every request runs on its own virtual thread when the JVM has
+ * them (Java 21 and later), otherwise on a fixed pool of
+ * amazon.server.threads platform threads. Either way at most
+ * amazon.pool.maxSize requests use the database at a time; the others wait
+ * in the connection pool. Orders and the popular reports have lanes of
+ * their own, with their own connections, on top of that.
+ *
+ * Parameters are sent as a query string or as a form-encoded POST body, and
+ * answers are JSON. POST /login returns a session token that the other
+ * requests send in the X-Session header:
+ *
+ *    POST /login                name, password
+ *    POST /logout
+ *    GET  /stores               [radius], stores near the user, default 30
+ *    GET  /products             storeID
+ *    POST /orders               storeID, productName, units, repeated for
+ *                               every line of the cart
+ *    GET  /orders/recent        [storeID], the user's orders, or a managed
+ *                               store's orders
+ *    POST /products/update      storeID, productName, numberOfUnits,
+ *                               pricePerUnit
+ *    GET  /popular/products     storeID
+ *    GET  /popular/customers    storeID
+ *    POST /supply-requests      storeID, productName, warehouseID, units
+ *    GET  /stats
+ *    POST /reports/cancel       cancels the popular reports running
+ *
+ * /popular/products, /popular/customers, /supply-requests and
+ * /products/update are for managers and admins of the store, /stats and
+ * /reports/cancel for any manager or admin.
+ * Sessions are dropped after amazon.server.sessionTimeoutMillis without a
+ * request, and at most amazon.server.maxSessions are kept. A POST body over
+ * amazon.server.maxBodyBytes (64 KiB unless set) is refused with 413.
+ *
+ */
+public class AmazonServer {
+
+   private final Amazon _esql;
+   private final long _sessionTimeoutMillis;
+   private final int _maxSessions;
+   private final int _maxBodyBytes = Integer.getInteger("amazon.server.maxBodyBytes", 64 * 1024);
+   private final Map<String, SessionEntry> _sessions = new ConcurrentHashMap<String, SessionEntry>();
+   private final SecureRandom _random = new SecureRandom();
+
+   public AmazonServer(Amazon esql, long sessionTimeoutMillis, int maxSessions) {
+      this._esql = esql;
+      this._sessionTimeoutMillis = sessionTimeoutMillis;
+      this._maxSessions = maxSessions;
+   }
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user> [http port]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length != 3 && args.length != 4) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     AmazonServer.class.getName() +
+                     " <dbname> <port> <user> [http port]");
+         return;
+      } // end if
+
+      Class.forName("org.postgresql.Driver");
+      Amazon esql = new Amazon(args[0], args[1], args[2], "");
+      AmazonServer server = new AmazonServer(esql,
+            Long.getLong("amazon.server.sessionTimeoutMillis", 30L * 60 * 1000),
+            Integer.getInteger("amazon.server.maxSessions", 100000));
+
+      int port = args.length == 4 ? Integer.parseInt(args[3]) : Integer.getInteger("amazon.server.port", 8080);
+      String host = System.getProperty("amazon.server.host", "127.0.0.1");
+      HttpServer http = HttpServer.create(new InetSocketAddress(host, port),
+            Integer.getInteger("amazon.server.backlog", 1024));
+      server.register(http);
+      ExecutorService executor = executor();
+      http.setExecutor(executor);
+      http.start();
+      System.out.println("Serving on http://" + host + ":" + port + "/");
+
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+         http.stop(1);
+         executor.shutdown();
+         esql.cleanup();
+      }));
+   }// end main
+
+   /**
+    * Creates the request executor: a virtual thread per request when the JVM
+    * has virtual threads, looked up by reflection so the code still builds
+    * and runs on older JVMs, and a fixed thread pool otherwise.
+    */
+   static ExecutorService executor() {
+      try {
+         ExecutorService executor = (ExecutorService) Executors.class
+               .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+         System.out.println("Handling requests on virtual threads");
+         return executor;
+      } catch (ReflectiveOperationException e) {
+         int threads = Integer.getInteger("amazon.server.threads", 64);
+         System.out.println("Virtual threads unavailable, handling requests on " + threads + " threads");
+         return Executors.newFixedThreadPool(threads);
+      }
+   }// end executor
+
+   /**
+    * Adds the handlers of every operation to an HTTP server
+    */
+   public void register(HttpServer http) {
+      http.createContext("/login", handler("POST", false, this::login));
+      http.createContext("/logout", handler("POST", true, this::logout));
+      http.createContext("/stores", handler("GET", true, this::stores));
+      http.createContext("/products", handler("GET", true, this::products));
+      http.createContext("/orders", handler("POST", true, this::placeOrder));
+      http.createContext("/orders/recent", handler("GET", true, this::recentOrders));
+      http.createContext("/products/update", handler("POST", true, this::updateProduct));
+      http.createContext("/popular/products", handler("GET", true, this::popularProducts));
+      http.createContext("/popular/customers", handler("GET", true, this::popularCustomers));
+      http.createContext("/supply-requests", handler("POST", true, this::supplyRequest));
+      http.createContext("/reports/cancel", handler("POST", true, this::cancelReports));
+      http.createContext("/stats", handler("GET", true, this::stats));
+   }// end register
+
+   private String login(Request req) throws Exception {
+      Session session = this._esql.logIn(req.string("name"), req.string("password"));
+      if (session == null)
+         throw new HttpError(401, "Invalid name or password");
+
+      if (this._sessions.size() >= this._maxSessions)
+         expireSessions();
+      if (this._sessions.size() >= this._maxSessions)
+         throw new HttpError(503, "Too many sessions");
+      byte[] bytes = new byte[16];
+      this._random.nextBytes(bytes);
+      StringBuilder token = new StringBuilder();
+      for (byte b : bytes)
+         token.append(String.format("%02x", b));
+      this._sessions.put(token.toString(), new SessionEntry(session));
+
+      return "{\"session\":" + quote(token.toString())
+            + ",\"userID\":" + session.userID
+            + ",\"type\":" + quote(session.type)
+            + ",\"managedStores\":" + session.managedStores() + "}";
+   }// end login
+
+   private String logout(Request req) {
+      this._sessions.remove(req.token);
+      return "{}";
+   }
+
+   private String stores(Request req) throws Exception {
+      double radius = req.has("radius") ? req.number("radius") : 30;
+      List<StoreGrid.Hit> stores = this._esql.findStoresWithin(req.session.latitude, req.session.longitude, radius);
+      StringBuilder json = new StringBuilder("[");
+      for (StoreGrid.Hit store : stores) {
+         json.append(json.length() == 1 ? "" : ",")
+               .append("{\"storeID\":").append(store.id)
+               .append(",\"distance\":").append(store.distance).append("}");
+      }
+      return json.append("]").toString();
+   }// end stores
+
+   private String products(Request req) throws Exception {
+      List<CatalogCache.Product> products = this._esql.findProducts(req.integer("storeID"));
+      StringBuilder json = new StringBuilder("[");
+      for (CatalogCache.Product product : products) {
+         json.append(json.length() == 1 ? "" : ",")
+               .append("{\"productName\":").append(quote(product.productName))
+               .append(",\"numberOfUnits\":").append(product.numberOfUnits)
+               .append(",\"pricePerUnit\":").append(product.pricePerUnit).append("}");
+      }
+      return json.append("]").toString();
+   }// end products
+
+   private String placeOrder(Request req) throws Exception {
+      List<String> storeIDs = req.all("storeID");
+      List<String> productNames = req.all("productName");
+      List<String> units = req.all("units");
+      if (storeIDs.isEmpty() || storeIDs.size() != productNames.size() || storeIDs.size() != units.size())
+         throw new HttpError(400, "Every line needs storeID, productName and units");
+
+      // like the menu, customers order from the stores within 30 miles
+      List<Integer> nearbyStores = new ArrayList<Integer>();
+      for (StoreGrid.Hit store : this._esql.findStoresWithin(req.session.latitude, req.session.longitude, 30))
+         nearbyStores.add(store.id);
+
+      Cart cart = new Cart();
+      for (int i = 0; i < storeIDs.size(); i++) {
+         int storeID = Request.parseInt("storeID", storeIDs.get(i));
+         if (!nearbyStores.contains(storeID))
+            throw new HttpError(403, "Store " + storeID + " is not within 30 miles");
+         int n = Request.parseInt("units", units.get(i));
+         if (n < 1)
+            throw new HttpError(400, "units must be at least 1");
+         cart.add(storeID, productNames.get(i), n);
+      }
+
+      Cart.Receipt receipt = this._esql.checkout(req.session.userID, cart);
+      if (!receipt.isPlaced()) {
+         throw new HttpError(409, "{\"placed\":false,\"storeID\":" + receipt.rejected.storeID
+               + ",\"productName\":" + quote(receipt.rejected.productName)
+               + ",\"reason\":" + quote(receipt.reason == Amazon.ORDER_OUT_OF_STOCK ? "out of stock" : "no such product")
+               + "}", true);
+      }
+      StringBuilder json = new StringBuilder("{\"placed\":true,\"orderNumbers\":[");
+      for (int i = 0; i < receipt.orderNumbers.length; i++)
+         json.append(i == 0 ? "" : ",").append(receipt.orderNumbers[i]);
+      return json.append("]}").toString();
+   }// end placeOrder
+
+   private String recentOrders(Request req) throws Exception {
+      List<RecentOrders.Order> orders;
+      if (req.has("storeID"))
+         orders = this._esql.findRecentStoreOrders(managedStore(req));
+      else
+         orders = this._esql.findRecentCustomerOrders(req.session.userID);
+      StringBuilder json = new StringBuilder("[");
+      for (RecentOrders.Order order : orders) {
+         json.append(json.length() == 1 ? "" : ",")
+               .append("{\"orderNumber\":").append(order.orderNumber)
+               .append(",\"customerID\":").append(order.customerID)
+               .append(",\"storeID\":").append(order.storeID)
+               .append(",\"productName\":").append(quote(order.productName))
+               .append(",\"unitsOrdered\":").append(order.unitsOrdered)
+               .append(",\"orderTime\":").append(quote(order.orderTime.toString())).append("}");
+      }
+      return json.append("]").toString();
+   }// end recentOrders
+
+   private String updateProduct(Request req) throws Exception {
+      int storeID = managedStore(req);
+      String productName = req.string("productName");
+      int numberOfUnits = req.integer("numberOfUnits");
+      double pricePerUnit = req.number("pricePerUnit");
+      if (this._esql.setProduct(storeID, productName, numberOfUnits, pricePerUnit) == 0)
+         throw new HttpError(404, "Product does not exist");
+      return "{\"updated\":true}";
+   }// end updateProduct
+
+   private String popularProducts(Request req) throws Exception {
+      List<PopularProducts.Entry> top = this._esql.findPopularProducts(managedStore(req));
+      StringBuilder json = new StringBuilder("[");
+      for (PopularProducts.Entry entry : top) {
+         json.append(json.length() == 1 ? "" : ",")
+               .append("{\"productName\":").append(quote(entry.productName))
+               .append(",\"units\":").append(entry.units).append("}");
+      }
+      return json.append("]").toString();
+   }// end popularProducts
+
+   private String popularCustomers(Request req) throws Exception {
+      ResultTable top = this._esql.findPopularCustomers(managedStore(req));
+      StringBuilder json = new StringBuilder("[");
+      for (int i = 0; i < top.size(); i++) {
+         json.append(i == 0 ? "" : ",")
+               .append("{\"name\":").append(quote(top.getString(i, 0).trim()))
+               .append(",\"orders\":").append(top.getLong(i, 1))
+               .append(",\"maxError\":").append(top.getLong(i, 2)).append("}");
+      }
+      return json.append("]").toString();
+   }// end popularCustomers
+
+   private String supplyRequest(Request req) throws Exception {
+      int storeID = managedStore(req);
+      String productName = req.string("productName");
+      int warehouseID = req.integer("warehouseID");
+      int units = req.integer("units");
+      if (units < 1)
+         throw new HttpError(400, "units must be at least 1");
+      if (this._esql.submitSupplyRequest(req.session.userID, warehouseID, storeID, productName, units) == 0)
+         throw new HttpError(404, "Product does not exist");
+      return "{\"requested\":true}";
+   }// end supplyRequest
+
+   private String cancelReports(Request req) throws Exception {
+      if (!(req.session.isManager() || req.session.isAdmin()))
+         throw new HttpError(403, "Only managers can cancel reports");
+      return "{\"cancelled\":" + this._esql.cancelAnalytics() + "}";
+   }// end cancelReports
+
+   private String stats(Request req) throws HttpError {
+      if (!(req.session.isManager() || req.session.isAdmin()))
+         throw new HttpError(403, "Only managers can see the stats");
+      return "{\"pool\":" + quote(this._esql.poolStats())
+            + ",\"catalog\":" + quote(this._esql.catalogStats())
+            + ",\"recentOrders\":" + quote(this._esql.recentOrdersStats())
+            + ",\"popularCustomers\":" + quote(this._esql.popularCustomersStats())
+            + ",\"statements\":{\"calls\":" + this._esql.statementMetrics().getCalls()
+            + ",\"errors\":" + this._esql.statementMetrics().getErrors() + "}"
+            + ",\"operations\":" + quote(this._esql.tracer().dump())
+            + (this._esql.slowQueryStats() == null ? "" : ",\"slowQueries\":" + quote(this._esql.slowQueryStats()))
+            + ",\"lanes\":" + quote(this._esql.laneStats())
+            + (this._esql.replicaStats() == null ? "" : ",\"replicas\":" + quote(this._esql.replicaStats()))
+            + ",\"sessions\":" + this._sessions.size() + "}";
+   }// end stats
+
+   // the storeID parameter, checked to be a store the user manages
+   private static int managedStore(Request req) throws HttpError {
+      int storeID = req.integer("storeID");
+      if (!(req.session.isManager() || req.session.isAdmin()) || !req.session.manages(storeID))
+         throw new HttpError(403, "You do not manage store " + storeID);
+      return storeID;
+   }
+
+   private void expireSessions() {
+      long now = System.currentTimeMillis();
+      Iterator<SessionEntry> it = this._sessions.values().iterator();
+      while (it.hasNext()) {
+         if (now - it.next().lastUsed > this._sessionTimeoutMillis)
+            it.remove();
+      }
+   }// end expireSessions
+
+   private Session session(String token) {
+      if (token == null)
+         return null;
+      SessionEntry entry = this._sessions.get(token);
+      if (entry == null)
+         return null;
+      long now = System.currentTimeMillis();
+      if (now - entry.lastUsed > this._sessionTimeoutMillis) {
+         this._sessions.remove(token);
+         return null;
+      }
+      entry.lastUsed = now;
+      return entry.session;
+   }// end session
+
+   interface Operation {
+      String handle(Request req) throws Exception;
+   }
+
+   /**
+    * Wraps an operation: checks the method and the session, parses the
+    * parameters, and turns the result or the failure into a JSON response.
+    */
+   private HttpHandler handler(String method, boolean needsSession, Operation op) {
+      return exchange -> {
+         int status = 200;
+         String body;
+         // the statements of one request are charged to a span named by
+         // its path
+         OperationTracer.Span span = this._esql.startSpan(exchange.getHttpContext().getPath());
+         try {
+            if (!exchange.getRequestURI().getPath().equals(exchange.getHttpContext().getPath()))
+               throw new HttpError(404, "No such operation");
+            if (!exchange.getRequestMethod().equals(method))
+               throw new HttpError(405, "Use " + method);
+            Request req = new Request(exchange, this._maxBodyBytes);
+            req.token = exchange.getRequestHeaders().getFirst("X-Session");
+            req.session = session(req.token);
+            if (needsSession && req.session == null)
+               throw new HttpError(401, "Log in first");
+            // a GET only reads, its reads may go to a replica
+            ReplicaRouter.Route route = this._esql.route(req.session == null ? 0 : req.session.userID,
+                  method.equals("GET"));
+            try {
+               body = op.handle(req);
+            } finally {
+               if (route != null)
+                  route.close();
+            }
+         } catch (HttpError e) {
+            status = e.status;
+            body = e.json ? e.getMessage() : "{\"error\":" + quote(e.getMessage()) + "}";
+         } catch (SQLException e) {
+            String state = e.getSQLState() == null ? "" : e.getSQLState();
+            // integrity violations are the client's, running out of
+            // connections or a report cut short is a temporary overload
+            status = state.startsWith("23") ? 400 : state.startsWith("53") || state.equals("57014") ? 503 : 500;
+            body = "{\"error\":" + quote(e.getMessage()) + "}";
+         } catch (Exception e) {
+            System.err.println(e.getMessage());
+            status = 500;
+            body = "{\"error\":" + quote(String.valueOf(e.getMessage())) + "}";
+         } finally {
+            span.close();
+         }
+
+         byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+         exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+         exchange.sendResponseHeaders(status, bytes.length);
+         OutputStream out = exchange.getResponseBody();
+         out.write(bytes);
+         out.close();
+      };
+   }// end handler
+
+   static String quote(String s) {
+      StringBuilder json = new StringBuilder(s.length() + 2).append('"');
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         if (c == '"' || c == '\\')
+            json.append('\\').append(c);
+         else if (c < 0x20)
+            json.append(String.format("\\u%04x", (int) c));
+         else
+            json.append(c);
+      }
+      return json.append('"').toString();
+   }// end quote
+
+   /**
+    * The parameters of a request, from its query string and its
+    * form-encoded body, and the caller's session.
+    */
+   static class Request {
+      private final Map<String, List<String>> _params = new HashMap<String, List<String>>();
+      String token;
+      Session session;
+
+      Request(HttpExchange exchange, int maxBodyBytes) throws IOException, HttpError {
+         parse(exchange.getRequestURI().getRawQuery());
+         if (exchange.getRequestMethod().equals("POST")) {
+            InputStream in = exchange.getRequestBody();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+               // the body is buffered whole, a larger one is refused before
+               // it fills the heap
+               if (body.size() + n > maxBodyBytes)
+                  throw new HttpError(413, "The request body is over " + maxBodyBytes + " bytes");
+               body.write(buf, 0, n);
+            }
+            parse(new String(body.toByteArray(), StandardCharsets.UTF_8));
+         }
+      }
+
+      private void parse(String query) {
+         if (query == null || query.isEmpty())
+            return;
+         for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            this._params.computeIfAbsent(key, k -> new ArrayList<String>()).add(value);
+         }
+      }
+
+      boolean has(String name) {
+         return this._params.containsKey(name);
+      }
+
+      List<String> all(String name) {
+         List<String> values = this._params.get(name);
+         return values == null ? Collections.<String>emptyList() : values;
+      }
+
+      String string(String name) throws HttpError {
+         List<String> values = this._params.get(name);
+         if (values == null)
+            throw new HttpError(400, "Missing parameter " + name);
+         return values.get(0);
+      }
+
+      int integer(String name) throws HttpError {
+         return parseInt(name, string(name));
+      }
+
+      double number(String name) throws HttpError {
+         try {
+            return Double.parseDouble(string(name));
+         } catch (NumberFormatException e) {
+            throw new HttpError(400, name + " must be a number");
+         }
+      }
+
+      static int parseInt(String name, String value) throws HttpError {
+         try {
+            return Integer.parseInt(value.trim());
+         } catch (NumberFormatException e) {
+            throw new HttpError(400, name + " must be an integer");
+         }
+      }
+   }// end Request
+
+   /**
+    * A failure reported to the client with an HTTP status. The message is
+    * wrapped as {"error": message} unless it already is JSON.
+    */
+   static class HttpError extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      final int status;
+      final boolean json;
+
+      HttpError(int status, String message) {
+         this(status, message, false);
+      }
+
+      HttpError(int status, String message, boolean json) {
+         super(message);
+         this.status = status;
+         this.json = json;
+      }
+   }// end HttpError
+
+   private static class SessionEntry {
+      final Session session;
+      volatile long lastUsed = System.currentTimeMillis();
+
+      SessionEntry(Session session) {
+         this.session = session;
+      }
+   }// end SessionEntry
+}// end AmazonServer
@@ -0,0 +1,435 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class loads the data/*.csv files from the client side, replacing the
+ * server-side COPY ... FROM 'file' of load_data.sql. The files are streamed
+ * in chunks through COPY FROM STDIN, several connections per table, and the
+ * tables that do not depend on each other are loaded at the same time:
+ *
+ * 1. Users, Warehouse
+ * 2. Store
+ * 3. Product
+ * 4. Orders, ProductSupplyRequests, ProductUpdates
+ *
+ * The indexes of create_indexes.sql are dropped before the load and built
+ * once all the rows are in, and the serial sequences are moved past the
+ * loaded keys the way load_data.sql does.
+ *
+ * COPY FROM STDIN needs a driver that has the CopyManager API (8.4 or
+ * later), as the bundled one does. With an older driver the chunks are
+ * written with batched INSERTs instead.
+ *
+ * The tables have to be empty, i.e. freshly made by create_tables.sql; the
+ * load refuses to start otherwise. The chunks commit one by one, so a load
+ * that fails part way empties the tables again and rebuilds the indexes
+ * before reporting the failure, leaving the database as it was.
+ *
+ */
+public class BulkLoader {
+
+   private static final String[][] STAGES = {
+         { "Users", "Warehouse" },
+         { "Store" },
+         { "Product" },
+         { "Orders", "ProductSupplyRequests", "ProductUpdates" } };
+
+   private static final String[][] FILES = {
+         { "Users", "users.csv" },
+         { "Warehouse", "warehouse.csv" },
+         { "Store", "stores.csv" },
+         { "Product", "products.csv" },
+         { "Orders", "orders.csv" },
+         { "ProductSupplyRequests", "productSupplyRequests.csv" },
+         { "ProductUpdates", "productUpdates.csv" } };
+
+   // table, serial column
+   private static final String[][] SEQUENCES = {
+         { "Users", "userID" },
+         { "Orders", "orderNumber" },
+         { "ProductSupplyRequests", "requestNumber" },
+         { "ProductUpdates", "updateNumber" } };
+
+   // a chunk with no lines tells a worker the file is done
+   private static final List<String> END = new ArrayList<String>();
+
+   private final ConnectionPool _pool;
+   private final File _dataDir;
+   private final File _indexFile;
+   private final int _workersPerTable;
+   private final int _chunkRows;
+
+   /**
+    * Creates a new bulk loader
+    *
+    * @param pool            connections to load with, at least
+    *                        workersPerTable * 3 so a whole stage can run
+    * @param dataDir         the directory holding the csv files
+    * @param indexFile       create_indexes.sql
+    * @param workersPerTable the number of connections loading each table
+    * @param chunkRows       the number of rows sent per COPY
+    */
+   public BulkLoader(ConnectionPool pool, File dataDir, File indexFile, int workersPerTable, int chunkRows) {
+      this._pool = pool;
+      this._dataDir = dataDir;
+      this._indexFile = indexFile;
+      this._workersPerTable = workersPerTable;
+      this._chunkRows = chunkRows;
+   }// end BulkLoader
+
+   /**
+    * Loads every table, then builds the indexes and resets the sequences.
+    *
+    * @throws Exception when any table failed to load
+    */
+   public void load() throws Exception {
+      List<String> indexStatements = readStatements(this._indexFile);
+      for (String[] f : FILES) {
+         if (hasRows(f[0]))
+            throw new IllegalStateException(f[0] + " is not empty, load into freshly created tables");
+      }
+
+      long start = System.currentTimeMillis();
+      try {
+         loadTables(indexStatements);
+      } catch (Exception e) {
+         System.err.println("Load failed, emptying the tables and rebuilding the indexes...");
+         try {
+            StringBuilder tables = new StringBuilder();
+            for (String[] f : FILES)
+               tables.append(tables.length() == 0 ? "" : ", ").append(f[0]);
+            execute("TRUNCATE " + tables);
+            for (String sql : indexStatements)
+               execute(sql);
+         } catch (SQLException cleanup) {
+            System.err.println("Cleanup failed, empty the tables and run create_indexes.sql by hand: "
+                  + cleanup.getMessage());
+         }
+         throw e;
+      }
+      System.out.println("Done in " + (System.currentTimeMillis() - start) + " ms");
+   }// end load
+
+   private void loadTables(List<String> indexStatements) throws Exception {
+      System.out.println("Dropping indexes...");
+      for (String sql : indexStatements) {
+         if (sql.toUpperCase().startsWith("DROP INDEX"))
+            execute(sql);
+      }
+
+      ExecutorService tables = Executors.newCachedThreadPool();
+      try {
+         for (String[] stage : STAGES) {
+            List<Future<Long>> loads = new ArrayList<Future<Long>>();
+            for (final String table : stage) {
+               loads.add(tables.submit(() -> loadTable(table, new File(this._dataDir, fileOf(table)))));
+            }
+            for (int i = 0; i < stage.length; i++) {
+               long rows = loads.get(i).get();
+               System.out.println("Loaded " + rows + " rows into " + stage[i]);
+            }
+         }
+      } finally {
+         tables.shutdownNow();
+      }
+
+      System.out.println("Building indexes...");
+      for (String sql : indexStatements)
+         execute(sql);
+
+      for (String[] seq : SEQUENCES) {
+         execute("SELECT setval(pg_get_serial_sequence('" + seq[0].toLowerCase() + "', '" + seq[1].toLowerCase()
+               + "'), COALESCE(MAX(" + seq[1] + "), 0) + 1, false) FROM " + seq[0]);
+      }
+      for (String[] stage : STAGES) {
+         for (String table : stage)
+            execute("ANALYZE " + table);
+      }
+   }// end loadTables
+
+   /**
+    * Streams one csv file into its table. A reader thread cuts the file into
+    * chunks of rows and the workers each send chunks on their own
+    * connection, so at most a few chunks are ever held in memory.
+    */
+   private long loadTable(String table, File file) throws Exception {
+      BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16);
+      try {
+         String header = reader.readLine();
+         if (header == null)
+            return 0;
+         final String columns = header.trim();
+         final String copySql = "COPY " + table + " (" + columns + ") FROM STDIN WITH (FORMAT csv)";
+         final String insertSql = insertFor(table, columns);
+
+         final BlockingQueue<List<String>> chunks = new ArrayBlockingQueue<List<String>>(this._workersPerTable * 2);
+         final AtomicLong rows = new AtomicLong();
+         ExecutorService workers = Executors.newFixedThreadPool(this._workersPerTable);
+         List<Future<Void>> done = new ArrayList<Future<Void>>();
+         for (int w = 0; w < this._workersPerTable; w++) {
+            done.add(workers.submit(() -> {
+               List<String> chunk;
+               while ((chunk = chunks.take()) != END) {
+                  writeChunk(copySql, insertSql, chunk);
+                  rows.addAndGet(chunk.size());
+               }
+               return null;
+            }));
+         }
+
+         try {
+            List<String> chunk = new ArrayList<String>(this._chunkRows);
+            String line;
+            while ((line = reader.readLine()) != null) {
+               if (line.isEmpty())
+                  continue;
+               chunk.add(line);
+               if (chunk.size() == this._chunkRows) {
+                  offer(chunks, chunk, done);
+                  chunk = new ArrayList<String>(this._chunkRows);
+               }
+            }
+            if (!chunk.isEmpty())
+               offer(chunks, chunk, done);
+            for (int w = 0; w < this._workersPerTable; w++)
+               offer(chunks, END, done);
+            for (Future<Void> f : done)
+               f.get();
+         } finally {
+            workers.shutdownNow();
+         }
+         return rows.get();
+      } finally {
+         reader.close();
+      }
+   }// end loadTable
+
+   // queues a chunk, giving up if a worker already failed
+   private static void offer(BlockingQueue<List<String>> chunks, List<String> chunk, List<Future<Void>> workers)
+         throws Exception {
+      while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+         for (Future<Void> f : workers) {
+            if (f.isDone())
+               f.get();
+         }
+      }
+   }
+
+   private void writeChunk(String copySql, String insertSql, List<String> chunk) throws Exception {
+      ConnectionPool.PooledConnection pc = this._pool.acquire();
+      try {
+         Object copyManager = copyManager(pc.connection());
+         if (copyManager != null) {
+            StringBuilder data = new StringBuilder();
+            for (String line : chunk)
+               data.append(line).append('\n');
+            Method copyIn = copyManager.getClass().getMethod("copyIn", String.class, Reader.class);
+            try {
+               copyIn.invoke(copyManager, copySql, new StringReader(data.toString()));
+            } catch (InvocationTargetException e) {
+               // the SQLException of the COPY
+               throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+         } else {
+            insertChunk(pc.connection(), insertSql, chunk);
+         }
+      } catch (SQLException e) {
+         pc.markBroken();
+         throw e;
+      } finally {
+         this._pool.release(pc);
+      }
+   }// end writeChunk
+
+   // fallback for drivers without COPY support: one batch of INSERTs per chunk
+   private static void insertChunk(Connection conn, String insertSql, List<String> chunk) throws SQLException {
+      conn.setAutoCommit(false);
+      PreparedStatement ps = conn.prepareStatement(insertSql);
+      try {
+         for (String line : chunk) {
+            List<String> values = splitCsv(line);
+            for (int i = 0; i < values.size(); i++)
+               ps.setString(i + 1, values.get(i));
+            ps.addBatch();
+         }
+         ps.executeBatch();
+         conn.commit();
+      } finally {
+         ps.close();
+      }
+   }// end insertChunk
+
+   // returns the driver's CopyManager, or null when the driver has none
+   private static Object copyManager(Connection conn) {
+      try {
+         Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+         if (!pgConnection.isInstance(conn))
+            return null;
+         return pgConnection.getMethod("getCopyAPI").invoke(conn);
+      } catch (Exception e) {
+         return null;
+      }
+   }
+
+   private static String insertFor(String table, String columns) {
+      int n = columns.split(",").length;
+      StringBuilder sql = new StringBuilder("INSERT INTO " + table + " (" + columns + ") VALUES (");
+      for (int i = 0; i < n; i++)
+         sql.append(i == 0 ? "?" : ", ?");
+      return sql.append(")").toString();
+   }
+
+   /**
+    * Splits a csv line the way COPY ... CSV reads it: fields may be quoted
+    * with double quotes, and an unquoted empty field is NULL.
+    */
+   static List<String> splitCsv(String line) {
+      List<String> fields = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false, wasQuoted = false;
+      for (int i = 0; i < line.length(); i++) {
+         char c = line.charAt(i);
+         if (quoted) {
+            if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+               field.append('"');
+               i++;
+            } else if (c == '"') {
+               quoted = false;
+            } else {
+               field.append(c);
+            }
+         } else if (c == '"') {
+            quoted = true;
+            wasQuoted = true;
+         } else if (c == ',') {
+            fields.add(field.length() == 0 && !wasQuoted ? null : field.toString());
+            field.setLength(0);
+            wasQuoted = false;
+         } else {
+            field.append(c);
+         }
+      }
+      fields.add(field.length() == 0 && !wasQuoted ? null : field.toString());
+      return fields;
+   }// end splitCsv
+
+   private static String fileOf(String table) {
+      for (String[] f : FILES) {
+         if (f[0].equals(table))
+            return f[1];
+      }
+      throw new IllegalArgumentException("No file for " + table);
+   }
+
+   private void execute(String sql) throws SQLException {
+      ConnectionPool.PooledConnection pc = this._pool.acquire();
+      try {
+         Statement stmt = pc.connection().createStatement();
+         try {
+            stmt.execute(sql);
+         } finally {
+            stmt.close();
+         }
+      } finally {
+         this._pool.release(pc);
+      }
+   }
+
+   private boolean hasRows(String table) throws SQLException {
+      ConnectionPool.PooledConnection pc = this._pool.acquire();
+      try {
+         Statement stmt = pc.connection().createStatement();
+         try {
+            ResultSet rs = stmt.executeQuery("SELECT EXISTS (SELECT 1 FROM " + table + ")");
+            rs.next();
+            return rs.getBoolean(1);
+         } finally {
+            stmt.close();
+         }
+      } finally {
+         this._pool.release(pc);
+      }
+   }
+
+   // splits a sql script into statements, dropping -- comments
+   private static List<String> readStatements(File file) throws IOException {
+      List<String> statements = new ArrayList<String>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+         StringBuilder sql = new StringBuilder();
+         String line;
+         while ((line = reader.readLine()) != null) {
+            int comment = line.indexOf("--");
+            if (comment >= 0)
+               line = line.substring(0, comment);
+            sql.append(line).append('\n');
+            int end;
+            while ((end = sql.indexOf(";")) >= 0) {
+               String stmt = sql.substring(0, end).trim();
+               if (!stmt.isEmpty())
+                  statements.add(stmt);
+               sql.delete(0, end + 1);
+            }
+         }
+      } finally {
+         reader.close();
+      }
+      return statements;
+   }// end readStatements
+
+   /**
+    * Loads the csv files into the database
+    *
+    * @param args dbname, port, user, the data directory and the path of
+    *             create_indexes.sql
+    */
+   public static void main(String[] args) {
+      if (args.length != 5) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     BulkLoader.class.getName() +
+                     " <dbname> <port> <user> <data dir> <create_indexes.sql>");
+         return;
+      } // end if
+
+      ConnectionPool pool = null;
+      try {
+         Class.forName("org.postgresql.Driver");
+         int workers = Integer.getInteger("amazon.load.workersPerTable", 4);
+         int chunkRows = Integer.getInteger("amazon.load.chunkRows", 50000);
+         String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0] + "?stringtype=unspecified";
+         // the widest stage loads three tables at once
+         pool = new ConnectionPool(url, args[2], "", 0, workers * 3 + 1, 10L * 60 * 1000, 0, Long.MAX_VALUE, 0);
+         new BulkLoader(pool, new File(args[3]), new File(args[4]), workers, chunkRows).load();
+         System.out.println(pool.stats());
+      } catch (Exception e) {
+         Throwable cause = e.getCause() != null ? e.getCause() : e;
+         System.err.println("Error - Bulk load failed: " + cause.getMessage());
+         System.exit(-1);
+      } finally {
+         if (pool != null)
+            pool.close();
+      }
+   }// end main
+}// end BulkLoader
@@ -0,0 +1,97 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class collects the lines of a multi-item order before checkout.
+ * Adding a product that is already in the cart for the same store adds to
+ * its units instead of creating a second line, so every (store, product)
+ * appears at most once. Product names are kept trimmed, since the char(30)
+ * column pads them.
+ *
+ */
+public class Cart {
+
+   private final List<Line> _lines = new ArrayList<Line>();
+
+   /**
+    * Adds units of a product to the cart
+    *
+    * @param storeID     the store ordered from
+    * @param productName the product ordered
+    * @param units       the number of units, at least 1
+    */
+   public void add(int storeID, String productName, int units) {
+      if (units < 1)
+         throw new IllegalArgumentException("units must be at least 1");
+      productName = productName.trim();
+      for (int i = 0; i < this._lines.size(); i++) {
+         Line line = this._lines.get(i);
+         if (line.storeID == storeID && line.productName.equals(productName)) {
+            this._lines.set(i, new Line(storeID, productName, line.units + units));
+            return;
+         }
+      }
+      this._lines.add(new Line(storeID, productName, units));
+   }// end add
+
+   public List<Line> lines() {
+      return Collections.unmodifiableList(this._lines);
+   }
+
+   public int size() {
+      return this._lines.size();
+   }
+
+   public boolean isEmpty() {
+      return this._lines.isEmpty();
+   }
+
+   public void clear() {
+      this._lines.clear();
+   }
+
+   /**
+    * One (store, product, units) line of the cart. The product name is
+    * trimmed.
+    */
+   public static class Line {
+      public final int storeID;
+      public final String productName;
+      public final int units;
+
+      public Line(int storeID, String productName, int units) {
+         this.storeID = storeID;
+         this.productName = productName.trim();
+         this.units = units;
+      }
+   }// end Line
+
+   /**
+    * The outcome of a checkout: either every line was ordered, or none was
+    * and rejected names the first line that could not be.
+    */
+   public static class Receipt {
+      // order numbers, in line order; empty when the checkout was rejected
+      public final int[] orderNumbers;
+      public final Line rejected;
+      // Amazon.ORDER_OUT_OF_STOCK or Amazon.ORDER_NO_SUCH_PRODUCT when rejected
+      public final int reason;
+
+      Receipt(int[] orderNumbers) {
+         this.orderNumbers = orderNumbers;
+         this.rejected = null;
+         this.reason = 0;
+      }
+
+      Receipt(Line rejected, int reason) {
+         this.orderNumbers = new int[0];
+         this.rejected = rejected;
+         this.reason = reason;
+      }
+
+      public boolean isPlaced() {
+         return this.rejected == null;
+      }
+   }// end Receipt
+}// end Cart
@@ -0,0 +1,211 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class caches the product list of the most recently browsed stores.
+ * At most `maxStores` catalogs are kept, the least recently used one is
+ * evicted first, and a catalog older than `ttlMillis` is reloaded so that
+ * writes made by other processes show up eventually.
+ *
+ * Writes made through this process update the cached catalog in place
+ * (adjustUnits, set) or drop it (invalidate). A catalog read from the
+ * database is only installed if no write to that store happened while it
+ * was being read, since it might not include that write.
+ *
+ */
+public class CatalogCache {
+
+   private final int _maxStores;
+   private final long _ttlMillis;
+   private final LinkedHashMap<Integer, Catalog> _catalogs;
+
+   // per store, bumped by every write to it, see put()
+   private final HashMap<Integer, Long> _versions = new HashMap<Integer, Long>();
+
+   private long _hits = 0;
+   private long _misses = 0;
+   private long _evictions = 0;
+
+   /**
+    * @param maxStores the number of catalogs kept
+    * @param ttlMillis how long a catalog is served before it is reloaded,
+    *                  0 to keep it until it is evicted
+    */
+   public CatalogCache(int maxStores, long ttlMillis) {
+      if (maxStores < 1)
+         throw new IllegalArgumentException("maxStores must be at least 1");
+      this._maxStores = maxStores;
+      this._ttlMillis = ttlMillis;
+      // access order, so the eldest entry is the least recently used store
+      this._catalogs = new LinkedHashMap<Integer, Catalog>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<Integer, Catalog> eldest) {
+            if (size() > CatalogCache.this._maxStores) {
+               CatalogCache.this._evictions++;
+               return true;
+            }
+            return false;
+         }
+      };
+   }
+
+   /**
+    * @param storeID the store
+    * @return the store's products, or null when they have to be read from
+    *         the database. The list must not be modified.
+    */
+   public synchronized List<Product> get(int storeID) {
+      Catalog catalog = this._catalogs.get(storeID);
+      if (catalog != null && this._ttlMillis > 0
+            && System.currentTimeMillis() - catalog.loadedAt > this._ttlMillis) {
+         this._catalogs.remove(storeID);
+         catalog = null;
+      }
+      if (catalog == null) {
+         this._misses++;
+         return null;
+      }
+      this._hits++;
+      return catalog.products;
+   }// end get
+
+   /**
+    * @param storeID     the store
+    * @param productName the product, padded or not
+    * @return the product, or null when it is not in the cached catalog or
+    *         the catalog is not cached
+    */
+   public synchronized Product find(int storeID, String productName) {
+      Catalog catalog = this._catalogs.get(storeID);
+      if (catalog == null)
+         return null;
+      int i = catalog.indexOf(productName.trim());
+      return i < 0 ? null : catalog.products.get(i);
+   }// end find
+
+   /**
+    * @param storeID the store
+    * @return the store's write version, to be passed to put()
+    */
+   public synchronized long version(int storeID) {
+      return this._versions.getOrDefault(storeID, 0L);
+   }
+
+   /**
+    * Installs a catalog read from the database
+    *
+    * @param storeID  the store
+    * @param products its products
+    * @param version  the value of version(storeID) taken before reading
+    */
+   public synchronized void put(int storeID, List<Product> products, long version) {
+      if (version == version(storeID))
+         this._catalogs.put(storeID, new Catalog(products, System.currentTimeMillis()));
+   }// end put
+
+   /**
+    * Adds delta units to a product's stock, after an order (negative) or a
+    * supply request (positive) was committed
+    */
+   public synchronized void adjustUnits(int storeID, String productName, int delta) {
+      this._versions.merge(storeID, 1L, Long::sum);
+      Catalog catalog = this._catalogs.get(storeID);
+      if (catalog == null)
+         return;
+      int i = catalog.indexOf(productName.trim());
+      if (i < 0) {
+         this._catalogs.remove(storeID);
+         return;
+      }
+      Product old = catalog.products.get(i);
+      catalog.replace(i, new Product(old.productName, old.numberOfUnits + delta, old.pricePerUnit));
+   }// end adjustUnits
+
+   /**
+    * Sets a product's stock and price, after it was updated
+    */
+   public synchronized void set(int storeID, String productName, int numberOfUnits, double pricePerUnit) {
+      this._versions.merge(storeID, 1L, Long::sum);
+      Catalog catalog = this._catalogs.get(storeID);
+      if (catalog == null)
+         return;
+      int i = catalog.indexOf(productName.trim());
+      if (i < 0) {
+         this._catalogs.remove(storeID);
+         return;
+      }
+      catalog.replace(i, new Product(productName, numberOfUnits, pricePerUnit));
+   }// end set
+
+   /**
+    * Drops a store's catalog
+    */
+   public synchronized void invalidate(int storeID) {
+      this._versions.merge(storeID, 1L, Long::sum);
+      this._catalogs.remove(storeID);
+   }
+
+   public synchronized double hitRate() {
+      long lookups = this._hits + this._misses;
+      return lookups == 0 ? 0 : (double) this._hits / lookups;
+   }
+
+   public synchronized long getEvictions() {
+      return this._evictions;
+   }
+
+   /**
+    * @return a one-line summary of the cache
+    */
+   public synchronized String stats() {
+      return "catalogCache[stores=" + this._catalogs.size()
+            + " maxStores=" + this._maxStores
+            + " hits=" + this._hits
+            + " misses=" + this._misses
+            + " hitRate=" + String.format("%.2f", hitRate())
+            + " evictions=" + this._evictions + "]";
+   }
+
+   /**
+    * One row of a store's catalog. The product name is trimmed.
+    */
+   public static class Product {
+      public final String productName;
+      public final int numberOfUnits;
+      public final double pricePerUnit;
+
+      public Product(String productName, int numberOfUnits, double pricePerUnit) {
+         this.productName = productName.trim();
+         this.numberOfUnits = numberOfUnits;
+         this.pricePerUnit = pricePerUnit;
+      }
+   }// end Product
+
+   private static class Catalog {
+      // replaced, never modified, so readers can keep iterating a snapshot
+      List<Product> products;
+      final long loadedAt;
+
+      Catalog(List<Product> products, long loadedAt) {
+         this.products = Collections.unmodifiableList(new ArrayList<Product>(products));
+         this.loadedAt = loadedAt;
+      }
+
+      int indexOf(String productName) {
+         for (int i = 0; i < this.products.size(); i++) {
+            if (this.products.get(i).productName.equals(productName))
+               return i;
+         }
+         return -1;
+      }
+
+      void replace(int i, Product product) {
+         List<Product> products = new ArrayList<Product>(this.products);
+         products.set(i, product);
+         this.products = Collections.unmodifiableList(products);
+      }
+   }// end Catalog
+}// end CatalogCache
@@ -0,0 +1,417 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines a bounded pool of physical database connections shared
+ * by every session of the Amazon store. minIdle connections are opened up
+ * front (warm-up) and kept open, connections are validated before they are
+ * handed out when they have been idle for a while, and closed and replaced
+ * once they exceed their maximum lifetime.
+ *
+ */
+public class ConnectionPool {
+
+   // query used to check that an idle connection is still alive.
+   private static final String VALIDATION_QUERY = "SELECT 1";
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+
+   private final int _minIdle;
+   private final int _maxSize;
+   private final int _statementCacheSize;
+   private final long _acquireTimeoutMillis;
+   private final long _maxLifetimeMillis;
+   private final long _validationIntervalMillis;
+   private final String _initSql;
+
+   // one permit per connection the pool is still allowed to hand out.
+   private final Semaphore _permits;
+
+   // idle connections, most recently used first.
+   private final Deque<PooledConnection> _idle = new ArrayDeque<PooledConnection>();
+
+   // connections handed out and not yet released.
+   private final Set<PooledConnection> _inUse = ConcurrentHashMap.newKeySet();
+
+   private volatile boolean _closed = false;
+
+   // set while a release is opening connections back up to minIdle.
+   private final AtomicBoolean _refilling = new AtomicBoolean();
+
+   // acquire metrics
+   private final AtomicLong _acquired = new AtomicLong();
+   private final AtomicLong _timeouts = new AtomicLong();
+   private final AtomicLong _waitNanos = new AtomicLong();
+   private final AtomicLong _maxWaitNanos = new AtomicLong();
+   private final AtomicLong _opened = new AtomicLong();
+   private final AtomicLong _retired = new AtomicLong();
+   private final AtomicLong _failedValidations = new AtomicLong();
+
+   /**
+    * Creates a new connection pool and opens its first connections.
+    *
+    * @param url                    the JDBC connection URL
+    * @param user                   the user name used to login to the database
+    * @param passwd                 the user login password
+    * @param minIdle                number of connections opened during warm-up,
+    *                               and kept open
+    * @param maxSize                maximum number of connections handed out at once
+    * @param acquireTimeoutMillis   how long acquire() waits for a free connection
+    * @param maxLifetimeMillis      age after which a connection is replaced
+    * @param validationIntervalMillis idle time after which a connection is
+    *                               re-validated before being handed out
+    * @param statementCacheSize     number of prepared statements kept open per
+    *                               connection
+    * @throws java.sql.SQLException when the warm-up connections cannot be opened
+    */
+   public ConnectionPool(String url, String user, String passwd, int minIdle, int maxSize,
+         long acquireTimeoutMillis, long maxLifetimeMillis, long validationIntervalMillis,
+         int statementCacheSize) throws SQLException {
+      this(url, user, passwd, minIdle, maxSize, acquireTimeoutMillis, maxLifetimeMillis,
+            validationIntervalMillis, statementCacheSize, null);
+   }// end ConnectionPool
+
+   /**
+    * Creates a new connection pool whose connections run a statement when
+    * they are opened, e.g. a SET of a session setting.
+    *
+    * @param initSql the statement run on every new connection, or null
+    * @see #ConnectionPool(String, String, String, int, int, long, long, long, int)
+    */
+   public ConnectionPool(String url, String user, String passwd, int minIdle, int maxSize,
+         long acquireTimeoutMillis, long maxLifetimeMillis, long validationIntervalMillis,
+         int statementCacheSize, String initSql) throws SQLException {
+      if (maxSize < 1)
+         throw new IllegalArgumentException("maxSize must be at least 1");
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._maxSize = maxSize;
+      this._acquireTimeoutMillis = acquireTimeoutMillis;
+      this._maxLifetimeMillis = maxLifetimeMillis;
+      this._validationIntervalMillis = validationIntervalMillis;
+      this._statementCacheSize = statementCacheSize;
+      this._initSql = initSql;
+      this._permits = new Semaphore(maxSize, true);
+
+      // warm-up
+      this._minIdle = Math.min(minIdle, maxSize);
+      for (int i = 0; i < this._minIdle; i++)
+         this._idle.addLast(open());
+   }// end ConnectionPool
+
+   /**
+    * Borrows a connection from the pool. The caller must hand it back with
+    * release() once done, usually from a finally block.
+    *
+    * @return a validated connection
+    * @throws java.sql.SQLException when no connection became available before
+    *                               the acquire timeout, or a new one could not
+    *                               be opened
+    */
+   public PooledConnection acquire() throws SQLException {
+      if (this._closed)
+         throw new SQLException("Connection pool is closed");
+
+      long start = System.nanoTime();
+      try {
+         if (!this._permits.tryAcquire(this._acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            this._timeouts.incrementAndGet();
+            // 53300 is the server's too_many_connections
+            throw new SQLException("Timed out after " + this._acquireTimeoutMillis
+                  + " ms waiting for a database connection (pool size " + this._maxSize + ")", "53300");
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a database connection");
+      }
+      recordWait(System.nanoTime() - start);
+
+      try {
+         PooledConnection pc;
+         while ((pc = pollIdle()) != null) {
+            if (isUsable(pc)) {
+               pc.touch();
+               this._acquired.incrementAndGet();
+               this._inUse.add(pc);
+               return pc;
+            }
+            retire(pc);
+         }
+         pc = open();
+         this._acquired.incrementAndGet();
+         this._inUse.add(pc);
+         return pc;
+      } catch (SQLException e) {
+         this._permits.release();
+         throw e;
+      } catch (RuntimeException e) {
+         this._permits.release();
+         throw e;
+      }
+   }// end acquire
+
+   /**
+    * Hands a connection back to the pool. Connections that are past their
+    * maximum lifetime, or that were marked broken, are closed instead of being
+    * reused, and replaced while fewer than minIdle are left open.
+    *
+    * @param pc the connection obtained from acquire()
+    */
+   public void release(PooledConnection pc) {
+      if (pc == null)
+         return;
+      this._inUse.remove(pc);
+      try {
+         if (this._closed || pc.isBroken() || isExpired(pc)) {
+            retire(pc);
+         } else {
+            try {
+               if (!pc.connection().getAutoCommit()) {
+                  pc.connection().rollback();
+                  pc.connection().setAutoCommit(true);
+               }
+               pc.touch();
+               synchronized (this._idle) {
+                  this._idle.addFirst(pc);
+               }
+            } catch (SQLException e) {
+               retire(pc);
+            }
+         }
+      } finally {
+         this._permits.release();
+      }
+      refill();
+   }// end release
+
+   // opens connections until minIdle are open, so the connections retired
+   // on release or on acquire are replaced and a lane keeps its reserved
+   // connections ready
+   private void refill() {
+      if (!this._refilling.compareAndSet(false, true))
+         return;
+      try {
+         while (!this._closed) {
+            synchronized (this._idle) {
+               if (this._idle.size() + this._inUse.size() >= this._minIdle)
+                  return;
+            }
+            PooledConnection pc = open();
+            synchronized (this._idle) {
+               this._idle.addLast(pc);
+            }
+         }
+      } catch (SQLException e) {
+         // the server is unreachable, a later release tries again
+      } finally {
+         this._refilling.set(false);
+      }
+   }// end refill
+
+   /**
+    * Closes every idle connection and refuses further acquires. Connections
+    * still in use are closed when they are released.
+    */
+   public void close() {
+      this._closed = true;
+      PooledConnection pc;
+      while ((pc = pollIdle()) != null)
+         retire(pc);
+   }// end close
+
+   /**
+    * Cancels the statements running on the connections handed out. Their
+    * callers get an SQLException with SQLSTATE 57014 and release their
+    * connections as usual.
+    *
+    * @return the statements cancelled
+    */
+   public int cancel() {
+      int cancelled = 0;
+      for (PooledConnection pc : this._inUse)
+         cancelled += pc.statements().cancel();
+      return cancelled;
+   }// end cancel
+
+   /**
+    * @return a one-line summary of the pool counters
+    */
+   public String stats() {
+      long acquired = this._acquired.get();
+      long avgWaitMicros = acquired == 0 ? 0 : this._waitNanos.get() / acquired / 1000;
+      int idle;
+      synchronized (this._idle) {
+         idle = this._idle.size();
+      }
+      return "pool[size=" + this._maxSize
+            + " inUse=" + (this._maxSize - this._permits.availablePermits())
+            + " idle=" + idle
+            + " acquired=" + acquired
+            + " timeouts=" + this._timeouts.get()
+            + " avgWait=" + avgWaitMicros + "us"
+            + " maxWait=" + (this._maxWaitNanos.get() / 1000) + "us"
+            + " opened=" + this._opened.get()
+            + " retired=" + this._retired.get()
+            + " failedValidations=" + this._failedValidations.get() + "]";
+   }// end stats
+
+   public long getAcquireCount() {
+      return this._acquired.get();
+   }
+
+   public long getTimeoutCount() {
+      return this._timeouts.get();
+   }
+
+   public int getMaxSize() {
+      return this._maxSize;
+   }
+
+   private PooledConnection open() throws SQLException {
+      Connection conn = DriverManager.getConnection(this._url, this._user, this._passwd);
+      if (this._initSql != null) {
+         try {
+            Statement stmt = conn.createStatement();
+            try {
+               stmt.execute(this._initSql);
+            } finally {
+               stmt.close();
+            }
+         } catch (SQLException e) {
+            conn.close();
+            throw e;
+         }
+      }
+      this._opened.incrementAndGet();
+      return new PooledConnection(this, conn, this._statementCacheSize);
+   }
+
+   private PooledConnection pollIdle() {
+      synchronized (this._idle) {
+         return this._idle.pollFirst();
+      }
+   }
+
+   private boolean isExpired(PooledConnection pc) {
+      return this._maxLifetimeMillis > 0
+            && System.currentTimeMillis() - pc.createdAt() > this._maxLifetimeMillis;
+   }
+
+   private boolean isUsable(PooledConnection pc) {
+      if (isExpired(pc))
+         return false;
+      if (System.currentTimeMillis() - pc.lastUsedAt() < this._validationIntervalMillis)
+         return true;
+      try {
+         Statement stmt = pc.connection().createStatement();
+         try {
+            stmt.executeQuery(VALIDATION_QUERY).close();
+         } finally {
+            stmt.close();
+         }
+         return true;
+      } catch (SQLException e) {
+         this._failedValidations.incrementAndGet();
+         return false;
+      }
+   }
+
+   private void retire(PooledConnection pc) {
+      this._retired.incrementAndGet();
+      pc.closeQuietly();
+   }
+
+   private void recordWait(long nanos) {
+      this._waitNanos.addAndGet(nanos);
+      long max;
+      while (nanos > (max = this._maxWaitNanos.get())) {
+         if (this._maxWaitNanos.compareAndSet(max, nanos))
+            break;
+      }
+   }
+
+   /**
+    * A physical connection owned by the pool, along with the bookkeeping the
+    * pool needs to validate and rotate it.
+    */
+   public static class PooledConnection {
+      private final ConnectionPool _pool;
+      private final Connection _connection;
+      private final StatementCache _statements;
+      private final long _createdAt;
+      private volatile long _lastUsedAt;
+      private volatile boolean _broken = false;
+
+      PooledConnection(ConnectionPool pool, Connection connection, int statementCacheSize) {
+         this._pool = pool;
+         this._connection = connection;
+         this._statements = new StatementCache(connection, statementCacheSize);
+         this._createdAt = System.currentTimeMillis();
+         this._lastUsedAt = this._createdAt;
+      }
+
+      public Connection connection() {
+         return this._connection;
+      }
+
+      /**
+       * @return the pool the connection has to be released to
+       */
+      public ConnectionPool pool() {
+         return this._pool;
+      }
+
+      /**
+       * @return the prepared statements kept open on this connection
+       */
+      public StatementCache statements() {
+         return this._statements;
+      }
+
+      /**
+       * Marks the connection as unusable so that the pool closes it on
+       * release instead of handing it out again.
+       */
+      public void markBroken() {
+         this._broken = true;
+      }
+
+      boolean isBroken() {
+         return this._broken;
+      }
+
+      long createdAt() {
+         return this._createdAt;
+      }
+
+      long lastUsedAt() {
+         return this._lastUsedAt;
+      }
+
+      void touch() {
+         this._lastUsedAt = System.currentTimeMillis();
+      }
+
+      void closeQuietly() {
+         this._statements.close();
+         try {
+            this._connection.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }// end PooledConnection
+}// end ConnectionPool
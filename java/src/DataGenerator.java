@@ -0,0 +1,395 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class writes a synthetic dataset in the csv layouts of data/, sized
+ * by a scale factor. Scale factor 1 is 100,000 users, 1,000 stores and
+ * 1,000,000 orders; every table grows linearly with it, so 300 gives 300
+ * million orders.
+ *
+ * The data is skewed the way a store's data is: stores sit in clusters
+ * around a number of city centres, most users live near them, and both the
+ * customers placing orders and the products ordered at a store follow a
+ * Zipf distribution (amazon.generate.zipf, 1.0 by default). The same seed
+ * (amazon.generate.seed) always produces the same files.
+ *
+ * Rows are generated in chunks on amazon.generate.threads threads and
+ * written in order as they complete, so memory stays at a few chunks
+ * however large the dataset is. Every row is derived from its number and
+ * the seed alone, which is also what lets orders reference stores, products
+ * and users without holding them in memory.
+ *
+ */
+public class DataGenerator {
+
+   private static final int CHUNK_ROWS = 100000;
+
+   // product names, the ones of the shipped data first
+   private static final String[] PRODUCT_NAMES = buildProductNames();
+
+   private static final String[] FIRST = { "Amy", "Bob", "Marshall", "Natalie", "Olivia", "Liam", "Emma", "Noah",
+         "Ava", "Elijah", "Sophia", "James", "Isabella", "Lucas", "Mia", "Mason", "Harper", "Ethan", "Evelyn",
+         "Logan" };
+   private static final String[] LAST = { "Johns", "Braun", "Smith", "Garcia", "Miller", "Davis", "Lopez",
+         "Wilson", "Anderson", "Thomas", "Moore", "Martin", "Lee", "Clark", "Lewis", "Walker", "Hall", "Young",
+         "King", "Wright" };
+
+   // one user in MANAGER_EVERY is a manager; user 1 is the admin
+   private static final int MANAGER_EVERY = 100;
+
+   private static final int MIN_PRODUCTS = 10;
+   private static final int MAX_PRODUCTS = 40;
+
+   private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+   private static final LocalDateTime START = LocalDateTime.of(2016, 1, 1, 0, 0);
+   private static final long SPAN_SECONDS = 365L * 24 * 3600;
+
+   private final long _seed;
+   private final int _threads;
+
+   private final long _users;
+   private final long _stores;
+   private final long _warehouses;
+   private final long _orders;
+   private final long _supplyRequests;
+   private final long _updates;
+
+   private final double[][] _cities;
+   private final Zipf _customerZipf;
+   private final Zipf[] _productZipf; // by the number of products of a store
+
+   public DataGenerator(double scale, long seed, double zipf, int threads) {
+      this._seed = seed;
+      this._threads = threads;
+      this._users = Math.max(1000, (long) (100000 * scale));
+      this._stores = Math.max(20, (long) (1000 * scale));
+      this._warehouses = Math.max(5, (long) (10 * scale));
+      this._orders = (long) (1000000 * scale);
+      this._supplyRequests = (long) (10000 * scale);
+      this._updates = (long) (50000 * scale);
+
+      // city centres, 20 at scale 1 and more as the map fills up
+      SplittableRandom random = new SplittableRandom(seed);
+      this._cities = new double[(int) (20 * Math.ceil(Math.sqrt(Math.max(1, scale))))][];
+      for (int i = 0; i < this._cities.length; i++)
+         this._cities[i] = new double[] { 5 + random.nextDouble() * 90, 5 + random.nextDouble() * 90 };
+      this._customerZipf = new Zipf(this._users, zipf);
+      this._productZipf = new Zipf[MAX_PRODUCTS + 1];
+      for (int i = MIN_PRODUCTS; i <= MAX_PRODUCTS; i++)
+         this._productZipf[i] = new Zipf(i, zipf);
+   }// end DataGenerator
+
+   /**
+    * The main execution method
+    *
+    * @param args <output dir> <scale factor>
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length != 2) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     DataGenerator.class.getName() +
+                     " <output dir> <scale factor>");
+         return;
+      } // end if
+
+      File dir = new File(args[0]);
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         System.err.println("Cannot create " + dir);
+         return;
+      }
+      DataGenerator generator = new DataGenerator(Double.parseDouble(args[1]),
+            Long.getLong("amazon.generate.seed", 42L),
+            Double.parseDouble(System.getProperty("amazon.generate.zipf", "1.0")),
+            Integer.getInteger("amazon.generate.threads", Runtime.getRuntime().availableProcessors()));
+      generator.generate(dir);
+   }// end main
+
+   /**
+    * Writes every table into dir, under the file names of data/
+    */
+   public void generate(File dir) throws Exception {
+      ExecutorService executor = Executors.newFixedThreadPool(this._threads);
+      try {
+         write(executor, new File(dir, "users.csv"), "userID,name,password,latitude,longitude,type",
+               this._users, 1, this::user);
+         write(executor, new File(dir, "stores.csv"), "storeID,latitude,longitude,managerID,dateEstablished",
+               this._stores, 2, this::store);
+         // a row of `stores` writes every product of the store
+         write(executor, new File(dir, "products.csv"), "storeID,productName,numberOfUnits,pricePerUnit",
+               this._stores, 3, this::products);
+         write(executor, new File(dir, "warehouse.csv"), "wareHouseID,area,latitude,longitude",
+               this._warehouses, 4, this::warehouse);
+         write(executor, new File(dir, "orders.csv"),
+               "orderNumber,customerID,storeID,productName,unitsOrdered,orderTime",
+               this._orders, 5, this::order);
+         write(executor, new File(dir, "productSupplyRequests.csv"),
+               "requestNumber,managerID,warehouseID,storeID,productName,unitsRequested",
+               this._supplyRequests, 6, this::supplyRequest);
+         write(executor, new File(dir, "productUpdates.csv"),
+               "updateNumber,managerID,storeID,productName,updatedOn",
+               this._updates, 7, this::update);
+      } finally {
+         executor.shutdown();
+      }
+   }// end generate
+
+   // users: 1 is the admin, every MANAGER_EVERY-th a manager, the rest
+   // customers. Most live around a city.
+   private void user(long id, SplittableRandom random, StringBuilder out) {
+      double[] location = around(random, random.nextInt(10) < 8 ? 4 : 0);
+      String first = FIRST[random.nextInt(FIRST.length)];
+      String last = LAST[random.nextInt(LAST.length)];
+      out.append(id).append(',')
+            .append(first).append(random.nextBoolean() ? '.' : '_').append(last).append(id).append(",xyz,")
+            .append(coordinate(location[0])).append(',').append(coordinate(location[1])).append(',')
+            .append(id == 1 ? "admin" : id % MANAGER_EVERY == 0 ? "manager" : "customer").append('\n');
+   }
+
+   private void store(long id, SplittableRandom random, StringBuilder out) {
+      double[] location = around(random, 2);
+      LocalDate established = LocalDate.of(1950, 1, 1).plusDays(random.nextInt(365 * 65));
+      out.append(id).append(',')
+            .append(coordinate(location[0])).append(',').append(coordinate(location[1])).append(',')
+            .append(managerOf(id)).append(',')
+            .append(established.getMonthValue()).append('/').append(established.getDayOfMonth()).append('/')
+            .append(established.getYear()).append('\n');
+   }
+
+   // every product of one store, a row per product
+   private void products(long storeID, SplittableRandom random, StringBuilder out) {
+      int count = productCount(storeID);
+      for (int i = 0; i < count; i++) {
+         out.append(storeID).append(',').append(productOf(storeID, i)).append(',')
+               .append(10 + random.nextInt(991)).append(',').append(1 + random.nextInt(20)).append('\n');
+      }
+   }
+
+   private void warehouse(long id, SplittableRandom random, StringBuilder out) {
+      double[] location = around(random, 0);
+      out.append(id).append(',').append(5000 + random.nextInt(75001)).append(',')
+            .append(coordinate(location[0])).append(',').append(coordinate(location[1])).append('\n');
+   }
+
+   // the customer and the product are Zipf distributed, the store uniform
+   private void order(long orderNumber, SplittableRandom random, StringBuilder out) {
+      long customerID = customerOf(this._customerZipf.sample(random));
+      long storeID = 1 + random.nextLong(this._stores);
+      int product = (int) this._productZipf[productCount(storeID)].sample(random) - 1;
+      out.append(orderNumber).append(',').append(customerID).append(',').append(storeID).append(',')
+            .append(productOf(storeID, product)).append(',').append(1 + random.nextInt(50)).append(',')
+            .append(timeOf(orderNumber, this._orders)).append('\n');
+   }
+
+   private void supplyRequest(long requestNumber, SplittableRandom random, StringBuilder out) {
+      long storeID = 1 + random.nextLong(this._stores);
+      out.append(requestNumber).append(',').append(managerOf(storeID)).append(',')
+            .append(1 + random.nextLong(this._warehouses)).append(',').append(storeID).append(',')
+            .append(productOf(storeID, random.nextInt(productCount(storeID)))).append(',')
+            .append(1 + random.nextInt(100)).append('\n');
+   }
+
+   private void update(long updateNumber, SplittableRandom random, StringBuilder out) {
+      long storeID = 1 + random.nextLong(this._stores);
+      out.append(updateNumber).append(',').append(managerOf(storeID)).append(',').append(storeID).append(',')
+            .append(productOf(storeID, random.nextInt(productCount(storeID)))).append(',')
+            .append(timeOf(updateNumber, this._updates)).append('\n');
+   }
+
+   // a point near a random city, spread by sigma; sigma 0 is anywhere
+   private double[] around(SplittableRandom random, double sigma) {
+      if (sigma == 0)
+         return new double[] { random.nextDouble() * 99.9, random.nextDouble() * 99.9 };
+      double[] city = this._cities[random.nextInt(this._cities.length)];
+      return new double[] { clamp(city[0] + gaussian(random) * sigma), clamp(city[1] + gaussian(random) * sigma) };
+   }
+
+   // stores have MIN_PRODUCTS to MAX_PRODUCTS products, a window of the
+   // product names that starts at a store-dependent offset
+   private static int productCount(long storeID) {
+      return MIN_PRODUCTS + (int) (mix(storeID * 31 + 7) % (MAX_PRODUCTS - MIN_PRODUCTS + 1));
+   }
+
+   private static String productOf(long storeID, int i) {
+      int offset = (int) (mix(storeID) % PRODUCT_NAMES.length);
+      return PRODUCT_NAMES[(offset + i) % PRODUCT_NAMES.length];
+   }
+
+   private long managerOf(long storeID) {
+      long managers = this._users / MANAGER_EVERY;
+      return MANAGER_EVERY * (1 + mix(storeID * 17 + 3) % managers);
+   }
+
+   // spreads popularity ranks over the user IDs, skipping the admin and the
+   // managers so that only customers place orders
+   private long customerOf(long rank) {
+      long id = ((rank - 1) * 1000000007L) % this._users + 1;
+      if (id == 1 || id % MANAGER_EVERY == 0)
+         id = id == this._users ? id - 1 : id + 1;
+      return id;
+   }
+
+   // row n of total, spread evenly over a year so that time follows number
+   private static String timeOf(long n, long total) {
+      return START.plusSeconds(SPAN_SECONDS * (n - 1) / Math.max(1, total)).format(TIME);
+   }
+
+   // five decimals, as in data/; String.format is slow at this volume
+   private static String coordinate(double value) {
+      long fixed = Math.round(value * 100000);
+      String fraction = Long.toString(100000 + fixed % 100000);
+      return (fixed / 100000) + "." + fraction.substring(1);
+   }
+
+   private static double clamp(double value) {
+      return Math.max(0, Math.min(99.9, value));
+   }
+
+   private static double gaussian(SplittableRandom random) {
+      // Box-Muller, SplittableRandom has no nextGaussian on every JDK
+      double u = 1 - random.nextDouble();
+      return Math.sqrt(-2 * Math.log(u)) * Math.cos(2 * Math.PI * random.nextDouble());
+   }
+
+   // a fixed scramble of a number, the splitmix64 finalizer, non-negative
+   private static long mix(long z) {
+      z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+      z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+      return (z ^ (z >>> 31)) >>> 1;
+   }
+
+   private static String[] buildProductNames() {
+      String[] shipped = { "7up", "Pepsi", "Brisk", "Donuts", "Egg", "Hot and Sour Soup", "Ice Cream",
+            "Lemonade", "Orange Juice", "Pudding" };
+      String[] names = new String[100];
+      for (int i = 0; i < names.length; i++)
+         names[i] = i < shipped.length ? shipped[i] : "Product " + i;
+      return names;
+   }
+
+   interface RowWriter {
+      void write(long row, SplittableRandom random, StringBuilder out);
+   }
+
+   /**
+    * Writes rows 1 to `rows` of a table. Chunks are generated in parallel,
+    * each from its own random stream derived from the seed, the table and
+    * the chunk number, and written in chunk order; at most twice as many
+    * chunks as threads are in memory at once.
+    */
+   private void write(ExecutorService executor, File file, String header, long rows, int table, RowWriter writer)
+         throws Exception {
+      long start = System.currentTimeMillis();
+      long chunks = (rows + CHUNK_ROWS - 1) / CHUNK_ROWS;
+      Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+      long bytes = 0;
+      AtomicLong lines = new AtomicLong();
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20)) {
+         out.write((header + "\n").getBytes(StandardCharsets.UTF_8));
+         long next = 0;
+         while (next < chunks || !pending.isEmpty()) {
+            while (next < chunks && pending.size() < 2 * this._threads) {
+               final long chunk = next++;
+               pending.addLast(executor.submit(() -> {
+                  SplittableRandom random = new SplittableRandom(mix(this._seed * 1000003 + table * 7919L + chunk));
+                  StringBuilder sb = new StringBuilder(CHUNK_ROWS * 48);
+                  long last = Math.min(rows, (chunk + 1) * CHUNK_ROWS);
+                  for (long row = chunk * CHUNK_ROWS + 1; row <= last; row++)
+                     writer.write(row, random, sb);
+                  int newlines = 0;
+                  for (int i = 0; i < sb.length(); i++)
+                     if (sb.charAt(i) == '\n')
+                        newlines++;
+                  lines.addAndGet(newlines);
+                  return sb.toString().getBytes(StandardCharsets.UTF_8);
+               }));
+            }
+            byte[] data = pending.removeFirst().get();
+            out.write(data);
+            bytes += data.length;
+         }
+      } catch (IOException e) {
+         throw new IOException("Writing " + file + " failed: " + e.getMessage(), e);
+      }
+      System.out.println("Wrote " + file.getName() + ": " + lines.get() + " rows, " + (bytes >> 20) + " MB in "
+            + (System.currentTimeMillis() - start) + " ms");
+   }// end write
+
+   /**
+    * Zipf distributed numbers from 1 to n, 1 the most frequent, by
+    * rejection-inversion sampling (Hormann and Derflinger), which needs no
+    * table, so n can be in the billions.
+    */
+   static class Zipf {
+      private final long _n;
+      private final double _exponent;
+      private final double _hIntegralX1;
+      private final double _hIntegralN;
+      private final double _s;
+
+      Zipf(long n, double exponent) {
+         if (n < 1 || exponent <= 0)
+            throw new IllegalArgumentException("n must be at least 1 and the exponent positive");
+         this._n = n;
+         this._exponent = exponent;
+         this._hIntegralX1 = hIntegral(1.5) - 1;
+         this._hIntegralN = hIntegral(n + 0.5);
+         this._s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+      }
+
+      long sample(SplittableRandom random) {
+         while (true) {
+            double u = this._hIntegralN + random.nextDouble() * (this._hIntegralX1 - this._hIntegralN);
+            double x = hIntegralInverse(u);
+            long k = (long) (x + 0.5);
+            if (k < 1)
+               k = 1;
+            else if (k > this._n)
+               k = this._n;
+            if (k - x <= this._s || u >= hIntegral(k + 0.5) - h(k))
+               return k;
+         }
+      }
+
+      private double h(double x) {
+         return Math.exp(-this._exponent * Math.log(x));
+      }
+
+      private double hIntegral(double x) {
+         double logX = Math.log(x);
+         return helper2((1 - this._exponent) * logX) * logX;
+      }
+
+      private double hIntegralInverse(double x) {
+         double t = x * (1 - this._exponent);
+         if (t < -1)
+            t = -1;
+         return Math.exp(helper1(t) * x);
+      }
+
+      // log(1 + x) / x, accurate near 0
+      private static double helper1(double x) {
+         return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+      }
+
+      // (exp(x) - 1) / x, accurate near 0
+      private static double helper2(double x) {
+         return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+      }
+   }// end Zipf
+}// end DataGenerator
@@ -0,0 +1,189 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class finds the most frequent keys of a stream, per store, in
+ * bounded memory with the Space-Saving algorithm. Each store keeps at most
+ * `capacity` counters. A key that is already counted is incremented; a new
+ * key takes over the smallest counter, inheriting its count as its possible
+ * overestimation (error). Every count is therefore at most `error` above the
+ * true count, and `error` is at most total / capacity.
+ *
+ * The top k answer is guaranteed to be exact in its membership when every
+ * one of the k keys has a lower bound (count - error) no smaller than the
+ * count of the best key left out; top() reports whether that holds so the
+ * caller can fall back to an exact computation.
+ *
+ */
+public class HeavyHitters {
+
+   private final int _capacity;
+   private final Map<Integer, Summary> _stores = new ConcurrentHashMap<Integer, Summary>();
+
+   // answers that met the guarantee, and those that did not
+   private final AtomicLong _hits = new AtomicLong();
+   private final AtomicLong _misses = new AtomicLong();
+
+   /**
+    * @param capacity the number of counters kept per store
+    */
+   public HeavyHitters(int capacity) {
+      if (capacity < 1)
+         throw new IllegalArgumentException("capacity must be at least 1");
+      this._capacity = capacity;
+   }
+
+   /**
+    * Counts weight occurrences of a key
+    *
+    * @param storeID the store the key belongs to
+    * @param key     the key, e.g. a customer ID
+    * @param weight  the number of occurrences
+    */
+   public void add(int storeID, int key, long weight) {
+      Summary summary = this._stores.get(storeID);
+      if (summary == null) {
+         this._stores.putIfAbsent(storeID, new Summary());
+         summary = this._stores.get(storeID);
+      }
+      summary.add(key, weight, this._capacity);
+   }// end add
+
+   /**
+    * Finds the most frequent keys of a store
+    *
+    * @param storeID the store
+    * @param k       the number of keys wanted
+    * @return the top keys, most frequent first
+    */
+   public Answer top(int storeID, int k) {
+      Summary summary = this._stores.get(storeID);
+      Answer answer = summary == null ? new Answer(new ArrayList<Counter>(), true, 0, 0) : summary.top(k, this._capacity);
+      if (answer.guaranteed)
+         this._hits.incrementAndGet();
+      else
+         this._misses.incrementAndGet();
+      return answer;
+   }// end top
+
+   /**
+    * Forgets every count, e.g. after a bootstrap that did not finish
+    */
+   public void clear() {
+      this._stores.clear();
+   }
+
+   public long getHits() {
+      return this._hits.get();
+   }
+
+   public long getMisses() {
+      return this._misses.get();
+   }
+
+   /**
+    * @return a one-line summary of the sketch
+    */
+   public String stats() {
+      return "heavyHitters[stores=" + this._stores.size()
+            + " capacity=" + this._capacity
+            + " hits=" + this._hits.get()
+            + " misses=" + this._misses.get() + "]";
+   }
+
+   /**
+    * A key with its estimated count. The true count is between
+    * count - error and count.
+    */
+   public static class Counter implements Comparable<Counter> {
+      public final int key;
+      public final long count;
+      public final long error;
+
+      Counter(int key, long count, long error) {
+         this.key = key;
+         this.count = count;
+         this.error = error;
+      }
+
+      public int compareTo(Counter other) {
+         int c = Long.compare(other.count, this.count);
+         return c != 0 ? c : Integer.compare(this.key, other.key);
+      }
+   }// end Counter
+
+   /**
+    * The top keys of a store, whether they are guaranteed to be the true
+    * top keys, the stream length seen for the store and the largest
+    * possible overestimation of any count in the answer.
+    */
+   public static class Answer {
+      public final List<Counter> top;
+      public final boolean guaranteed;
+      public final long total;
+      public final long maxError;
+
+      Answer(List<Counter> top, boolean guaranteed, long total, long maxError) {
+         this.top = top;
+         this.guaranteed = guaranteed;
+         this.total = total;
+         this.maxError = maxError;
+      }
+   }// end Answer
+
+   private static class Summary {
+      private final HashMap<Integer, Counter> _counters = new HashMap<Integer, Counter>();
+      private final TreeSet<Counter> _ranked = new TreeSet<Counter>();
+      private long _total = 0;
+
+      synchronized void add(int key, long weight, int capacity) {
+         this._total += weight;
+         Counter old = this._counters.get(key);
+         Counter updated;
+         if (old != null) {
+            this._ranked.remove(old);
+            updated = new Counter(key, old.count + weight, old.error);
+         } else if (this._counters.size() < capacity) {
+            updated = new Counter(key, weight, 0);
+         } else {
+            // take over the smallest counter
+            Counter min = this._ranked.pollLast();
+            this._counters.remove(min.key);
+            updated = new Counter(key, min.count + weight, min.count);
+         }
+         this._counters.put(key, updated);
+         this._ranked.add(updated);
+      }
+
+      synchronized Answer top(int k, int capacity) {
+         List<Counter> top = new ArrayList<Counter>(k);
+         Iterator<Counter> it = this._ranked.iterator();
+         while (top.size() < k && it.hasNext())
+            top.add(it.next());
+
+         // the true count of any key left out is at most the count of the
+         // next counter, or, for keys no longer counted, the smallest
+         // counter once the summary is full
+         long bestLeftOut = 0;
+         if (it.hasNext())
+            bestLeftOut = it.next().count;
+         else if (this._counters.size() == capacity)
+            bestLeftOut = this._ranked.last().count;
+
+         boolean guaranteed = true;
+         long maxError = 0;
+         for (Counter c : top) {
+            maxError = Math.max(maxError, c.error);
+            if (c.count - c.error < bestLeftOut)
+               guaranteed = false;
+         }
+         return new Answer(top, guaranteed, this._total, maxError);
+      }
+   }// end Summary
+}// end HeavyHitters
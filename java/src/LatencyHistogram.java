@@ -0,0 +1,148 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records latencies, in microseconds, into log-linear buckets so
+ * that percentiles can be read in fixed memory however many values are
+ * recorded. Values below 128 us are counted exactly; above that every
+ * power of two is split into 64 buckets, so a percentile is reported within
+ * 1.6% of the true value. Values above 2^40 us (about 12 days) are counted
+ * in the last bucket.
+ *
+ * Recording is lock-free and safe from any number of threads.
+ *
+ */
+public class LatencyHistogram {
+
+   private static final int EXACT = 128;
+   private static final int HALF = EXACT / 2;
+   private static final int MAX_SHIFT = 34;
+   private static final int BUCKETS = EXACT + MAX_SHIFT * HALF;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong _count = new AtomicLong();
+   private final AtomicLong _sum = new AtomicLong();
+   private final AtomicLong _max = new AtomicLong();
+
+   /**
+    * Records one latency
+    *
+    * @param nanos the latency, in nanoseconds
+    */
+   public void recordNanos(long nanos) {
+      record(nanos / 1000);
+   }
+
+   /**
+    * Records one latency
+    *
+    * @param micros the latency, in microseconds
+    */
+   public void record(long micros) {
+      if (micros < 0)
+         micros = 0;
+      this._counts.incrementAndGet(index(micros));
+      this._count.incrementAndGet();
+      this._sum.addAndGet(micros);
+      long max = this._max.get();
+      while (micros > max && !this._max.compareAndSet(max, micros))
+         max = this._max.get();
+   }// end record
+
+   public long count() {
+      return this._count.get();
+   }
+
+   /**
+    * @return the mean latency in microseconds, 0 when empty
+    */
+   public double mean() {
+      long count = this._count.get();
+      return count == 0 ? 0 : (double) this._sum.get() / count;
+   }
+
+   /**
+    * @return the largest latency recorded, in microseconds
+    */
+   public long max() {
+      return this._max.get();
+   }
+
+   /**
+    * @param p the percentile, between 0 and 100
+    * @return the latency in microseconds that p percent of the values are at
+    *         most, 0 when empty
+    */
+   public long percentile(double p) {
+      long[] counts = new long[BUCKETS];
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         counts[i] = this._counts.get(i);
+         total += counts[i];
+      }
+      if (total == 0)
+         return 0;
+      long rank = Math.max(1, (long) Math.ceil(p / 100 * total));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         seen += counts[i];
+         if (seen >= rank)
+            return Math.min(highestIn(i), this._max.get());
+      }
+      return this._max.get();
+   }// end percentile
+
+   /**
+    * Adds every value of another histogram to this one
+    */
+   public void add(LatencyHistogram other) {
+      for (int i = 0; i < BUCKETS; i++) {
+         long c = other._counts.get(i);
+         if (c != 0)
+            this._counts.addAndGet(i, c);
+      }
+      this._count.addAndGet(other._count.get());
+      this._sum.addAndGet(other._sum.get());
+      long max = this._max.get();
+      long otherMax = other._max.get();
+      while (otherMax > max && !this._max.compareAndSet(max, otherMax))
+         max = this._max.get();
+   }// end add
+
+   /**
+    * Clears the histogram. Values recorded while it runs may be lost.
+    */
+   public void reset() {
+      for (int i = 0; i < BUCKETS; i++)
+         this._counts.set(i, 0);
+      this._count.set(0);
+      this._sum.set(0);
+      this._max.set(0);
+   }
+
+   /**
+    * @return count, mean, p50, p99, p999 and max, in milliseconds
+    */
+   public String summary() {
+      return String.format("count=%d mean=%.3fms p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms",
+            count(), mean() / 1000, percentile(50) / 1000.0, percentile(99) / 1000.0,
+            percentile(99.9) / 1000.0, max() / 1000.0);
+   }
+
+   private static int index(long micros) {
+      if (micros < EXACT)
+         return (int) micros;
+      int shift = 63 - Long.numberOfLeadingZeros(micros) - 6;
+      if (shift > MAX_SHIFT)
+         return BUCKETS - 1;
+      return EXACT + (shift - 1) * HALF + (int) (micros >>> shift) - HALF;
+   }// end index
+
+   private static long highestIn(int index) {
+      if (index < EXACT)
+         return index;
+      int shift = (index - EXACT) / HALF + 1;
+      long top = (index - EXACT) % HALF + HALF;
+      return ((top + 1) << shift) - 1;
+   }// end highestIn
+}// end LatencyHistogram
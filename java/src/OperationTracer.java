@@ -0,0 +1,221 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class accounts for what one user action costs the database. An
+ * action runs inside a span, opened by start() and closed when it is done,
+ * and every statement executed on the same thread meanwhile is charged to
+ * it: its round trips, the rows it read or wrote and, at close, its wall
+ * time. A round trip is one statement execution, or one fetch of a streamed
+ * query. Spans nest; a statement is charged to every open span.
+ *
+ * A statement executed again with the same parameters inside one span is a
+ * repeat, usually a query in a loop or a list fetched twice. Spans with
+ * repeats are counted per operation, with the statement repeated most as
+ * the example.
+ *
+ * Nothing is recorded outside a span, so statements issued outside user
+ * actions cost only a ThreadLocal read.
+ *
+ */
+public class OperationTracer {
+
+   private final ThreadLocal<Span> _current = new ThreadLocal<Span>();
+   private final ConcurrentHashMap<String, Operation> _operations = new ConcurrentHashMap<String, Operation>();
+   private final boolean _log;
+
+   /**
+    * @param log whether every span is printed to standard error when it
+    *            closes
+    */
+   public OperationTracer(boolean log) {
+      this._log = log;
+   }
+
+   /**
+    * Opens a span on the current thread. Close it on the same thread, best
+    * with try-with-resources.
+    *
+    * @param operation the name the span is accounted under
+    */
+   public Span start(String operation) {
+      Span span = new Span(operation, this._current.get());
+      this._current.set(span);
+      return span;
+   }
+
+   /**
+    * @return the innermost open span of the current thread, or null
+    */
+   public Span current() {
+      return this._current.get();
+   }
+
+   /**
+    * Charges a statement to the open spans of the current thread
+    *
+    * @param sql        the SQL text
+    * @param params     the values bound, which tell repeats apart
+    * @param rows       the rows read or written
+    * @param roundTrips the round trips it took
+    */
+   public void statement(String sql, Object[] params, long rows, int roundTrips) {
+      Span span = this._current.get();
+      if (span == null)
+         return;
+      String key = params == null || params.length == 0 ? sql : sql + '\u0000' + Arrays.deepToString(params);
+      for (; span != null; span = span._parent)
+         span.add(sql, key, rows, roundTrips);
+   }// end statement
+
+   /**
+    * @return per operation: spans, latency, round trips and rows per span,
+    *         and the spans that repeated a statement
+    */
+   public String dump() {
+      List<String> names = new ArrayList<String>(this._operations.keySet());
+      Collections.sort(names);
+      StringBuilder out = new StringBuilder();
+      out.append(String.format("%-28s %7s %9s %9s %8s %8s %9s %8s  %s%n", "operation", "spans", "mean ms",
+            "p99 ms", "trips", "max", "rows", "repeats", "most repeated"));
+      for (String name : names) {
+         Operation op = this._operations.get(name);
+         long spans = op.latency.count();
+         if (spans == 0)
+            continue;
+         out.append(String.format("%-28s %7d %9.3f %9.3f %8.1f %8d %9.1f %8d  %s%n", name, spans,
+               op.latency.mean() / 1000, op.latency.percentile(99) / 1000.0,
+               (double) op.roundTrips.get() / spans, op.maxRoundTrips.get(), (double) op.rows.get() / spans,
+               op.repeatedSpans.get(), op.lastRepeat == null ? "" : op.lastRepeat));
+      }
+      return out.toString();
+   }// end dump
+
+   /**
+    * Forgets every operation
+    */
+   public void reset() {
+      this._operations.clear();
+   }
+
+   private void closed(Span span) {
+      if (this._current.get() == span)
+         this._current.set(span._parent);
+      Operation op = this._operations.computeIfAbsent(span._operation, k -> new Operation());
+      op.latency.recordNanos(span._endNanos - span._startNanos);
+      op.roundTrips.addAndGet(span._roundTrips);
+      op.rows.addAndGet(span._rows);
+      long max = op.maxRoundTrips.get();
+      while (span._roundTrips > max && !op.maxRoundTrips.compareAndSet(max, span._roundTrips))
+         max = op.maxRoundTrips.get();
+      if (span.repeats() > 0) {
+         op.repeatedSpans.incrementAndGet();
+         op.lastRepeat = span.mostRepeated();
+      }
+      if (this._log)
+         System.err.println(span);
+   }// end closed
+
+   private static class Operation {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong roundTrips = new AtomicLong();
+      final AtomicLong maxRoundTrips = new AtomicLong();
+      final AtomicLong rows = new AtomicLong();
+      final AtomicLong repeatedSpans = new AtomicLong();
+      volatile String lastRepeat;
+   }// end Operation
+
+   /**
+    * One user action in progress. Only the thread that opened it touches it
+    * until it is closed.
+    */
+   public class Span implements AutoCloseable {
+      private final String _operation;
+      private final Span _parent;
+      private final long _startNanos = System.nanoTime();
+      private long _endNanos = 0;
+      private int _roundTrips = 0;
+      private long _rows = 0;
+
+      // executions per statement and parameters; the SQL text of each key
+      private final Map<String, Integer> _executions = new HashMap<String, Integer>();
+      private final Map<String, String> _sql = new HashMap<String, String>();
+      private int _repeats = 0;
+
+      private Span(String operation, Span parent) {
+         this._operation = operation;
+         this._parent = parent;
+      }
+
+      private void add(String sql, String key, long rows, int roundTrips) {
+         this._roundTrips += roundTrips;
+         this._rows += rows;
+         Integer seen = this._executions.put(key, this._executions.getOrDefault(key, 0) + 1);
+         if (seen == null)
+            this._sql.put(key, sql);
+         else
+            this._repeats++;
+      }
+
+      public String operation() {
+         return this._operation;
+      }
+
+      public int roundTrips() {
+         return this._roundTrips;
+      }
+
+      public long rows() {
+         return this._rows;
+      }
+
+      /**
+       * @return the wall time so far, or until close
+       */
+      public double millis() {
+         return ((this._endNanos == 0 ? System.nanoTime() : this._endNanos) - this._startNanos) / 1e6;
+      }
+
+      /**
+       * @return the executions that repeated an earlier one with the same
+       *         statement and parameters
+       */
+      public int repeats() {
+         return this._repeats;
+      }
+
+      /**
+       * @return the statement executed most often with the same parameters,
+       *         with the count, or null without repeats
+       */
+      public String mostRepeated() {
+         String best = null;
+         int most = 1;
+         for (Map.Entry<String, Integer> e : this._executions.entrySet()) {
+            if (e.getValue() > most) {
+               most = e.getValue();
+               best = e.getKey();
+            }
+         }
+         return best == null ? null : most + "x " + StatementMetrics.normalize(this._sql.get(best));
+      }
+
+      public void close() {
+         if (this._endNanos != 0)
+            return;
+         this._endNanos = System.nanoTime();
+         closed(this);
+      }
+
+      public String toString() {
+         return String.format("span %s: %d round trips, %d rows, %.3f ms%s", this._operation, this._roundTrips,
+               this._rows, millis(), this._repeats == 0 ? "" : ", repeated " + mostRepeated());
+      }
+   }// end Span
+}// end OperationTracer
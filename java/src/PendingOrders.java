@@ -0,0 +1,77 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * This class hands the orders placed through this process to an in-memory
+ * summary that is bootstrapped from Orders, without losing or double
+ * counting the orders placed while the bootstrap runs.
+ *
+ * Before start() orders are dropped, the bootstrap will read them. Between
+ * start() and finish() they are kept aside, since the bootstrap snapshot
+ * may or may not include them; finish() returns them so the loader can
+ * apply those its snapshot did not see. After finish() they are applied
+ * right away.
+ *
+ */
+public class PendingOrders {
+
+   private volatile boolean _loaded = false;
+
+   // the orders placed since start(), null when not loading
+   private List<RecentOrders.Order> _pending = null;
+
+   /**
+    * @return whether the summary is loaded and kept current
+    */
+   public boolean loaded() {
+      return this._loaded;
+   }
+
+   /**
+    * Starts keeping the orders placed aside. Call it before the bootstrap
+    * query takes its snapshot.
+    */
+   public synchronized void start() {
+      this._pending = new ArrayList<RecentOrders.Order>();
+   }
+
+   /**
+    * Hands over an order that was just committed
+    *
+    * @param order the order
+    * @param apply adds the order to the summary, called now when the
+    *              summary is loaded
+    */
+   public synchronized void placed(RecentOrders.Order order, Consumer<RecentOrders.Order> apply) {
+      if (this._loaded)
+         apply.accept(order);
+      else if (this._pending != null)
+         this._pending.add(order);
+   }
+
+   /**
+    * Marks the summary loaded; the orders placed from now on are applied
+    * right away
+    *
+    * @return the orders placed since start(), for the loader to apply those
+    *         its snapshot did not see
+    */
+   public synchronized List<RecentOrders.Order> finish() {
+      List<RecentOrders.Order> placed = this._pending;
+      this._pending = null;
+      this._loaded = true;
+      return placed == null ? new ArrayList<RecentOrders.Order>() : placed;
+   }
+
+   /**
+    * Gives up a bootstrap that failed, so the next call starts over
+    *
+    * @param forget empties the summary; no order is applied meanwhile
+    */
+   public synchronized void abort(Runnable forget) {
+      this._pending = null;
+      this._loaded = false;
+      forget.run();
+   }
+}// end PendingOrders
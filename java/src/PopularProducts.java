@@ -0,0 +1,114 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps the running total of units ordered for every (store,
+ * product), and for each store the products ordered by that total. It is
+ * bootstrapped once from Orders and then updated by every order placed, so
+ * the top products of a store are read from a precomputed list instead of
+ * aggregating the store's whole order history.
+ *
+ * Product names are kept trimmed, since the char(30) column pads them.
+ *
+ */
+public class PopularProducts {
+
+   private final int _k;
+   private final Map<Integer, StoreTotals> _stores = new ConcurrentHashMap<Integer, StoreTotals>();
+
+   /**
+    * @param k the number of top products kept ready per store
+    */
+   public PopularProducts(int k) {
+      this._k = k;
+   }
+
+   /**
+    * Adds units to the total of a product. Called once per order placed,
+    * and by the bootstrap with the historical totals.
+    *
+    * @param storeID     the store ordered from
+    * @param productName the product ordered
+    * @param units       the number of units ordered
+    */
+   public void add(int storeID, String productName, long units) {
+      StoreTotals store = this._stores.get(storeID);
+      if (store == null) {
+         this._stores.putIfAbsent(storeID, new StoreTotals());
+         store = this._stores.get(storeID);
+      }
+      store.add(productName.trim(), units, this._k);
+   }// end add
+
+   /**
+    * @param storeID the store
+    * @return the store's top products, most units first. The list is shared
+    *         and must not be modified.
+    */
+   public List<Entry> top(int storeID) {
+      StoreTotals store = this._stores.get(storeID);
+      return store == null ? Collections.<Entry>emptyList() : store._top;
+   }// end top
+
+   /**
+    * Forgets every total, e.g. after a bootstrap that did not finish
+    */
+   public void clear() {
+      this._stores.clear();
+   }
+
+   /**
+    * @return the number of stores tracked
+    */
+   public int storeCount() {
+      return this._stores.size();
+   }
+
+   /**
+    * A product and its total units ordered.
+    */
+   public static class Entry implements Comparable<Entry> {
+      public final String productName;
+      public final long units;
+
+      Entry(String productName, long units) {
+         this.productName = productName;
+         this.units = units;
+      }
+
+      // most units first, ties by name so the order is stable
+      public int compareTo(Entry other) {
+         int c = Long.compare(other.units, this.units);
+         return c != 0 ? c : this.productName.compareTo(other.productName);
+      }
+   }// end Entry
+
+   private static class StoreTotals {
+      private final HashMap<String, Entry> _totals = new HashMap<String, Entry>();
+      private final TreeSet<Entry> _ranked = new TreeSet<Entry>();
+
+      // copy of the first k entries of _ranked, replaced on every change
+      private volatile List<Entry> _top = Collections.<Entry>emptyList();
+
+      synchronized void add(String productName, long units, int k) {
+         Entry old = this._totals.get(productName);
+         Entry updated = new Entry(productName, (old == null ? 0 : old.units) + units);
+         if (old != null)
+            this._ranked.remove(old);
+         this._ranked.add(updated);
+         this._totals.put(productName, updated);
+
+         List<Entry> top = new ArrayList<Entry>(k);
+         Iterator<Entry> it = this._ranked.iterator();
+         while (top.size() < k && it.hasNext())
+            top.add(it.next());
+         this._top = Collections.unmodifiableList(top);
+      }
+   }// end StoreTotals
+}// end PopularProducts
@@ -0,0 +1,198 @@
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps the latest orders of each key (a store or a customer) in
+ * a fixed-size buffer, newest first. Only the `maxKeys` most recently used
+ * keys are kept; the least recently used one is evicted when a new key
+ * comes in, so memory is bounded however many customers there are.
+ *
+ * A key's buffer is complete once it has been loaded from Orders. Orders
+ * placed afterwards are added to it, so a complete buffer answers without
+ * the database. Orders of keys that are not kept are ignored. Before a key
+ * is read, begin() puts an empty buffer in its place so that orders placed
+ * during the read are kept, and load() merges them with what was read. If
+ * that buffer was evicted in the meantime those orders are gone, so the
+ * key is left unloaded; loads of other keys are not affected.
+ *
+ */
+public class RecentOrders {
+
+   private final int _perKey;
+   private final int _maxKeys;
+   private final LinkedHashMap<Integer, Buffer> _buffers;
+
+   // tells apart the buffers a key had over time, see load()
+   private long _generation = 0;
+
+   private long _hits = 0;
+   private long _misses = 0;
+   private long _evictions = 0;
+
+   /**
+    * @param perKey  the number of orders kept per key
+    * @param maxKeys the number of keys kept
+    */
+   public RecentOrders(int perKey, int maxKeys) {
+      if (perKey < 1 || maxKeys < 1)
+         throw new IllegalArgumentException("perKey and maxKeys must be at least 1");
+      this._perKey = perKey;
+      this._maxKeys = maxKeys;
+      // access order, so the eldest entry is the least recently used key
+      this._buffers = new LinkedHashMap<Integer, Buffer>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<Integer, Buffer> eldest) {
+            if (size() > RecentOrders.this._maxKeys) {
+               RecentOrders.this._evictions++;
+               return true;
+            }
+            return false;
+         }
+      };
+   }
+
+   /**
+    * @param key the store or customer
+    * @return the latest orders of the key, newest first, or null when the
+    *         key is not loaded and has to be read from Orders
+    */
+   public synchronized List<Order> get(int key) {
+      Buffer buffer = this._buffers.get(key);
+      if (buffer == null || !buffer.complete) {
+         this._misses++;
+         return null;
+      }
+      this._hits++;
+      return buffer.snapshot();
+   }// end get
+
+   /**
+    * Adds an order that was just placed. Keys that are neither loaded nor
+    * being loaded are skipped, they are read from Orders when asked for.
+    *
+    * @param key   the store or customer the order belongs to
+    * @param order the order
+    */
+   public synchronized void add(int key, Order order) {
+      Buffer buffer = this._buffers.get(key);
+      if (buffer != null)
+         buffer.add(order);
+   }// end add
+
+   /**
+    * Starts reading a key from Orders: from now on orders added to the key
+    * are kept until load() merges them with what was read.
+    *
+    * @param key the store or customer
+    * @return the generation to pass to load()
+    */
+   public synchronized long begin(int key) {
+      Buffer buffer = this._buffers.get(key);
+      if (buffer == null) {
+         buffer = new Buffer(this._perKey, ++this._generation);
+         this._buffers.put(key, buffer);
+      }
+      return buffer.generation;
+   }// end begin
+
+   /**
+    * Installs the latest orders of a key as read from Orders, merging them
+    * with any order added since begin(). If the key was evicted in between,
+    * orders added meanwhile may be lost, so it is left unloaded.
+    *
+    * @param key        the store or customer
+    * @param orders     its latest orders
+    * @param generation the value begin() returned before reading
+    */
+   public synchronized void load(int key, List<Order> orders, long generation) {
+      Buffer buffer = this._buffers.get(key);
+      if (buffer == null || buffer.generation != generation)
+         return;
+      for (Order order : orders)
+         buffer.add(order);
+      buffer.complete = true;
+   }// end load
+
+   public synchronized int size() {
+      return this._buffers.size();
+   }
+
+   /**
+    * @return a one-line summary of the buffers
+    */
+   public synchronized String stats() {
+      return "recentOrders[keys=" + this._buffers.size()
+            + " maxKeys=" + this._maxKeys
+            + " hits=" + this._hits
+            + " misses=" + this._misses
+            + " evictions=" + this._evictions + "]";
+   }
+
+   /**
+    * One row of Orders. The product name is trimmed.
+    */
+   public static class Order {
+      public final int orderNumber;
+      public final int customerID;
+      public final int storeID;
+      public final String productName;
+      public final int unitsOrdered;
+      public final Timestamp orderTime;
+
+      public Order(int orderNumber, int customerID, int storeID, String productName, int unitsOrdered,
+            Timestamp orderTime) {
+         this.orderNumber = orderNumber;
+         this.customerID = customerID;
+         this.storeID = storeID;
+         this.productName = productName.trim();
+         this.unitsOrdered = unitsOrdered;
+         this.orderTime = orderTime;
+      }
+
+      // true when this order sorts before (is newer than) the other one
+      boolean newerThan(Order other) {
+         int c = this.orderTime.compareTo(other.orderTime);
+         return c != 0 ? c > 0 : this.orderNumber > other.orderNumber;
+      }
+   }// end Order
+
+   private static class Buffer {
+      private final Order[] _orders;
+      private int _size = 0;
+      final long generation;
+      boolean complete = false;
+
+      Buffer(int capacity, long generation) {
+         this._orders = new Order[capacity];
+         this.generation = generation;
+      }
+
+      // inserts in place, newest first; the oldest order falls off when full
+      void add(Order order) {
+         for (int i = 0; i < this._size; i++) {
+            if (this._orders[i].orderNumber == order.orderNumber)
+               return;
+         }
+         int at = this._size;
+         while (at > 0 && order.newerThan(this._orders[at - 1]))
+            at--;
+         if (at == this._orders.length)
+            return;
+         int last = Math.min(this._size, this._orders.length - 1);
+         System.arraycopy(this._orders, at, this._orders, at + 1, last - at);
+         this._orders[at] = order;
+         if (this._size < this._orders.length)
+            this._size++;
+      }
+
+      List<Order> snapshot() {
+         List<Order> orders = new ArrayList<Order>(this._size);
+         for (int i = 0; i < this._size; i++)
+            orders.add(this._orders[i]);
+         return Collections.unmodifiableList(orders);
+      }
+   }// end Buffer
+}// end RecentOrders
@@ -0,0 +1,298 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * This class picks the replica a read runs on, or tells that it has to run
+ * on the primary.
+ *
+ * Only reads made inside a read-only route (see route()) go to a replica,
+ * and only to one whose replay lag is within maxLagMillis. Everything else,
+ * every write and every statement outside a route, runs on the primary,
+ * on whichever pool of it the caller uses.
+ *
+ * A user reads their own writes: when a route that wrote is closed, the
+ * primary's WAL position is remembered for that user, and their reads go
+ * to the primary until a replica has replayed past it. Replicas report
+ * their lag and replay position every checkIntervalMillis, so that
+ * usually takes about one check.
+ *
+ * A replica that cannot be reached is skipped until a check finds it up
+ * again. One whose connections are all busy is only skipped for that read.
+ *
+ * The replicas can also be independent servers with a copy of the data,
+ * which is handy for testing. They report no replay position, so users who
+ * wrote read from the primary for readYourWritesMillis.
+ *
+ */
+public class ReplicaRouter {
+
+   private static final Pattern WRITE = Pattern.compile("(?is).*\\b(INSERT|UPDATE|DELETE|MERGE)\\b.*");
+
+   // ConnectionPool's SQLSTATE when no connection was free in time
+   private static final String POOL_TIMEOUT = "53300";
+
+   // a replica's lag: 0 when it has replayed everything it received
+   private static final String STATUS_QUERY = "SELECT pg_is_in_recovery(), pg_last_wal_replay_lsn(), "
+         + "CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 "
+         + "ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000 END";
+
+   private final ConnectionPool _primary;
+   private final Replica[] _replicas;
+   private final long _maxLagMillis;
+   private final long _checkIntervalMillis;
+   private final long _readYourWritesMillis;
+
+   private final ThreadLocal<Route> _route = new ThreadLocal<Route>();
+
+   // per user, the primary's WAL position after their last write and when
+   // it was made
+   private final ConcurrentHashMap<Integer, long[]> _written = new ConcurrentHashMap<Integer, long[]>();
+
+   private final ReentrantLock _checking = new ReentrantLock();
+   private volatile long _checkedAt = 0;
+   private final AtomicInteger _next = new AtomicInteger();
+
+   private final AtomicLong _replicaReads = new AtomicLong();
+   private final AtomicLong _primaryReads = new AtomicLong();
+   private final AtomicLong _ownWriteReads = new AtomicLong();
+
+   /**
+    * @param primary              a pool of the primary, to read its WAL position
+    * @param replicas             the pools of the replicas
+    * @param maxLagMillis         the most lag a replica may have to be read
+    * @param checkIntervalMillis  how often the replicas' lag is checked
+    * @param readYourWritesMillis how long a user who wrote reads from the
+    *                             primary when a replica cannot tell its
+    *                             replay position
+    */
+   public ReplicaRouter(ConnectionPool primary, List<ConnectionPool> replicas, long maxLagMillis,
+         long checkIntervalMillis, long readYourWritesMillis) {
+      this._primary = primary;
+      this._replicas = new Replica[replicas.size()];
+      for (int i = 0; i < this._replicas.length; i++)
+         this._replicas[i] = new Replica(replicas.get(i));
+      this._maxLagMillis = maxLagMillis;
+      this._checkIntervalMillis = checkIntervalMillis;
+      this._readYourWritesMillis = readYourWritesMillis;
+   }// end ReplicaRouter
+
+   /**
+    * Opens a route on the current thread; close it on the same thread, in a
+    * finally block. Routes nest.
+    *
+    * @param userID   the user whose statements follow
+    * @param readOnly whether the reads may go to a replica
+    */
+   public Route route(int userID, boolean readOnly) {
+      Route route = new Route(userID, readOnly, this._route.get());
+      this._route.set(route);
+      return route;
+   }
+
+   /**
+    * Borrows a connection for a statement from a replica, when it is a read
+    * in a read-only route and a replica is fresh enough for the user
+    *
+    * @param sql the statement
+    * @return the connection, to be released to its pool(), or null when the
+    *         statement has to run on the primary
+    */
+   public ConnectionPool.PooledConnection acquireReplica(String sql) {
+      Route route = this._route.get();
+      if (route == null || !route.readOnly || WRITE.matcher(sql).matches())
+         return null;
+
+      long now = System.currentTimeMillis();
+      if (now - this._checkedAt >= this._checkIntervalMillis && this._checking.tryLock()) {
+         try {
+            check(now);
+         } finally {
+            this._checking.unlock();
+         }
+      }
+
+      long[] written = this._written.get(route.userID);
+      // a replica within the lag limit has replayed every write older than
+      // it, as of the last check
+      if (written != null && now - written[1] > Math.max(this._maxLagMillis, this._readYourWritesMillis)
+            + this._checkIntervalMillis) {
+         this._written.remove(route.userID, written);
+         written = null;
+      }
+      int start = Math.floorMod(this._next.getAndIncrement(), this._replicas.length);
+      for (int i = 0; i < this._replicas.length; i++) {
+         Replica replica = this._replicas[(start + i) % this._replicas.length];
+         if (!replica.healthy || replica.lagMillis > this._maxLagMillis)
+            continue;
+         if (written != null && !replica.hasReplayed(written, now, this._readYourWritesMillis))
+            continue;
+         try {
+            ConnectionPool.PooledConnection pc = replica.pool.acquire();
+            this._replicaReads.incrementAndGet();
+            return pc;
+         } catch (SQLException e) {
+            // busy, try the next one; unreachable, down until the next check
+            if (!POOL_TIMEOUT.equals(e.getSQLState()))
+               replica.healthy = false;
+         }
+      }
+      if (written != null)
+         this._ownWriteReads.incrementAndGet();
+      this._primaryReads.incrementAndGet();
+      return null;
+   }// end acquireReplica
+
+   /**
+    * Notes a write made in a route, so that the primary's WAL position is
+    * remembered for the user when the route is closed. Call it after the
+    * write committed; statements that are not writes are ignored.
+    *
+    * @param pc  the connection the statement ran on, on the primary
+    * @param sql the statement
+    */
+   public void executed(ConnectionPool.PooledConnection pc, String sql) {
+      Route route = this._route.get();
+      if (route == null || isReplica(pc.pool()) || !WRITE.matcher(sql).matches())
+         return;
+      route._wrote = true;
+   }// end executed
+
+   // remembers where the primary's WAL stands after the user's writes, one
+   // round trip however many writes the route made
+   private void written(int userID) {
+      long lsn;
+      ConnectionPool.PooledConnection pc = null;
+      try {
+         pc = this._primary.acquire();
+         try (Statement stmt = pc.connection().createStatement();
+               ResultSet rs = stmt.executeQuery("SELECT pg_current_wal_insert_lsn()")) {
+            rs.next();
+            lsn = parseLsn(rs.getString(1));
+         }
+      } catch (SQLException e) {
+         // no replica is known to have it then, until the write is old
+         lsn = Long.MAX_VALUE;
+         if (pc != null)
+            pc.markBroken();
+      } finally {
+         this._primary.release(pc);
+      }
+      this._written.merge(userID, new long[] { lsn, System.currentTimeMillis() },
+            (a, b) -> new long[] { Math.max(a[0], b[0]), b[1] });
+   }// end written
+
+   private boolean isReplica(ConnectionPool pool) {
+      for (Replica replica : this._replicas) {
+         if (replica.pool == pool)
+            return true;
+      }
+      return false;
+   }
+
+   // reads every replica's lag and replay position
+   private void check(long now) {
+      for (Replica replica : this._replicas) {
+         ConnectionPool.PooledConnection pc = null;
+         try {
+            pc = replica.pool.acquire();
+            try (Statement stmt = pc.connection().createStatement();
+                  ResultSet rs = stmt.executeQuery(STATUS_QUERY)) {
+               rs.next();
+               boolean inRecovery = rs.getBoolean(1);
+               replica.replayedLsn = inRecovery && rs.getString(2) != null ? parseLsn(rs.getString(2)) : -1;
+               replica.lagMillis = inRecovery ? (long) rs.getDouble(3) : 0;
+               replica.healthy = true;
+            }
+         } catch (SQLException e) {
+            // a busy replica is not a down one
+            if (pc != null || !POOL_TIMEOUT.equals(e.getSQLState()))
+               replica.healthy = false;
+            if (pc != null)
+               pc.markBroken();
+         } finally {
+            replica.pool.release(pc);
+         }
+      }
+      this._checkedAt = now;
+   }// end check
+
+   // a pg_lsn, e.g. 16/B374D848, as a number
+   static long parseLsn(String lsn) {
+      int slash = lsn.indexOf('/');
+      return (Long.parseLong(lsn.substring(0, slash), 16) << 32) | Long.parseLong(lsn.substring(slash + 1), 16);
+   }
+
+   /**
+    * @return the reads sent to replicas, the reads kept on the primary and
+    *         how many of those were to read the user's own writes, and
+    *         each replica's state
+    */
+   public String stats() {
+      StringBuilder out = new StringBuilder("replicas[replicaReads=" + this._replicaReads.get()
+            + " primaryReads=" + this._primaryReads.get() + " ownWriteReads=" + this._ownWriteReads.get());
+      for (int i = 0; i < this._replicas.length; i++) {
+         Replica replica = this._replicas[i];
+         out.append(" replica").append(i + 1).append("=")
+               .append(replica.healthy ? "lag " + replica.lagMillis + "ms" : "down");
+      }
+      return out.append("]").toString();
+   }// end stats
+
+   /**
+    * Closes the replica pools
+    */
+   public void close() {
+      for (Replica replica : this._replicas)
+         replica.pool.close();
+   }
+
+   private static class Replica {
+      final ConnectionPool pool;
+      volatile boolean healthy = true;
+      volatile long lagMillis = 0;
+      // -1 when the server does not replay WAL
+      volatile long replayedLsn = -1;
+
+      Replica(ConnectionPool pool) {
+         this.pool = pool;
+      }
+
+      boolean hasReplayed(long[] written, long now, long readYourWritesMillis) {
+         if (this.replayedLsn < 0)
+            return now - written[1] >= readYourWritesMillis;
+         return this.replayedLsn >= written[0];
+      }
+   }// end Replica
+
+   /**
+    * The user and kind of the statements run on one thread until it is
+    * closed
+    */
+   public class Route implements AutoCloseable {
+      private final int userID;
+      private final boolean readOnly;
+      private final Route _previous;
+      private boolean _wrote = false;
+
+      private Route(int userID, boolean readOnly, Route previous) {
+         this.userID = userID;
+         this.readOnly = readOnly;
+         this._previous = previous;
+      }
+
+      public void close() {
+         if (ReplicaRouter.this._route.get() != this)
+            return;
+         ReplicaRouter.this._route.set(this._previous);
+         if (this._wrote)
+            ReplicaRouter.this.written(this.userID);
+      }
+   }// end Route
+}// end ReplicaRouter
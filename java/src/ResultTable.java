@@ -0,0 +1,310 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+
+/**
+ * This class holds a query result column by column, in primitive arrays.
+ * Integer columns are read with getInt, floating point and numeric columns
+ * with getDouble, bigint and timestamp columns with getLong and
+ * getTimestamp, and only the text columns are kept as Strings. Timestamps
+ * are kept in microseconds, the server's precision. Callers read
+ * typed values back by row and column (index or name) without parsing.
+ *
+ * Rows and columns are numbered from 0.
+ *
+ */
+public class ResultTable {
+
+   private static final int INT = 0;
+   private static final int LONG = 1;
+   private static final int DOUBLE = 2;
+   private static final int TIMESTAMP = 3;
+   private static final int STRING = 4;
+
+   private final String[] _names;
+   private final int[] _kinds;
+
+   // one array per column, only the one matching the column kind is set
+   private final int[][] _ints;
+   private final long[][] _longs;
+   private final double[][] _doubles;
+   private final String[][] _strings;
+   private final boolean[][] _nulls;
+
+   private int _rows = 0;
+   private int _capacity;
+   private long _bytes = 0;
+
+   /**
+    * Reads every remaining row of a result set into a new table
+    *
+    * @param rs the result set, positioned before its first row
+    * @throws java.sql.SQLException when reading the result set failed
+    */
+   public ResultTable(ResultSet rs) throws SQLException {
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+      this._names = new String[numCol];
+      this._kinds = new int[numCol];
+      this._ints = new int[numCol][];
+      this._longs = new long[numCol][];
+      this._doubles = new double[numCol][];
+      this._strings = new String[numCol][];
+      this._nulls = new boolean[numCol][];
+      this._capacity = 16;
+
+      for (int c = 0; c < numCol; c++) {
+         this._names[c] = rsmd.getColumnName(c + 1);
+         this._kinds[c] = kindOf(rsmd.getColumnType(c + 1));
+         this._nulls[c] = new boolean[this._capacity];
+         switch (this._kinds[c]) {
+            case INT:
+               this._ints[c] = new int[this._capacity];
+               break;
+            case LONG:
+            case TIMESTAMP:
+               this._longs[c] = new long[this._capacity];
+               break;
+            case DOUBLE:
+               this._doubles[c] = new double[this._capacity];
+               break;
+            default:
+               this._strings[c] = new String[this._capacity];
+               break;
+         }
+      }
+
+      while (rs.next()) {
+         if (this._rows == this._capacity)
+            grow();
+         int r = this._rows;
+         for (int c = 0; c < numCol; c++) {
+            int col = c + 1;
+            switch (this._kinds[c]) {
+               case INT:
+                  this._ints[c][r] = rs.getInt(col);
+                  this._bytes += 4;
+                  break;
+               case LONG:
+                  this._longs[c][r] = rs.getLong(col);
+                  this._bytes += 8;
+                  break;
+               case DOUBLE:
+                  this._doubles[c][r] = rs.getDouble(col);
+                  this._bytes += 8;
+                  break;
+               case TIMESTAMP:
+                  Timestamp ts = rs.getTimestamp(col);
+                  if (ts != null)
+                     this._longs[c][r] = Math.floorDiv(ts.getTime(), 1000L) * 1000000L + ts.getNanos() / 1000;
+                  this._bytes += 8;
+                  break;
+               default:
+                  String value = rs.getString(col);
+                  this._strings[c][r] = value;
+                  if (value != null)
+                     this._bytes += value.length();
+                  break;
+            }
+            this._nulls[c][r] = rs.wasNull();
+         }
+         this._rows++;
+      } // end while
+   }// end ResultTable
+
+   /**
+    * @return the size of the values read, their binary size for numbers and
+    *         timestamps and their length for text
+    */
+   public long bytes() {
+      return this._bytes;
+   }
+
+   /**
+    * @return the number of rows
+    */
+   public int size() {
+      return this._rows;
+   }
+
+   /**
+    * @return the number of columns
+    */
+   public int columnCount() {
+      return this._names.length;
+   }
+
+   /**
+    * Finds a column by name, ignoring case
+    *
+    * @param name the column name or alias
+    * @return the column index
+    * @throws IllegalArgumentException when there is no such column
+    */
+   public int columnIndex(String name) {
+      for (int c = 0; c < this._names.length; c++) {
+         if (this._names[c].equalsIgnoreCase(name))
+            return c;
+      }
+      throw new IllegalArgumentException("No column named " + name);
+   }// end columnIndex
+
+   public boolean isNull(int row, int col) {
+      checkRow(row);
+      return this._nulls[col][row];
+   }
+
+   public int getInt(int row, int col) {
+      checkRow(row);
+      switch (this._kinds[col]) {
+         case INT:
+            return this._ints[col][row];
+         case LONG:
+            return (int) this._longs[col][row];
+         case DOUBLE:
+            return (int) this._doubles[col][row];
+         case STRING:
+            return this._nulls[col][row] ? 0 : Integer.parseInt(this._strings[col][row].trim());
+         default:
+            throw new IllegalStateException("Column " + this._names[col] + " is not numeric");
+      }
+   }// end getInt
+
+   public long getLong(int row, int col) {
+      checkRow(row);
+      switch (this._kinds[col]) {
+         case INT:
+            return this._ints[col][row];
+         case LONG:
+            return this._longs[col][row];
+         case TIMESTAMP:
+            // milliseconds, as Timestamp.getTime
+            return Math.floorDiv(this._longs[col][row], 1000L);
+         case DOUBLE:
+            return (long) this._doubles[col][row];
+         default:
+            return this._nulls[col][row] ? 0 : Long.parseLong(this._strings[col][row].trim());
+      }
+   }// end getLong
+
+   public double getDouble(int row, int col) {
+      checkRow(row);
+      switch (this._kinds[col]) {
+         case INT:
+            return this._ints[col][row];
+         case LONG:
+            return this._longs[col][row];
+         case DOUBLE:
+            return this._doubles[col][row];
+         case STRING:
+            return this._nulls[col][row] ? 0 : Double.parseDouble(this._strings[col][row].trim());
+         default:
+            throw new IllegalStateException("Column " + this._names[col] + " is not numeric");
+      }
+   }// end getDouble
+
+   public Timestamp getTimestamp(int row, int col) {
+      checkRow(row);
+      if (this._nulls[col][row])
+         return null;
+      if (this._kinds[col] == TIMESTAMP)
+         return toTimestamp(this._longs[col][row]);
+      if (this._kinds[col] == STRING)
+         return Timestamp.valueOf(this._strings[col][row].trim());
+      throw new IllegalStateException("Column " + this._names[col] + " is not a timestamp");
+   }// end getTimestamp
+
+   /**
+    * Renders any column as text, the way getString on the result set would
+    * for everything but timestamps, which use Timestamp.toString.
+    */
+   public String getString(int row, int col) {
+      checkRow(row);
+      if (this._nulls[col][row])
+         return null;
+      switch (this._kinds[col]) {
+         case INT:
+            return Integer.toString(this._ints[col][row]);
+         case LONG:
+            return Long.toString(this._longs[col][row]);
+         case DOUBLE:
+            return Double.toString(this._doubles[col][row]);
+         case TIMESTAMP:
+            return toTimestamp(this._longs[col][row]).toString();
+         default:
+            return this._strings[col][row];
+      }
+   }// end getString
+
+   public int getInt(int row, String col) {
+      return getInt(row, columnIndex(col));
+   }
+
+   public long getLong(int row, String col) {
+      return getLong(row, columnIndex(col));
+   }
+
+   public double getDouble(int row, String col) {
+      return getDouble(row, columnIndex(col));
+   }
+
+   public Timestamp getTimestamp(int row, String col) {
+      return getTimestamp(row, columnIndex(col));
+   }
+
+   public String getString(int row, String col) {
+      return getString(row, columnIndex(col));
+   }
+
+   private void checkRow(int row) {
+      if (row < 0 || row >= this._rows)
+         throw new IndexOutOfBoundsException("Row " + row + " of " + this._rows);
+   }
+
+   private void grow() {
+      int capacity = this._capacity * 2;
+      for (int c = 0; c < this._names.length; c++) {
+         this._nulls[c] = Arrays.copyOf(this._nulls[c], capacity);
+         if (this._ints[c] != null)
+            this._ints[c] = Arrays.copyOf(this._ints[c], capacity);
+         if (this._longs[c] != null)
+            this._longs[c] = Arrays.copyOf(this._longs[c], capacity);
+         if (this._doubles[c] != null)
+            this._doubles[c] = Arrays.copyOf(this._doubles[c], capacity);
+         if (this._strings[c] != null)
+            this._strings[c] = Arrays.copyOf(this._strings[c], capacity);
+      }
+      this._capacity = capacity;
+   }// end grow
+
+   private static Timestamp toTimestamp(long micros) {
+      Timestamp ts = new Timestamp(Math.floorDiv(micros, 1000000L) * 1000L);
+      ts.setNanos((int) Math.floorMod(micros, 1000000L) * 1000);
+      return ts;
+   }
+
+   private static int kindOf(int sqlType) {
+      switch (sqlType) {
+         case Types.INTEGER:
+         case Types.SMALLINT:
+         case Types.TINYINT:
+            return INT;
+         case Types.BIGINT:
+            return LONG;
+         case Types.DOUBLE:
+         case Types.FLOAT:
+         case Types.REAL:
+         case Types.NUMERIC:
+         case Types.DECIMAL:
+            return DOUBLE;
+         case Types.TIMESTAMP:
+         case Types.DATE:
+            return TIMESTAMP;
+         default:
+            return STRING;
+      }
+   }// end kindOf
+}// end ResultTable
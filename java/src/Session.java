@@ -0,0 +1,54 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class holds what the menus need to know about the logged in user:
+ * the profile read at login and the stores the user manages. Both are read
+ * once, by the login query, and kept for the whole session.
+ *
+ */
+public class Session {
+
+   public final int userID;
+   public final String name;
+   // customer, manager or admin, without the char(10) padding
+   public final String type;
+   public final double latitude;
+   public final double longitude;
+
+   private final List<Integer> _managedStores;
+
+   public Session(int userID, String name, String type, double latitude, double longitude,
+         List<Integer> managedStores) {
+      this.userID = userID;
+      this.name = name;
+      this.type = type.trim();
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this._managedStores = Collections.unmodifiableList(new ArrayList<Integer>(managedStores));
+   }
+
+   public boolean isCustomer() {
+      return this.type.equals("customer");
+   }
+
+   public boolean isManager() {
+      return this.type.equals("manager");
+   }
+
+   public boolean isAdmin() {
+      return this.type.equals("admin");
+   }
+
+   /**
+    * @return the IDs of the stores the user manages, in ascending order
+    */
+   public List<Integer> managedStores() {
+      return this._managedStores;
+   }
+
+   public boolean manages(int storeID) {
+      return this._managedStores.contains(storeID);
+   }
+}// end Session
@@ -0,0 +1,238 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * This class logs the statements that take longer than a threshold, with
+ * their bound parameters and their plan, to a local file that is rotated
+ * once it grows past a size.
+ *
+ * The plan is captured in the background on a connection of its own, so
+ * the slow statement's caller does not wait for it and the pool is not
+ * drained by it. Queries are run again under EXPLAIN (ANALYZE, BUFFERS),
+ * inside a transaction that is rolled back and with a statement timeout.
+ * Writes are only EXPLAINed: analyzing them would lock the rows they
+ * touch. A statement shape is explained at most once per
+ * explainIntervalMillis, and when the background queue is full further
+ * slow statements are counted as dropped, so a storm of slow statements
+ * does not become a storm of EXPLAINs.
+ *
+ */
+public class SlowQueryLog {
+
+   private static final Pattern WRITE = Pattern.compile("(?is).*\\b(INSERT|UPDATE|DELETE|MERGE)\\b.*");
+   private static final Pattern EXPLAINABLE = Pattern.compile("(?is)\\s*(SELECT|WITH|VALUES|INSERT|UPDATE|DELETE)\\b.*");
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final long _thresholdNanos;
+   private final File _file;
+   private final long _maxBytes;
+   private final int _files;
+   private final long _explainIntervalMillis;
+   private final long _explainTimeoutMillis;
+
+   // the plan capture and the file writes, on one background thread
+   private final ThreadPoolExecutor _executor;
+
+   // when each statement shape was last explained
+   private final ConcurrentHashMap<String, Long> _explained = new ConcurrentHashMap<String, Long>();
+
+   // used by the background thread only
+   private Connection _connection = null;
+
+   private final AtomicLong _logged = new AtomicLong();
+   private final AtomicLong _plans = new AtomicLong();
+   private final AtomicLong _dropped = new AtomicLong();
+   private final AtomicLong _failed = new AtomicLong();
+
+   /**
+    * Creates a slow query log; the side connection is opened on the first
+    * slow statement
+    *
+    * @param url                   the JDBC connection URL
+    * @param user                  the user name used to login to the database
+    * @param passwd                the user login password
+    * @param thresholdMillis       the time above which a statement is slow
+    * @param file                  the log file
+    * @param maxBytes              the size at which the file is rotated
+    * @param files                 the rotated files kept, file.1 the newest
+    * @param explainIntervalMillis the least time between two plans of one
+    *                              statement shape
+    * @param explainTimeoutMillis  the statement timeout of the EXPLAIN
+    */
+   public SlowQueryLog(String url, String user, String passwd, long thresholdMillis, File file, long maxBytes,
+         int files, long explainIntervalMillis, long explainTimeoutMillis) {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+      this._file = file;
+      this._maxBytes = maxBytes;
+      this._files = files;
+      this._explainIntervalMillis = explainIntervalMillis;
+      this._explainTimeoutMillis = explainTimeoutMillis;
+      this._executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(64), r -> {
+               Thread t = new Thread(r, "slow-query-log");
+               t.setDaemon(true);
+               return t;
+            }, (r, executor) -> this._dropped.incrementAndGet());
+   }// end SlowQueryLog
+
+   /**
+    * Logs a statement, with its plan, when it took longer than the threshold
+    *
+    * @param sql    the SQL text
+    * @param params the values bound to its placeholders
+    * @param nanos  how long it took
+    */
+   public void executed(String sql, Object[] params, long nanos) {
+      if (nanos < this._thresholdNanos)
+         return;
+      long now = System.currentTimeMillis();
+      Object[] values = params == null ? new Object[0] : params.clone();
+      this._executor.execute(() -> log(now, sql, values, nanos));
+   }// end executed
+
+   private void log(long at, String sql, Object[] params, long nanos) {
+      StringBuilder entry = new StringBuilder();
+      entry.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(at)))
+            .append(String.format(" slow statement, %.3f ms%n", nanos / 1e6))
+            .append("  statement: ").append(sql.trim().replaceAll("\\s+", " ")).append('\n')
+            .append("  parameters: ").append(Arrays.deepToString(params)).append('\n');
+
+      String shape = StatementMetrics.normalize(sql);
+      Long last = this._explained.get(shape);
+      if (!EXPLAINABLE.matcher(sql).matches()) {
+         entry.append("  plan: not an explainable statement\n");
+      } else if (last != null && at - last < this._explainIntervalMillis) {
+         entry.append("  plan: explained at ")
+               .append(new SimpleDateFormat("HH:mm:ss").format(new Date(last))).append(", see that entry\n");
+      } else {
+         this._explained.put(shape, at);
+         try {
+            entry.append(explain(sql, params));
+            this._plans.incrementAndGet();
+         } catch (SQLException e) {
+            this._failed.incrementAndGet();
+            entry.append("  plan: EXPLAIN failed: ").append(e.getMessage()).append('\n');
+         }
+      }
+      entry.append('\n');
+      write(entry.toString());
+      this._logged.incrementAndGet();
+   }// end log
+
+   private String explain(String sql, Object[] params) throws SQLException {
+      boolean write = WRITE.matcher(sql).matches();
+      if (this._connection == null) {
+         this._connection = DriverManager.getConnection(this._url, this._user, this._passwd);
+         this._connection.setAutoCommit(false);
+      }
+      StringBuilder plan = new StringBuilder(write ? "  plan (EXPLAIN only, a write):\n" : "  plan:\n");
+      try {
+         try (Statement stmt = this._connection.createStatement()) {
+            stmt.execute("SET LOCAL statement_timeout = " + this._explainTimeoutMillis);
+         }
+         try (PreparedStatement stmt = this._connection.prepareStatement(
+               (write ? "EXPLAIN " : "EXPLAIN (ANALYZE, BUFFERS) ") + sql)) {
+            // a batch passes every row's values, the first row's are enough
+            int count = stmt.getParameterMetaData().getParameterCount();
+            StatementCache.bind(stmt, Arrays.copyOf(params, Math.min(count, params.length)));
+            try (ResultSet rs = stmt.executeQuery()) {
+               while (rs.next())
+                  plan.append("    ").append(rs.getString(1)).append('\n');
+            }
+         }
+         return plan.toString();
+      } catch (SQLException e) {
+         // a connection exception leaves nothing to roll back
+         if (e.getSQLState() != null && e.getSQLState().startsWith("08"))
+            closeConnection();
+         throw e;
+      } finally {
+         if (this._connection != null) {
+            try {
+               this._connection.rollback();
+            } catch (SQLException e) {
+               closeConnection();
+            }
+         }
+      }
+   }// end explain
+
+   // appends to the log file, rotating it first when it is full
+   private void write(String entry) {
+      try {
+         if (this._file.length() + entry.length() > this._maxBytes && this._file.length() > 0) {
+            new File(this._file.getPath() + "." + this._files).delete();
+            for (int i = this._files - 1; i >= 1; i--) {
+               File older = new File(this._file.getPath() + "." + i);
+               if (older.exists())
+                  older.renameTo(new File(this._file.getPath() + "." + (i + 1)));
+            }
+            if (this._files > 0)
+               this._file.renameTo(new File(this._file.getPath() + ".1"));
+            else
+               this._file.delete();
+         }
+         try (Writer out = new FileWriter(this._file, true)) {
+            out.write(entry);
+         }
+      } catch (IOException e) {
+         System.err.println("Cannot write the slow query log " + this._file + ": " + e.getMessage());
+      }
+   }// end write
+
+   private void closeConnection() {
+      try {
+         if (this._connection != null)
+            this._connection.close();
+      } catch (SQLException e) {
+         // already broken
+      }
+      this._connection = null;
+   }
+
+   /**
+    * @return the statements logged, plans captured, EXPLAINs failed and slow
+    *         statements dropped because the log fell behind
+    */
+   public String stats() {
+      return "slowQueries[logged=" + this._logged.get() + " plans=" + this._plans.get() + " failed="
+            + this._failed.get() + " dropped=" + this._dropped.get() + " file=" + this._file + "]";
+   }
+
+   /**
+    * Finishes the entries queued, for at most a few seconds, and closes the
+    * side connection
+    */
+   public void close() {
+      this._executor.shutdown();
+      try {
+         this._executor.awaitTermination(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      this._executor.shutdownNow();
+      closeConnection();
+   }// end close
+}// end SlowQueryLog
@@ -0,0 +1,196 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.math.BigDecimal;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps the prepared statements of one physical connection,
+ * keyed by their SQL text. Since every query is written with '?'
+ * placeholders, the SQL text is the query shape and the same statement (and
+ * its server-side plan) is reused no matter which values are bound.
+ * The least recently used statement is closed once the cache is full.
+ *
+ * A cache belongs to exactly one connection, which is only ever used by one
+ * thread at a time, so it needs no locking. Only cancel() is called from
+ * other threads.
+ *
+ */
+public class StatementCache {
+
+   private final Connection _connection;
+   private final int _capacity;
+   private final LinkedHashMap<String, PreparedStatement> _statements;
+
+   // the statements handed out by prepare() and not yet done
+   private final Set<PreparedStatement> _inUse = ConcurrentHashMap.newKeySet();
+
+   private long _hits = 0;
+   private long _misses = 0;
+   private long _evictions = 0;
+
+   /**
+    * Creates a new statement cache on top of a connection
+    *
+    * @param connection the connection statements are prepared on
+    * @param capacity   the maximum number of statements kept open
+    */
+   public StatementCache(Connection connection, int capacity) {
+      this._connection = connection;
+      this._capacity = capacity;
+      this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+   }// end StatementCache
+
+   /**
+    * Returns the cached statement for a query shape, preparing it on a miss.
+    * Parameters left over from a previous use are cleared.
+    *
+    * @param sql the SQL text with '?' placeholders
+    * @return a prepared statement ready for binding
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement ps = this._statements.get(sql);
+      if (ps != null) {
+         this._hits++;
+         ps.clearParameters();
+         this._inUse.add(ps);
+         return ps;
+      }
+      this._misses++;
+      ps = this._connection.prepareStatement(sql);
+      if (this._capacity > 0) {
+         this._statements.put(sql, ps);
+         evict();
+      }
+      this._inUse.add(ps);
+      return ps;
+   }// end prepare
+
+   /**
+    * Tells the cache that a statement returned by prepare() is no longer
+    * needed. Cached statements stay open, anything else is closed.
+    *
+    * @param sql the SQL text the statement was prepared from
+    * @param ps  the statement
+    */
+   public void done(String sql, PreparedStatement ps) {
+      this._inUse.remove(ps);
+      if (this._statements.get(sql) != ps) {
+         try {
+            ps.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }// end done
+
+   /**
+    * Cancels the statements handed out by prepare() that are still running.
+    * Their callers get an SQLException with SQLSTATE 57014.
+    *
+    * @return the statements cancelled
+    */
+   public int cancel() {
+      int cancelled = 0;
+      for (PreparedStatement ps : this._inUse) {
+         try {
+            ps.cancel();
+            cancelled++;
+         } catch (SQLException e) {
+            // finished meanwhile
+         }
+      }
+      return cancelled;
+   }// end cancel
+
+   /**
+    * Closes every cached statement.
+    */
+   public void close() {
+      for (PreparedStatement ps : this._statements.values()) {
+         try {
+            ps.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+      }
+      this._statements.clear();
+   }// end close
+
+   public long getHits() {
+      return this._hits;
+   }
+
+   public long getMisses() {
+      return this._misses;
+   }
+
+   public long getEvictions() {
+      return this._evictions;
+   }
+
+   public int size() {
+      return this._statements.size();
+   }
+
+   private void evict() {
+      Iterator<Map.Entry<String, PreparedStatement>> it = this._statements.entrySet().iterator();
+      while (this._statements.size() > this._capacity && it.hasNext()) {
+         PreparedStatement ps = it.next().getValue();
+         it.remove();
+         this._evictions++;
+         try {
+            ps.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }// end evict
+
+   /**
+    * Binds parameters to a prepared statement by their Java type.
+    * Strings, Integers, Longs, Doubles, Floats, BigDecimals, Booleans, Dates
+    * and Timestamps are bound with their typed setter; null is bound as a SQL
+    * NULL.
+    *
+    * @param ps     the statement
+    * @param params the values, in placeholder order
+    * @throws java.sql.SQLException when a value cannot be bound
+    */
+   public static void bind(PreparedStatement ps, Object... params) throws SQLException {
+      for (int i = 0; i < params.length; i++) {
+         Object p = params[i];
+         int idx = i + 1;
+         if (p == null)
+            ps.setNull(idx, Types.VARCHAR);
+         else if (p instanceof String)
+            ps.setString(idx, (String) p);
+         else if (p instanceof Integer)
+            ps.setInt(idx, ((Integer) p).intValue());
+         else if (p instanceof Long)
+            ps.setLong(idx, ((Long) p).longValue());
+         else if (p instanceof Double)
+            ps.setDouble(idx, ((Double) p).doubleValue());
+         else if (p instanceof Float)
+            ps.setFloat(idx, ((Float) p).floatValue());
+         else if (p instanceof BigDecimal)
+            ps.setBigDecimal(idx, (BigDecimal) p);
+         else if (p instanceof Boolean)
+            ps.setBoolean(idx, ((Boolean) p).booleanValue());
+         else if (p instanceof Timestamp)
+            ps.setTimestamp(idx, (Timestamp) p);
+         else if (p instanceof Date)
+            ps.setDate(idx, (Date) p);
+         else
+            throw new SQLException("Unsupported parameter type " + p.getClass().getName() + " at index " + idx);
+      }
+   }// end bind
+}// end StatementCache
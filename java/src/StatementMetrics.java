@@ -0,0 +1,330 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import javax.management.ObjectName;
+
+/**
+ * This class keeps latency histograms and counters per statement shape:
+ * calls, errors, rows and bytes read. The shape is the SQL text with its
+ * whitespace collapsed, literals replaced by '?' and multi-row VALUES and IN
+ * lists folded, so the same statement is counted once whatever its values
+ * or batch size.
+ *
+ * Recording costs a map lookup on the SQL text and a few atomic updates;
+ * the text is only normalized the first time it is seen. At most
+ * maxStatements shapes are kept, further ones are counted under "(other)".
+ *
+ * The metrics are readable over JMX (amazon:type=StatementMetrics) and as
+ * a text table from dump(), which can also be written periodically.
+ *
+ */
+public class StatementMetrics implements StatementMetricsMXBean {
+
+   private static final String OTHER = "(other)";
+   private static final int MAX_SHAPE_LENGTH = 1000;
+
+   private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+   private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+   private static final Pattern NUMBER_LITERAL = Pattern.compile("(?<![\\w.])-?\\d+(?:\\.\\d+)?(?![\\w.])");
+   // possessive, a backtracking repeat recurses once per row or value and
+   // overflows the stack on long lists
+   private static final Pattern VALUES_ROWS = Pattern.compile("(?i)(VALUES \\([^()]*\\))(?: ?, ?\\([^()]*\\))++");
+   private static final Pattern IN_LIST = Pattern.compile("(?i)(IN \\()\\?(?: ?, ?\\?)++\\)");
+
+   private final int _maxStatements;
+
+   // by SQL text as the callers pass it, and by shape
+   private final ConcurrentHashMap<String, Stat> _bySql = new ConcurrentHashMap<String, Stat>();
+   private final ConcurrentHashMap<String, Stat> _byShape = new ConcurrentHashMap<String, Stat>();
+
+   private volatile long _since = System.currentTimeMillis();
+   private ObjectName _name = null;
+   private ScheduledExecutorService _dumper = null;
+
+   /**
+    * @param maxStatements the most statement shapes kept apart
+    */
+   public StatementMetrics(int maxStatements) {
+      this._maxStatements = maxStatements;
+   }
+
+   /**
+    * Records one execution of a statement
+    *
+    * @param sql        the SQL text, as prepared
+    * @param startNanos System.nanoTime() when the execution started
+    * @param rows       the rows returned or affected
+    * @param bytes      the size of the values read, 0 when not known
+    * @param failure    the exception raised, or null
+    */
+   public void record(String sql, long startNanos, long rows, long bytes, SQLException failure) {
+      Stat stat = stat(sql);
+      stat.latency.recordNanos(System.nanoTime() - startNanos);
+      stat.rows.addAndGet(rows);
+      if (bytes != 0)
+         stat.bytes.addAndGet(bytes);
+      if (failure != null) {
+         stat.errors.incrementAndGet();
+         stat.lastSqlState = failure.getSQLState();
+      }
+   }// end record
+
+   private Stat stat(String sql) {
+      Stat stat = this._bySql.get(sql);
+      if (stat != null)
+         return stat;
+      String shape = normalize(sql);
+      stat = this._byShape.get(shape);
+      if (stat == null) {
+         if (this._byShape.size() >= this._maxStatements)
+            shape = OTHER;
+         stat = this._byShape.computeIfAbsent(shape, Stat::new);
+      }
+      // statements built with literals would fill the map, those are
+      // normalized on every call instead
+      if (this._bySql.size() < 4 * this._maxStatements)
+         this._bySql.put(sql, stat);
+      return stat;
+   }// end stat
+
+   /**
+    * @return the shape a statement is counted under
+    */
+   static String normalize(String sql) {
+      String shape = WHITESPACE.matcher(sql.trim()).replaceAll(" ");
+      shape = STRING_LITERAL.matcher(shape).replaceAll("?");
+      shape = NUMBER_LITERAL.matcher(shape).replaceAll("?");
+      shape = VALUES_ROWS.matcher(shape).replaceAll("$1, ...");
+      shape = IN_LIST.matcher(shape).replaceAll("$1?, ...)");
+      return shape.length() > MAX_SHAPE_LENGTH ? shape.substring(0, MAX_SHAPE_LENGTH) + "..." : shape;
+   }// end normalize
+
+   public int getStatementCount() {
+      return this._byShape.size();
+   }
+
+   public long getCalls() {
+      long total = 0;
+      for (Stat stat : this._byShape.values())
+         total += stat.latency.count();
+      return total;
+   }
+
+   public long getErrors() {
+      long total = 0;
+      for (Stat stat : this._byShape.values())
+         total += stat.errors.get();
+      return total;
+   }
+
+   public long getRows() {
+      long total = 0;
+      for (Stat stat : this._byShape.values())
+         total += stat.rows.get();
+      return total;
+   }
+
+   public long getBytes() {
+      long total = 0;
+      for (Stat stat : this._byShape.values())
+         total += stat.bytes.get();
+      return total;
+   }
+
+   /**
+    * @return a snapshot per statement shape, most total time first
+    */
+   public List<Snapshot> getStatements() {
+      List<Snapshot> result = new ArrayList<Snapshot>();
+      for (Stat stat : this._byShape.values())
+         result.add(new Snapshot(stat));
+      Collections.sort(result, (a, b) -> Double.compare(b.getTotalMillis(), a.getTotalMillis()));
+      return result;
+   }
+
+   /**
+    * @return every statement shape as a line of a text table, most total
+    *         time first
+    */
+   public String dump() {
+      StringBuilder out = new StringBuilder();
+      out.append(String.format("statement metrics since %tF %<tT%n", this._since));
+      out.append(String.format("%9s %7s %10s %9s %10s %9s %9s %9s %9s  %s%n", "calls", "errors", "rows", "KB",
+            "total ms", "mean ms", "p50 ms", "p99 ms", "max ms", "statement"));
+      for (Snapshot s : getStatements()) {
+         out.append(String.format("%9d %7d %10d %9d %10.1f %9.3f %9.3f %9.3f %9.3f  %s%n", s.getCalls(),
+               s.getErrors(), s.getRows(), s.getBytes() / 1024, s.getTotalMillis(), s.getMeanMillis(),
+               s.getP50Millis(), s.getP99Millis(), s.getMaxMillis(), s.getStatement()));
+      }
+      return out.toString();
+   }// end dump
+
+   /**
+    * Forgets every statement. Executions recorded while it runs may be lost.
+    */
+   public void reset() {
+      this._bySql.clear();
+      this._byShape.clear();
+      this._since = System.currentTimeMillis();
+   }
+
+   /**
+    * Registers the metrics with the platform MBean server, under
+    * amazon:type=StatementMetrics,name=<name>
+    */
+   public synchronized void register(String name) {
+      try {
+         ObjectName objectName = new ObjectName("amazon:type=StatementMetrics,name=" + ObjectName.quote(name));
+         // a second instance in the same process gets a numbered name
+         for (int i = 2; ManagementFactory.getPlatformMBeanServer().isRegistered(objectName); i++)
+            objectName = new ObjectName(
+                  "amazon:type=StatementMetrics,name=" + ObjectName.quote(name + "-" + i));
+         ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+         this._name = objectName;
+      } catch (Exception e) {
+         System.err.println("Statement metrics are not available over JMX: " + e.getMessage());
+      }
+   }// end register
+
+   /**
+    * Writes dump() every periodSeconds, appended to file, or to standard
+    * error when file is null
+    */
+   public synchronized void startDump(long periodSeconds, String file) {
+      this._dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "statement-metrics-dump");
+         t.setDaemon(true);
+         return t;
+      });
+      this._dumper.scheduleAtFixedRate(() -> {
+         if (file == null) {
+            System.err.print(dump());
+            return;
+         }
+         try (PrintWriter out = new PrintWriter(new FileWriter(file, true))) {
+            out.print(dump());
+         } catch (IOException e) {
+            System.err.println("Cannot write statement metrics to " + file + ": " + e.getMessage());
+         }
+      }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+   }// end startDump
+
+   /**
+    * Stops the periodic dump and unregisters from JMX
+    */
+   public synchronized void close() {
+      if (this._dumper != null)
+         this._dumper.shutdownNow();
+      this._dumper = null;
+      try {
+         if (this._name != null)
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this._name);
+      } catch (Exception e) {
+         // already gone
+      }
+      this._name = null;
+   }// end close
+
+   private static class Stat {
+      final String shape;
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong errors = new AtomicLong();
+      final AtomicLong rows = new AtomicLong();
+      final AtomicLong bytes = new AtomicLong();
+      volatile String lastSqlState;
+
+      Stat(String shape) {
+         this.shape = shape;
+      }
+   }// end Stat
+
+   /**
+    * The metrics of one statement shape at one point in time
+    */
+   public static class Snapshot {
+      private final String _statement;
+      private final long _calls;
+      private final long _errors;
+      private final long _rows;
+      private final long _bytes;
+      private final double _meanMillis;
+      private final double _p50Millis;
+      private final double _p99Millis;
+      private final double _p999Millis;
+      private final double _maxMillis;
+      private final String _lastSqlState;
+
+      Snapshot(Stat stat) {
+         this._statement = stat.shape;
+         this._calls = stat.latency.count();
+         this._errors = stat.errors.get();
+         this._rows = stat.rows.get();
+         this._bytes = stat.bytes.get();
+         this._meanMillis = stat.latency.mean() / 1000;
+         this._p50Millis = stat.latency.percentile(50) / 1000.0;
+         this._p99Millis = stat.latency.percentile(99) / 1000.0;
+         this._p999Millis = stat.latency.percentile(99.9) / 1000.0;
+         this._maxMillis = stat.latency.max() / 1000.0;
+         this._lastSqlState = stat.lastSqlState;
+      }
+
+      public String getStatement() {
+         return this._statement;
+      }
+
+      public long getCalls() {
+         return this._calls;
+      }
+
+      public long getErrors() {
+         return this._errors;
+      }
+
+      public long getRows() {
+         return this._rows;
+      }
+
+      public long getBytes() {
+         return this._bytes;
+      }
+
+      public double getTotalMillis() {
+         return this._meanMillis * this._calls;
+      }
+
+      public double getMeanMillis() {
+         return this._meanMillis;
+      }
+
+      public double getP50Millis() {
+         return this._p50Millis;
+      }
+
+      public double getP99Millis() {
+         return this._p99Millis;
+      }
+
+      public double getP999Millis() {
+         return this._p999Millis;
+      }
+
+      public double getMaxMillis() {
+         return this._maxMillis;
+      }
+
+      public String getLastSqlState() {
+         return this._lastSqlState;
+      }
+   }// end Snapshot
+}// end StatementMetrics
@@ -0,0 +1,25 @@
+import java.util.List;
+
+/**
+ * What JMX shows of the StatementMetrics: totals, a row per statement
+ * shape, a text dump and a reset.
+ *
+ */
+public interface StatementMetricsMXBean {
+
+   int getStatementCount();
+
+   long getCalls();
+
+   long getErrors();
+
+   long getRows();
+
+   long getBytes();
+
+   List<StatementMetrics.Snapshot> getStatements();
+
+   String dump();
+
+   void reset();
+}// end StatementMetricsMXBean
@@ -0,0 +1,166 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class defines an immutable uniform grid over store locations. The
+ * plane is cut into square cells of a fixed size and every store is filed
+ * under the cell its coordinates fall in, so a radius lookup only visits the
+ * cells overlapping the bounding box of the search circle instead of every
+ * store. Distances are the same euclidean distance used by
+ * Amazon.calculateDistance.
+ *
+ * Instances are never modified once built; a refresh builds a new grid and
+ * swaps the reference, so lookups need no locking.
+ *
+ */
+public class StoreGrid {
+
+   private final double _cellSize;
+
+   // store coordinates, grouped by cell. _cells maps a cell key to the
+   // [start, end) range of that cell in the three arrays.
+   private final int[] _storeIDs;
+   private final double[] _lat;
+   private final double[] _long;
+   private final Map<Long, int[]> _cells;
+
+   private final long _builtAt;
+
+   /**
+    * Builds a grid over the given stores
+    *
+    * @param storeIDs the store IDs
+    * @param lat      the latitude of each store
+    * @param lng      the longitude of each store
+    * @param cellSize the width and height of a cell, ideally close to the
+    *                 usual search radius
+    */
+   public StoreGrid(int[] storeIDs, double[] lat, double[] lng, double cellSize) {
+      if (cellSize <= 0)
+         throw new IllegalArgumentException("cellSize must be positive");
+      int n = storeIDs.length;
+      this._cellSize = cellSize;
+      this._builtAt = System.currentTimeMillis();
+
+      // sort the stores by cell so that every cell is a contiguous range
+      Integer[] order = new Integer[n];
+      final long[] keys = new long[n];
+      for (int i = 0; i < n; i++) {
+         order[i] = i;
+         keys[i] = key(cell(lat[i]), cell(lng[i]));
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+         public int compare(Integer a, Integer b) {
+            return Long.compare(keys[a], keys[b]);
+         }
+      });
+
+      this._storeIDs = new int[n];
+      this._lat = new double[n];
+      this._long = new double[n];
+      this._cells = new HashMap<Long, int[]>();
+      int start = 0;
+      for (int i = 0; i < n; i++) {
+         int src = order[i];
+         this._storeIDs[i] = storeIDs[src];
+         this._lat[i] = lat[src];
+         this._long[i] = lng[src];
+         if (i + 1 == n || keys[order[i + 1]] != keys[src]) {
+            this._cells.put(keys[src], new int[] { start, i + 1 });
+            start = i + 1;
+         }
+      }
+   }// end StoreGrid
+
+   /**
+    * Finds every store within a radius of a point
+    *
+    * @param lat    latitude of the center
+    * @param lng    longitude of the center
+    * @param radius the search radius
+    * @return the matching stores, nearest first
+    */
+   public List<Hit> within(double lat, double lng, double radius) {
+      List<Hit> hits = new ArrayList<Hit>();
+      if (!(radius >= 0))
+         return hits;
+      long minX = cell(lat - radius), maxX = cell(lat + radius);
+      long minY = cell(lng - radius), maxY = cell(lng + radius);
+      double r2 = radius * radius;
+      // a radius covering more cells than there are stores is cheaper to
+      // answer by checking every store
+      if (((double) maxX - minX + 1) * ((double) maxY - minY + 1) > this._storeIDs.length) {
+         for (int i = 0; i < this._storeIDs.length; i++) {
+            double dLat = this._lat[i] - lat;
+            double dLong = this._long[i] - lng;
+            double d2 = dLat * dLat + dLong * dLong;
+            if (d2 <= r2)
+               hits.add(new Hit(this._storeIDs[i], Math.sqrt(d2)));
+         }
+         Collections.sort(hits);
+         return hits;
+      }
+      for (long x = minX; x <= maxX; x++) {
+         for (long y = minY; y <= maxY; y++) {
+            int[] range = this._cells.get(key(x, y));
+            if (range == null)
+               continue;
+            for (int i = range[0]; i < range[1]; i++) {
+               double dLat = this._lat[i] - lat;
+               double dLong = this._long[i] - lng;
+               double d2 = dLat * dLat + dLong * dLong;
+               if (d2 <= r2)
+                  hits.add(new Hit(this._storeIDs[i], Math.sqrt(d2)));
+            }
+         }
+      }
+      Collections.sort(hits);
+      return hits;
+   }// end within
+
+   /**
+    * @return the number of stores in the grid
+    */
+   public int size() {
+      return this._storeIDs.length;
+   }
+
+   /**
+    * @return when the grid was built, in epoch milliseconds
+    */
+   public long builtAt() {
+      return this._builtAt;
+   }
+
+   private long cell(double coordinate) {
+      return (long) Math.floor(coordinate / this._cellSize);
+   }
+
+   private static long key(long x, long y) {
+      return (x << 32) ^ (y & 0xffffffffL);
+   }
+
+   /**
+    * A store (or warehouse) found by a location lookup, with its distance
+    * to the center.
+    */
+   public static class Hit implements Comparable<Hit> {
+      public final int id;
+      public final double distance;
+
+      public Hit(int id, double distance) {
+         this.id = id;
+         this.distance = distance;
+      }
+
+      public int compareTo(Hit other) {
+         int c = Double.compare(this.distance, other.distance);
+         return c != 0 ? c : Integer.compare(this.id, other.id);
+      }
+   }// end Hit
+}// end StoreGrid
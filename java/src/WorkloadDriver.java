@@ -0,0 +1,296 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class replays a mix of the menu operations against the database and
+ * reports throughput and latency percentiles per operation. Customers,
+ * managers, stores and products are sampled from the loaded data, so every
+ * operation runs on real rows.
+ *
+ * With a target rate (amazon.workload.rate, operations per second) the
+ * driver is open loop: operations start on schedule whatever the latency,
+ * at most amazon.workload.concurrency at a time, and latency is measured
+ * from the scheduled start so that queueing behind a slow system is
+ * counted. Without one it is closed loop: amazon.workload.concurrency
+ * workers run operations back to back. Every operation runs on its own
+ * virtual thread when the JVM has them.
+ *
+ * Other settings:
+ *    amazon.workload.durationSeconds  measured run time, 60
+ *    amazon.workload.warmupSeconds    unmeasured run time before it, 10
+ *    amazon.workload.mix              weights, e.g. "stores=20,products=25,
+ *                                     order=20,recentOrders=20,
+ *                                     popularProducts=5,popularCustomers=5,
+ *                                     supply=5"
+ *    amazon.workload.sampleSize       users and products sampled, 10000
+ *    amazon.workload.seed             seed for the sampling, 42
+ *
+ */
+public class WorkloadDriver {
+
+   static final String[] OPERATIONS = { "stores", "products", "order", "recentOrders", "popularProducts",
+         "popularCustomers", "supply" };
+   static final String DEFAULT_MIX = "stores=20,products=25,order=20,recentOrders=20,"
+         + "popularProducts=5,popularCustomers=5,supply=5";
+
+   private final Amazon _esql;
+
+   // sampled data
+   private final List<double[]> _customers = new ArrayList<double[]>(); // userID, latitude, longitude
+   private final List<Object[]> _products = new ArrayList<Object[]>(); // storeID, productName
+   private final List<Object[]> _managed = new ArrayList<Object[]>(); // managerID, storeID, productName
+   private final List<Integer> _warehouses = new ArrayList<Integer>();
+
+   // operation choice: cumulative weights over OPERATIONS
+   private final int[] _cumulative = new int[OPERATIONS.length];
+
+   private final Map<String, Stats> _stats = new LinkedHashMap<String, Stats>();
+   private volatile long _measureFrom;
+   private volatile long _measureUntil;
+
+   public WorkloadDriver(Amazon esql, String mix) {
+      this._esql = esql;
+      Map<String, Integer> weights = new HashMap<String, Integer>();
+      for (String entry : mix.split(",")) {
+         String[] kv = entry.trim().split("=");
+         if (kv.length != 2)
+            throw new IllegalArgumentException("Bad mix entry " + entry);
+         weights.put(kv[0].trim(), Integer.parseInt(kv[1].trim()));
+      }
+      int total = 0;
+      for (int i = 0; i < OPERATIONS.length; i++) {
+         Integer w = weights.remove(OPERATIONS[i]);
+         total += w == null ? 0 : w;
+         this._cumulative[i] = total;
+         this._stats.put(OPERATIONS[i], new Stats());
+      }
+      if (!weights.isEmpty())
+         throw new IllegalArgumentException("Unknown operations " + weights.keySet());
+      if (total == 0)
+         throw new IllegalArgumentException("The mix has no weight");
+   }// end WorkloadDriver
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user>
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length != 3) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     WorkloadDriver.class.getName() +
+                     " <dbname> <port> <user>");
+         return;
+      } // end if
+
+      Class.forName("org.postgresql.Driver");
+      Amazon esql = new Amazon(args[0], args[1], args[2], "");
+      try {
+         WorkloadDriver driver = new WorkloadDriver(esql, System.getProperty("amazon.workload.mix", DEFAULT_MIX));
+         driver.sample(Integer.getInteger("amazon.workload.sampleSize", 10000),
+               Long.getLong("amazon.workload.seed", 42L));
+         driver.run(Integer.getInteger("amazon.workload.concurrency", 32),
+               Double.parseDouble(System.getProperty("amazon.workload.rate", "0")),
+               Integer.getInteger("amazon.workload.warmupSeconds", 10),
+               Integer.getInteger("amazon.workload.durationSeconds", 60));
+         driver.report(System.out);
+         System.out.println(esql.poolStats());
+      } finally {
+         esql.cleanup();
+      }
+   }// end main
+
+   /**
+    * Reads the users, stores and products the operations draw from
+    *
+    * @param size the number of customers and of products to sample
+    * @param seed the seed the sample is drawn with, the same seed draws the
+    *             same sample from the same data
+    */
+   public void sample(int size, long seed) throws Exception {
+      // rows are ordered by a hash of the seed and their key, so the sample
+      // does not depend on which pooled connection runs the query, as a
+      // setseed() and random() would
+      this._esql.executeQueryAndStream("SELECT userID, latitude, longitude FROM Users " +
+            "WHERE type = 'customer' " +
+            "ORDER BY md5(CAST(? AS text) || ':' || userID), userID LIMIT ?", rs -> {
+               this._customers.add(new double[] { rs.getInt(1), rs.getDouble(2), rs.getDouble(3) });
+            }, seed, size);
+
+      this._esql.executeQueryAndStream("SELECT P.storeID, P.productName, S.managerID " +
+            "FROM Product P JOIN Store S ON S.storeID = P.storeID " +
+            "ORDER BY md5(CAST(? AS text) || ':' || P.storeID || ':' || P.productName), P.storeID, P.productName " +
+            "LIMIT ?", rs -> {
+               String productName = rs.getString(2).trim();
+               this._products.add(new Object[] { rs.getInt(1), productName });
+               this._managed.add(new Object[] { rs.getInt(3), rs.getInt(1), productName });
+            }, seed, size);
+
+      this._esql.executeQueryAndStream("SELECT warehouseID FROM Warehouse", rs -> {
+         this._warehouses.add(rs.getInt(1));
+      });
+
+      if (this._customers.isEmpty() || this._products.isEmpty() || this._warehouses.isEmpty())
+         throw new IllegalStateException("Load the data first: no customers, products or warehouses found");
+      System.out.println("Sampled " + this._customers.size() + " customers, " + this._products.size()
+            + " products, " + this._warehouses.size() + " warehouses");
+   }// end sample
+
+   /**
+    * Runs the workload
+    *
+    * @param concurrency     the most operations in flight at once
+    * @param rate            operations per second, 0 to run closed loop
+    * @param warmupSeconds   how long to run before measuring
+    * @param durationSeconds how long to measure
+    */
+   public void run(int concurrency, double rate, int warmupSeconds, int durationSeconds) throws Exception {
+      long start = System.nanoTime();
+      this._measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+      this._measureUntil = this._measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+      System.out.println("Running " + (rate > 0 ? rate + " ops/s" : "closed loop") + ", concurrency "
+            + concurrency + ", " + warmupSeconds + "s warm-up, " + durationSeconds + "s measured");
+
+      ExecutorService executor = AmazonServer.executor();
+      try {
+         if (rate > 0) {
+            Semaphore inFlight = new Semaphore(concurrency);
+            long interval = (long) (1e9 / rate);
+            for (long next = start; next < this._measureUntil; next += interval) {
+               long wait = next - System.nanoTime();
+               if (wait > 0)
+                  LockSupport.parkNanos(wait);
+               inFlight.acquire();
+               final long scheduled = next;
+               executor.execute(() -> {
+                  try {
+                     runOne(scheduled);
+                  } finally {
+                     inFlight.release();
+                  }
+               });
+            }
+         } else {
+            for (int i = 0; i < concurrency; i++) {
+               executor.execute(() -> {
+                  long now;
+                  while ((now = System.nanoTime()) < this._measureUntil)
+                     runOne(now);
+               });
+            }
+         }
+      } finally {
+         executor.shutdown();
+         executor.awaitTermination(1, TimeUnit.MINUTES);
+      }
+   }// end run
+
+   // runs one randomly chosen operation that was due at `scheduled`
+   private void runOne(long scheduled) {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      int pick = random.nextInt(this._cumulative[this._cumulative.length - 1]);
+      int op = 0;
+      while (pick >= this._cumulative[op])
+         op++;
+
+      boolean failed = false;
+      try {
+         execute(op, random);
+      } catch (Exception e) {
+         failed = true;
+         if (scheduled >= this._measureFrom)
+            this._stats.get(OPERATIONS[op]).lastError = e.getMessage();
+      }
+      long end = System.nanoTime();
+      if (scheduled >= this._measureFrom && scheduled < this._measureUntil) {
+         Stats stats = this._stats.get(OPERATIONS[op]);
+         stats.latency.recordNanos(end - scheduled);
+         if (failed)
+            stats.errors.incrementAndGet();
+      }
+   }// end runOne
+
+   private void execute(int op, Random random) throws Exception {
+      double[] customer = this._customers.get(random.nextInt(this._customers.size()));
+      Object[] product = this._products.get(random.nextInt(this._products.size()));
+      int storeID = (Integer) product[0];
+      switch (OPERATIONS[op]) {
+         case "stores":
+            this._esql.findStoresWithin(customer[1], customer[2], 30);
+            break;
+         case "products":
+            this._esql.findProducts(storeID);
+            break;
+         case "order":
+            // running out of stock is an answer, not an error
+            this._esql.submitOrder((int) customer[0], storeID, (String) product[1], 1 + random.nextInt(3));
+            break;
+         case "recentOrders":
+            this._esql.findRecentCustomerOrders((int) customer[0]);
+            break;
+         case "popularProducts":
+            this._esql.findPopularProducts(storeID);
+            break;
+         case "popularCustomers":
+            this._esql.findPopularCustomers(storeID);
+            break;
+         case "supply":
+            Object[] managed = this._managed.get(random.nextInt(this._managed.size()));
+            int warehouseID = this._warehouses.get(random.nextInt(this._warehouses.size()));
+            this._esql.submitSupplyRequest((Integer) managed[0], warehouseID, (Integer) managed[1],
+                  (String) managed[2], 1 + random.nextInt(100));
+            break;
+         default:
+            throw new IllegalStateException(OPERATIONS[op]);
+      }
+   }// end execute
+
+   /**
+    * Prints throughput, error rate and latency percentiles per operation and
+    * in total
+    */
+   public void report(java.io.PrintStream out) {
+      double seconds = (this._measureUntil - this._measureFrom) / 1e9;
+      LatencyHistogram all = new LatencyHistogram();
+      long allErrors = 0;
+      out.println(String.format("%-17s %9s %9s %7s %9s %9s %9s %9s", "operation", "count", "ops/s", "errors",
+            "p50 ms", "p99 ms", "p999 ms", "max ms"));
+      for (Map.Entry<String, Stats> entry : this._stats.entrySet()) {
+         Stats stats = entry.getValue();
+         if (stats.latency.count() == 0)
+            continue;
+         print(out, entry.getKey(), stats.latency, stats.errors.get(), seconds);
+         all.add(stats.latency);
+         allErrors += stats.errors.get();
+      }
+      print(out, "total", all, allErrors, seconds);
+      for (Map.Entry<String, Stats> entry : this._stats.entrySet()) {
+         if (entry.getValue().lastError != null)
+            out.println(entry.getKey() + " last error: " + entry.getValue().lastError);
+      }
+   }// end report
+
+   private static void print(java.io.PrintStream out, String name, LatencyHistogram h, long errors, double seconds) {
+      out.println(String.format("%-17s %9d %9.1f %6.2f%% %9.3f %9.3f %9.3f %9.3f", name, h.count(),
+            h.count() / seconds, h.count() == 0 ? 0 : 100.0 * errors / h.count(), h.percentile(50) / 1000.0,
+            h.percentile(99) / 1000.0, h.percentile(99.9) / 1000.0, h.max() / 1000.0));
+   }
+
+   private static class Stats {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong errors = new AtomicLong();
+      volatile String lastError;
+   }// end Stats
+}// end WorkloadDriver
@@ -0,0 +1,138 @@
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is an execution lane: a pool of connections of its own for
+ * one kind of work, so that kind of work cannot take the connections, or
+ * hold the server, that another kind needs.
+ *
+ * A lane runs at most maxConcurrent statements at once, its pool size, and
+ * a statement that finds them all busy waits queueMillis at most. Every
+ * connection of the lane has its statement_timeout set, so the server
+ * cancels a statement that runs longer. The reserved connections are
+ * opened up front, replaced when they are retired, and only this lane's
+ * work uses them. cancel() stops everything the lane is running.
+ *
+ * Work enters the lane on a thread with enter() and leaves it when the
+ * scope is closed; Amazon borrows the connections of the statements run
+ * meanwhile from the lane, except for the reads it sends to a replica.
+ *
+ */
+public class WorkloadLane {
+
+   // query_canceled, raised both by a statement timeout and by cancel()
+   private static final String QUERY_CANCELED = "57014";
+
+   private final String _name;
+   private final ConnectionPool _pool;
+   private final long _statementTimeoutMillis;
+
+   private final ThreadLocal<Integer> _depth = ThreadLocal.withInitial(() -> 0);
+
+   private final AtomicLong _cancelRequests = new AtomicLong();
+   private final AtomicLong _cancelled = new AtomicLong();
+   private final AtomicLong _failed = new AtomicLong();
+
+   /**
+    * Creates a lane and opens its reserved connections
+    *
+    * @param name                   the lane's name, for the stats
+    * @param url                    the JDBC connection URL
+    * @param user                   the user name used to login to the database
+    * @param passwd                 the user login password
+    * @param reserved               connections opened up front
+    * @param maxConcurrent          the most statements run at once
+    * @param queueMillis            how long a statement waits for a connection
+    * @param statementTimeoutMillis the statement_timeout, 0 for none
+    * @param statementCacheSize     prepared statements kept per connection
+    * @throws java.sql.SQLException when the reserved connections cannot be
+    *                               opened
+    */
+   public WorkloadLane(String name, String url, String user, String passwd, int reserved, int maxConcurrent,
+         long queueMillis, long statementTimeoutMillis, int statementCacheSize) throws SQLException {
+      this._name = name;
+      this._statementTimeoutMillis = statementTimeoutMillis;
+      this._pool = new ConnectionPool(url, user, passwd, reserved, maxConcurrent, queueMillis,
+            Long.getLong("amazon.pool.maxLifetimeMillis", 30L * 60 * 1000),
+            Long.getLong("amazon.pool.validationIntervalMillis", 30L * 1000),
+            statementCacheSize, "SET statement_timeout = " + statementTimeoutMillis);
+   }// end WorkloadLane
+
+   /**
+    * Enters the lane on the current thread, until the scope is closed on the
+    * same thread. Scopes nest.
+    */
+   public Scope enter() {
+      this._depth.set(this._depth.get() + 1);
+      return new Scope();
+   }
+
+   /**
+    * @return whether the current thread is in the lane
+    */
+   public boolean entered() {
+      return this._depth.get() > 0;
+   }
+
+   /**
+    * @return the pool the lane's connections are borrowed from
+    */
+   public ConnectionPool pool() {
+      return this._pool;
+   }
+
+   /**
+    * Cancels every statement the lane is running
+    *
+    * @return the statements cancelled
+    */
+   public int cancel() {
+      this._cancelRequests.incrementAndGet();
+      return this._pool.cancel();
+   }
+
+   /**
+    * Counts a statement of the lane that failed, telling a cancellation or
+    * timeout apart from other failures
+    */
+   public void failed(SQLException e) {
+      if (QUERY_CANCELED.equals(e.getSQLState()))
+         this._cancelled.incrementAndGet();
+      else
+         this._failed.incrementAndGet();
+   }
+
+   /**
+    * @return the lane's settings, the statements it had cancelled, by a
+    *         timeout or by cancel(), and its pool counters
+    */
+   public String stats() {
+      return this._name + "[statementTimeout=" + this._statementTimeoutMillis + "ms cancelled="
+            + this._cancelled.get() + " cancelRequests=" + this._cancelRequests.get() + " failed="
+            + this._failed.get() + " " + this._pool.stats() + "]";
+   }
+
+   /**
+    * Closes the lane's pool
+    */
+   public void close() {
+      this._pool.close();
+   }
+
+   /**
+    * The current thread's stay in the lane
+    */
+   public class Scope implements AutoCloseable {
+      private boolean _closed = false;
+
+      private Scope() {
+      }
+
+      public void close() {
+         if (this._closed)
+            return;
+         this._closed = true;
+         WorkloadLane.this._depth.set(WorkloadLane.this._depth.get() - 1);
+      }
+   }// end Scope
+}// end WorkloadLane
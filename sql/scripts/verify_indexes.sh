@@ -0,0 +1,7 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# usage: verify_indexes.sh [scale]
+# Scales the dataset up inside a transaction that is rolled back, then checks
+# that no menu query plans a sequential scan. Exits non-zero if one does.
+SCALE=${1:-200}
+cs166_psql -p $PGPORT -v ON_ERROR_STOP=1 -v scale=$SCALE $USER"_project_phase_3_DB" < $DIR/../src/verify_indexes.sql
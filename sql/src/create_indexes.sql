@@ -0,0 +1,36 @@
+-- Store and Warehouse locations. point_ops answers both "location <@ circle"
+-- radius searches and "ORDER BY location <-> point" nearest-neighbour scans.
+DROP INDEX IF EXISTS store_location_idx;
+CREATE INDEX store_location_idx ON Store USING GIST (location);
+
+DROP INDEX IF EXISTS warehouse_location_idx;
+CREATE INDEX warehouse_location_idx ON Warehouse USING GIST (location);
+
+-- viewRecentOrders (manager): WHERE storeID = ? ORDER BY orderTime DESC LIMIT 5
+DROP INDEX IF EXISTS orders_store_time_idx;
+CREATE INDEX orders_store_time_idx ON Orders (storeID, orderTime DESC);
+
+-- viewRecentOrders (customer): WHERE customerID = ? ORDER BY orderTime DESC LIMIT 5
+DROP INDEX IF EXISTS orders_customer_time_idx;
+CREATE INDEX orders_customer_time_idx ON Orders (customerID, orderTime DESC);
+
+-- viewPopularProducts: WHERE storeID = ? GROUP BY productName, SUM(unitsOrdered).
+-- Covers unitsOrdered so the aggregate is an index-only scan in group order.
+DROP INDEX IF EXISTS orders_store_product_idx;
+CREATE INDEX orders_store_product_idx ON Orders (storeID, productName) INCLUDE (unitsOrdered);
+
+-- viewPopularCustomers: WHERE storeID = ? GROUP BY customerID
+DROP INDEX IF EXISTS orders_store_customer_idx;
+CREATE INDEX orders_store_customer_idx ON Orders (storeID, customerID);
+
+-- every manager screen: WHERE managerID = ?
+DROP INDEX IF EXISTS store_manager_idx;
+CREATE INDEX store_manager_idx ON Store (managerID) INCLUDE (storeID);
+
+-- LogIn: WHERE name = ? AND password = ?
+DROP INDEX IF EXISTS users_login_idx;
+CREATE INDEX users_login_idx ON Users (name, password) INCLUDE (userID, type, latitude, longitude);
+
+-- viewRecentUpdates: WHERE storeID = ? ORDER BY updatedOn DESC LIMIT 5
+DROP INDEX IF EXISTS productupdates_store_time_idx;
+CREATE INDEX productupdates_store_time_idx ON ProductUpdates (storeID, updatedOn DESC);
@@ -22,6 +22,8 @@ CREATE TABLE Store ( storeID integer,
                      longitude decimal(9, 6) NOT NULL,
                      managerID integer NOT NULL,
 					 dateEstablished date,
+                     -- (latitude, longitude) as a point, for the GiST index
+                     location point GENERATED ALWAYS AS (point(latitude, longitude)) STORED,
 		             PRIMARY KEY(storeID), 
                      FOREIGN KEY(managerID) REFERENCES Users(userID)
 );
@@ -39,6 +41,7 @@ CREATE TABLE Warehouse ( WarehouseID integer,
                          area integer,
                          latitude decimal(8,6) NOT NULL,
                          longitude decimal(9,6)  NOT NULL,
+                         location point GENERATED ALWAYS AS (point(latitude, longitude)) STORED,
                          PRIMARY KEY(WarehouseID));
 
 CREATE TABLE Orders ( 
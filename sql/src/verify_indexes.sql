@@ -0,0 +1,91 @@
+-- Checks that every query the application runs is answered from an index.
+-- Run through sql/scripts/verify_indexes.sh, which sets :scale. All the
+-- generated rows are rolled back at the end.
+BEGIN;
+
+CREATE TEMP TABLE verify_base ON COMMIT DROP AS
+SELECT (SELECT max(userID) FROM Users) AS users,
+       (SELECT max(storeID) FROM Store) AS stores,
+       (SELECT max(orderNumber) FROM Orders) AS orders,
+       (SELECT max(updateNumber) FROM ProductUpdates) AS updates;
+
+-- :scale * 100 users, one in twenty of them a manager
+INSERT INTO Users (userID, name, password, latitude, longitude, type)
+SELECT b.users + g, 'user' || (b.users + g), 'pw' || (g % 1000),
+       random() * 99.9, random() * 99.9,
+       CASE WHEN g % 20 = 0 THEN 'manager' ELSE 'customer' END
+FROM verify_base b, generate_series(1, :scale * 100) g;
+
+-- :scale * 20 stores, each with 10 products
+INSERT INTO Store (storeID, latitude, longitude, managerID, dateEstablished)
+SELECT b.stores + g, random() * 99.9, random() * 99.9, b.users + 20 * (1 + g % (:scale * 5)), DATE '2000-01-01'
+FROM verify_base b, generate_series(1, :scale * 20) g;
+
+INSERT INTO Product (storeID, productName, numberOfUnits, pricePerUnit)
+SELECT b.stores + s, 'item' || p, 1000, 1 + p
+FROM verify_base b, generate_series(1, :scale * 20) s, generate_series(0, 9) p;
+
+-- :scale * 2000 orders and :scale * 100 product updates
+INSERT INTO Orders (orderNumber, customerID, storeID, productName, unitsOrdered, orderTime)
+SELECT b.orders + g, b.users + 1 + (g % (:scale * 100)), b.stores + 1 + (g % (:scale * 20)),
+       'item' || (g % 10), 1 + g % 7, TIMESTAMP '2016-01-01' + g * INTERVAL '1 minute'
+FROM verify_base b, generate_series(1, :scale * 2000) g;
+
+INSERT INTO ProductUpdates (updateNumber, managerID, storeID, productName, updatedOn)
+SELECT b.updates + g, b.users + 20, b.stores + 1 + (g % (:scale * 20)),
+       'item' || (g % 10), TIMESTAMP '2016-01-01' + g * INTERVAL '1 hour'
+FROM verify_base b, generate_series(1, :scale * 100) g;
+
+ANALYZE Users;
+ANALYZE Store;
+ANALYZE Product;
+ANALYZE Orders;
+ANALYZE ProductUpdates;
+
+DO $$
+DECLARE
+   b verify_base%ROWTYPE;
+   q record;
+   line text;
+   failed text := '';
+BEGIN
+   SELECT * INTO b FROM verify_base;
+
+   FOR q IN
+      SELECT * FROM (VALUES
+         ('LogIn', format('SELECT U.userID, U.type, U.latitude, U.longitude, S.storeID FROM Users U '
+               'LEFT JOIN Store S ON S.managerID = U.userID WHERE U.name = %L AND U.password = %L '
+               'ORDER BY U.userID, S.storeID', 'user' || (b.users + 7), 'pw7')),
+         ('product list', format('SELECT productName, numberOfUnits, pricePerUnit FROM Product WHERE storeID = %s',
+               b.stores + 1)),
+         ('recent orders (store)', format('SELECT * FROM Orders WHERE storeID = %s ORDER BY orderTime DESC, orderNumber DESC LIMIT 5',
+               b.stores + 1)),
+         ('recent orders (customer)', format('SELECT * FROM Orders WHERE customerID = %s ORDER BY orderTime DESC, orderNumber DESC LIMIT 5',
+               b.users + 1)),
+         ('recent updates', format('SELECT * FROM ProductUpdates WHERE storeID = %s ORDER BY updatedOn DESC LIMIT 5',
+               b.stores + 1)),
+         ('popular products', format('SELECT productName, SUM(unitsOrdered) AS totalUnitsOrdered FROM Orders '
+               'WHERE storeID = %s GROUP BY productName ORDER BY totalUnitsOrdered DESC LIMIT 5', b.stores + 1)),
+         ('popular customers', format('SELECT U.name, COUNT(O.customerID) AS order_count FROM Orders O '
+               'JOIN Users U ON O.customerID = U.userID WHERE O.storeID = %s '
+               'GROUP BY O.customerID, U.name ORDER BY order_count DESC LIMIT 5', b.stores + 1)),
+         ('nearest stores', 'SELECT storeID, location <-> point(50, 50) FROM Store ORDER BY location <-> point(50, 50) LIMIT 5')
+      ) AS t(name, sql)
+   LOOP
+      RAISE NOTICE '== % ==', q.name;
+      FOR line IN EXECUTE 'EXPLAIN ' || q.sql LOOP
+         RAISE NOTICE '%', line;
+         IF line LIKE '%Seq Scan%' THEN
+            failed := failed || ' [' || q.name || ']';
+         END IF;
+      END LOOP;
+   END LOOP;
+
+   IF failed <> '' THEN
+      RAISE EXCEPTION 'Sequential scan planned for:%', failed;
+   END IF;
+   RAISE NOTICE 'All queries use an index.';
+END
+$$;
+
+ROLLBACK;